@@ -0,0 +1,289 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Runs the proxy's benchmarks (see ProxyBenchmarks) the way JMH does: each
+ * benchmark runs in a fresh JVM (a fork) so that one benchmark's JIT
+ * decisions can't skew the next, is warmed up until the JIT has settled,
+ * and is then timed over several fixed-length iterations. Results go into
+ * a sink so the JIT can't optimize the work away. Several forks are run,
+ * so that noise between runs (code layout, GC timing) shows up in the error
+ * rather than hiding in it.
+ * 
+ * Build and run from the repository root (static files are read from there):
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out BenchmarkRunner [options] [names...]
+ * 
+ * Only benchmarks whose names contain one of the given names are run. Options:
+ *   -f <forks>        JVMs to run each benchmark in (0 runs in this JVM, for quick checks)
+ *   -wi <count>       warmup iterations per fork
+ *   -i <count>        measured iterations per fork
+ *   -r <millis>       length of each iteration
+ *   -jvmArgs "<args>" arguments for the forked JVMs, like "-Dawesomeproxy.staticCache=false"
+ *   -csv <file>       also write the results as CSV, to compare branches with
+ *   -l                list the benchmarks and exit
+ */
+public class BenchmarkRunner {
+	
+	final static int DEFAULT_FORKS = 3;
+	final static int DEFAULT_WARMUP_ITERATIONS = 5;
+	final static int DEFAULT_ITERATIONS = 5;
+	final static int DEFAULT_ITERATION_MILLIS = 1000;
+	
+	// how long each batch of calls between clock reads should take, so reading the clock costs next to nothing
+	final static long BATCH_NANOS = 10000;
+	
+	// Student's t for a 99.9% confidence interval, by degrees of freedom (1 to 30; past that it's about normal)
+	private static final double[] T_999 = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+			4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85,
+			3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67, 3.66, 3.65 };
+	private static final double Z_999 = 3.29;
+	
+	// where every benchmark's results end up, so the JIT has to compute them
+	static volatile long sink;
+	
+	/**
+	 * Something to time. run() is called over and over, and should return
+	 * something that depends on the work it did.
+	 */
+	static abstract class Benchmark {
+		final String name;
+		
+		Benchmark(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Gets everything ready, before the first iteration (not timed)
+		 */
+		void setup() throws Exception {}
+		
+		abstract long run() throws Exception;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int forks = DEFAULT_FORKS;
+		int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+		int iterations = DEFAULT_ITERATIONS;
+		int iterationMillis = DEFAULT_ITERATION_MILLIS;
+		String jvmArgs = "";
+		String csvFile = null;
+		String forkOf = null; // set when we're a fork, running just this benchmark
+		List<String> filters = new ArrayList<String>();
+		
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-l")) {
+				for (Benchmark benchmark : ProxyBenchmarks.all()) {
+					System.out.println(benchmark.name);
+				}
+				return;
+			}
+			if (!arg.startsWith("-")) {
+				filters.add(arg);
+				continue;
+			}
+			if (i + 1 == args.length) {
+				System.err.println("Missing value for " + arg);
+				System.exit(1);
+			}
+			String value = args[++i];
+			if (arg.equals("-f")) forks = Integer.parseInt(value);
+			else if (arg.equals("-wi")) warmupIterations = Integer.parseInt(value);
+			else if (arg.equals("-i")) iterations = Integer.parseInt(value);
+			else if (arg.equals("-r")) iterationMillis = Integer.parseInt(value);
+			else if (arg.equals("-jvmArgs")) jvmArgs = value;
+			else if (arg.equals("-csv")) csvFile = value;
+			else if (arg.equals("-fork")) forkOf = value;
+			else {
+				System.err.println("Unknown option " + arg);
+				System.exit(1);
+			}
+		}
+		
+		if (forkOf != null) {
+			runFork(forkOf, warmupIterations, iterations, iterationMillis);
+			return;
+		}
+		
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (Benchmark benchmark : ProxyBenchmarks.all()) {
+			if (matches(benchmark.name, filters)) benchmarks.add(benchmark);
+		}
+		if (benchmarks.isEmpty()) {
+			System.err.println("No benchmarks match " + filters);
+			System.exit(1);
+		}
+		
+		System.out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+				+ ", " + forks + " fork(s) x (" + warmupIterations + " warmup + " + iterations
+				+ " measured iterations of " + iterationMillis + " ms)" + (jvmArgs.isEmpty() ? "" : ", " + jvmArgs));
+		
+		List<String> rows = new ArrayList<String>();
+		System.out.println(String.format(Locale.US, "%-28s %6s %14s   %-12s %s", "Benchmark", "Cnt", "Score", "Error", "Units"));
+		for (Benchmark benchmark : benchmarks) {
+			List<Double> samples = new ArrayList<Double>();
+			if (forks == 0) {
+				samples.addAll(measure(benchmark, warmupIterations, iterations, iterationMillis));
+			} else {
+				for (int fork = 0; fork < forks; fork++) {
+					samples.addAll(fork(benchmark.name, jvmArgs, warmupIterations, iterations, iterationMillis));
+				}
+			}
+			
+			double mean = getMean(samples);
+			double error = getError(samples, mean);
+			System.out.println(String.format(Locale.US, "%-28s %6d %14.3f +- %-12.3f %s",
+					benchmark.name, samples.size(), mean, error, "ns/op"));
+			rows.add(String.format(Locale.US, "%s,%d,%.3f,%.3f,ns/op", benchmark.name, samples.size(), mean, error));
+		}
+		
+		if (csvFile != null) {
+			PrintWriter csv = new PrintWriter(new FileWriter(csvFile));
+			try {
+				csv.println("benchmark,samples,score,error,units");
+				for (String row : rows) csv.println(row);
+			} finally {
+				csv.close();
+			}
+		}
+	}
+	
+	private static boolean matches(String name, List<String> filters) {
+		if (filters.isEmpty()) return true;
+		for (String filter : filters) {
+			if (name.contains(filter)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Runs a benchmark in a new JVM
+	 * 
+	 * @return the time per operation from each measured iteration, in nanoseconds
+	 */
+	private static List<Double> fork(String name, String jvmArgs, int warmupIterations, int iterations,
+			int iterationMillis) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if (!jvmArgs.trim().isEmpty()) command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+		command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), BenchmarkRunner.class.getName(),
+				"-fork", name, "-wi", String.valueOf(warmupIterations), "-i", String.valueOf(iterations),
+				"-r", String.valueOf(iterationMillis)));
+		
+		Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		List<Double> samples = new ArrayList<Double>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("RESULT ")) samples.add(Double.parseDouble(line.substring("RESULT ".length())));
+			}
+		} finally {
+			in.close();
+		}
+		if (process.waitFor() != 0 || samples.size() != iterations) {
+			throw new IOException("Fork for " + name + " failed");
+		}
+		return samples;
+	}
+	
+	/**
+	 * Runs a single benchmark, as a fork, and reports each measured iteration on stdout
+	 */
+	private static void runFork(String name, int warmupIterations, int iterations, int iterationMillis) throws Exception {
+		for (Benchmark benchmark : ProxyBenchmarks.all()) {
+			if (!benchmark.name.equals(name)) continue;
+			
+			// the code being measured logs as it goes, which would only get in the way
+			PrintStream results = System.out;
+			PrintStream discard = new PrintStream(new OutputStream() {
+				public void write(int b) {}
+				public void write(byte[] b, int off, int len) {}
+			});
+			System.setOut(discard);
+			System.setErr(discard);
+			
+			for (double sample : measure(benchmark, warmupIterations, iterations, iterationMillis)) {
+				results.println("RESULT " + sample);
+			}
+			results.flush();
+			return;
+		}
+		throw new IllegalArgumentException("No benchmark named " + name);
+	}
+	
+	/**
+	 * Warms up a benchmark, then times it
+	 * 
+	 * @return the time per operation from each measured iteration, in nanoseconds
+	 */
+	static List<Double> measure(Benchmark benchmark, int warmupIterations, int iterations, int iterationMillis) throws Exception {
+		benchmark.setup();
+		long iterationNanos = iterationMillis * 1000000L;
+		
+		int batch = 1;
+		for (int i = 0; i < warmupIterations; i++) {
+			double nanosPerOp = runIteration(benchmark, batch, iterationNanos);
+			batch = (int) Math.max(1, Math.min(BATCH_NANOS / Math.max(nanosPerOp, 1), 100000));
+		}
+		
+		List<Double> samples = new ArrayList<Double>();
+		for (int i = 0; i < iterations; i++) {
+			samples.add(runIteration(benchmark, batch, iterationNanos));
+		}
+		return samples;
+	}
+	
+	/**
+	 * Calls a benchmark over and over for a while
+	 * 
+	 * @param batch calls made between each look at the clock
+	 * @return the average time per call, in nanoseconds
+	 */
+	private static double runIteration(Benchmark benchmark, int batch, long iterationNanos) throws Exception {
+		long result = 0;
+		long ops = 0;
+		long start = System.nanoTime();
+		long deadline = start + iterationNanos;
+		long now;
+		do {
+			for (int i = 0; i < batch; i++) {
+				result += benchmark.run();
+			}
+			ops += batch;
+		} while ((now = System.nanoTime()) < deadline);
+		sink += result;
+		return (double) (now - start) / ops;
+	}
+	
+	private static double getMean(List<Double> samples) {
+		double sum = 0;
+		for (double sample : samples) sum += sample;
+		return sum / samples.size();
+	}
+	
+	/**
+	 * Gets the half-width of the 99.9% confidence interval around the mean
+	 */
+	private static double getError(List<Double> samples, double mean) {
+		int n = samples.size();
+		if (n < 2) return Double.NaN;
+		double squares = 0;
+		for (double sample : samples) squares += (sample - mean) * (sample - mean);
+		double stdDev = Math.sqrt(squares / (n - 1));
+		double t = (n - 1 <= T_999.length) ? T_999[n - 2] : Z_999;
+		return t * stdDev / Math.sqrt(n);
+	}
+}
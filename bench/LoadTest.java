@@ -0,0 +1,450 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Puts the whole proxy under load: starts a ProxyServer on a free port in
+ * this JVM, along with a StubOrigin for it to fetch from, and drives it with
+ * a number of concurrent clients over loopback. Or, as a reverse proxy,
+ * in front of several StubOrigins standing in for our backends. Then reports throughput,
+ * latency percentiles, errors, and how much heap and how many threads the
+ * run took. Nothing leaves the machine.
+ * 
+ * Clients run either closed-loop (each sends its next request as soon as
+ * the last one's answered) or open-loop (requests are due at a fixed rate,
+ * whether or not earlier ones have been answered, and latency is measured
+ * from when each was due, so a stalled proxy can't hide its queueing).
+ * 
+ * Build and run from the repository root:
+ *   javac -d out src/*.java bench/*.java
+ *   java -cp out [-Dawesomeproxy.<setting>=<value>...] LoadTest [options]
+ * options:
+ *   -c <clients>     concurrent clients (default 50)
+ *   -d <seconds>     how long to measure for (default 10)
+ *   -w <seconds>     how long to warm up first, without measuring (default 3)
+ *   -rate <per sec>  run open-loop at this many requests per second (default 0, closed-loop)
+ *   -size <bytes>    size of each response body (default 1024)
+ *   -chunked         have the origin send chunked bodies instead of Content-Lengths
+ *   -delay <millis>  have the origin wait this long before each response (default 0)
+ *   -cacheable       let the proxy cache responses (they're no-store otherwise)
+ *   -urls <count>    spread requests over this many different URLs (default 1)
+ *   -close           open a new connection for every request, instead of keeping them alive
+ *   -timeout <ms>    how long a client waits for a response before giving up (default 10000)
+ *   -proxy <port>    load an already-running proxy on this port, instead of starting one
+ *   -backends <n>    reverse proxy to this many origins (routed as "/load"), instead of forward proxying to one
+ *   -slow <millis>   have the first backend add this much delay to every response
+ *   -failing         have the first backend fail every request
+ */
+public class LoadTest {
+	
+	// load test settings, from the command line
+	static int clients = 50;
+	static int seconds = 10;
+	static int warmupSeconds = 3;
+	static int rate = 0;
+	static int size = 1024;
+	static boolean chunked = false;
+	static int delay = 0;
+	static boolean cacheable = false;
+	static int urls = 1;
+	static boolean keepAlive = true;
+	static int timeout = 10000;
+	static int proxyPort = 0;
+	static int backendCount = 0;
+	static int slowDelay = 0;
+	static boolean failing = false;
+	
+	// set once warmup is over, and unset once measuring is over
+	static volatile boolean measuring;
+	static volatile boolean running = true;
+	
+	// for open-loop runs: when requests start being due, and which is next
+	static long openLoopStart;
+	static final AtomicLong nextTicket = new AtomicLong();
+	
+	public static void main(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-chunked")) chunked = true;
+			else if (arg.equals("-cacheable")) cacheable = true;
+			else if (arg.equals("-close")) keepAlive = false;
+			else if (arg.equals("-failing")) failing = true;
+			else if (i + 1 < args.length && arg.equals("-c")) clients = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-d")) seconds = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-w")) warmupSeconds = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-rate")) rate = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-size")) size = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-delay")) delay = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-urls")) urls = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-timeout")) timeout = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-proxy")) proxyPort = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-backends")) backendCount = Integer.parseInt(args[++i]);
+			else if (i + 1 < args.length && arg.equals("-slow")) slowDelay = Integer.parseInt(args[++i]);
+			else {
+				System.err.println("Unknown option " + arg);
+				System.exit(1);
+			}
+		}
+		
+		// the proxy logs every request, which would drown out the results
+		PrintStream results = System.out;
+		PrintStream discard = new PrintStream(new OutputStream() {
+			public void write(int b) {}
+			public void write(byte[] b, int off, int len) {}
+		});
+		System.setOut(discard);
+		System.setErr(discard);
+		
+		// as a reverse proxy, clients ask the proxy itself for paths, and it picks an origin
+		List<StubOrigin> origins = new ArrayList<StubOrigin>();
+		StringBuilder route = new StringBuilder("/load=");
+		for (int i = 0; i < Math.max(backendCount, 1); i++) {
+			StubOrigin origin = new StubOrigin(backendCount > 0 ? "Backend" + (i + 1) : "StubOrigin");
+			origins.add(origin);
+			route.append(i > 0 ? "," : "").append(origin.getUrl().substring("http://".length()));
+		}
+		origins.get(0).extraDelay = slowDelay;
+		origins.get(0).failing = failing;
+		
+		// (has to be set before the proxy reads its configuration)
+		if (backendCount > 0) System.setProperty(Utils.CONFIG_PREFIX + "routes", route.toString());
+		
+		boolean inProcess = (proxyPort == 0);
+		if (inProcess) proxyPort = startProxy();
+		
+		results.println("# proxy on port " + proxyPort + (inProcess ? " (engine " + Utils.SERVER_ENGINE + ")" : "")
+				+ (backendCount > 0 ? ", reverse proxying " + route + " (" + Utils.LOAD_BALANCING + ")"
+						: ", origin at " + origins.get(0).getUrl())
+				+ (slowDelay > 0 ? ", first backend " + slowDelay + " ms slower" : "")
+				+ (failing ? ", first backend failing" : ""));
+		results.println("# " + clients + " clients, " + (rate > 0 ? "open-loop at " + rate + " req/s" : "closed-loop")
+				+ ", " + size + " byte " + (chunked ? "chunked" : "Content-Length") + " bodies"
+				+ (delay > 0 ? ", " + delay + " ms origin delay" : "")
+				+ (keepAlive ? "" : ", new connection per request")
+				+ (cacheable ? ", cacheable" : "") + ", " + urls + " url(s)"
+				+ ", " + warmupSeconds + " s warmup + " + seconds + " s");
+		
+		// start everyone off, and let them warm up
+		List<Client> clientList = new ArrayList<Client>();
+		for (int i = 0; i < clients; i++) {
+			clientList.add(new Client(i, backendCount > 0 ? "" : origins.get(0).getUrl()));
+		}
+		openLoopStart = System.nanoTime();
+		for (Client client : clientList) client.start();
+		Thread.sleep(warmupSeconds * 1000L);
+		
+		// then measure
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		long gcCount = getGcCount();
+		long gcMillis = getGcMillis();
+		
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(seconds * 1000L);
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		
+		long heapUsed = memory.getHeapMemoryUsage().getUsed();
+		int peakThreads = threads.getPeakThreadCount();
+		gcCount = getGcCount() - gcCount;
+		gcMillis = getGcMillis() - gcMillis;
+		
+		running = false;
+		for (Client client : clientList) client.interrupt();
+		for (Client client : clientList) client.join(timeout);
+		
+		// add up everyone's results
+		long[] latencies = new long[Metrics.BUCKET_COUNT];
+		long requests = 0, bytes = 0, maxMicros = 0;
+		long connectErrors = 0, timeouts = 0, statusErrors = 0, ioErrors = 0;
+		for (Client client : clientList) {
+			for (int i = 0; i < latencies.length; i++) latencies[i] += client.latencies[i];
+			requests += client.requests;
+			bytes += client.bytes;
+			maxMicros = Math.max(maxMicros, client.maxMicros);
+			connectErrors += client.connectErrors;
+			timeouts += client.timeouts;
+			statusErrors += client.statusErrors;
+			ioErrors += client.ioErrors;
+		}
+		
+		double elapsedSeconds = elapsed / 1e9;
+		results.println(String.format(Locale.US, "requests:   %d (%.1f req/s, %.2f MB/s of bodies)",
+				requests, requests / elapsedSeconds, bytes / elapsedSeconds / (1024 * 1024)));
+		results.println(String.format(Locale.US, "latency:    p50=%.3f ms  p90=%.3f ms  p99=%.3f ms  p999=%.3f ms  max=%.3f ms",
+				getPercentile(latencies, 0.5) / 1000, getPercentile(latencies, 0.9) / 1000,
+				getPercentile(latencies, 0.99) / 1000, getPercentile(latencies, 0.999) / 1000, maxMicros / 1000.0));
+		results.println("errors:     connect=" + connectErrors + " timeout=" + timeouts
+				+ " status=" + statusErrors + " io=" + ioErrors);
+		results.println(String.format(Locale.US, "heap:       %.1f MB used at the end (max %.1f MB), %d GCs taking %d ms",
+				heapUsed / (1024.0 * 1024), memory.getHeapMemoryUsage().getMax() / (1024.0 * 1024), gcCount, gcMillis));
+		int originConnections = 0;
+		StringBuilder served = new StringBuilder();
+		for (StubOrigin origin : origins) {
+			originConnections += origin.openConnections.get();
+			served.append(served.length() > 0 ? ", " : "").append(origin.requests.get());
+		}
+		results.println("threads:    " + peakThreads + " at peak (including " + clients + " clients and the origin's "
+				+ "connections), " + originConnections + " origin connections open at the end");
+		results.println("origin:     " + served + " requests served");
+		if (inProcess) {
+			results.println("pool:       " + ConnectionPool.shared.getStats());
+			results.println("cache:      " + ResponseCache.shared.getStats());
+			if (Utils.COLLAPSED_FORWARDING) results.println("collapsed:  " + RequestCoalescer.shared.getStats());
+			if (AdmissionControl.shared.enabled) results.println("admission:  " + AdmissionControl.shared.getStats());
+			if (ReverseProxy.shared.enabled) results.println("backends:   " + ReverseProxy.shared.getStats());
+		}
+		
+		for (StubOrigin origin : origins) origin.close();
+		if (inProcess) stopProxy();
+		System.exit(0);
+	}
+	
+	/**
+	 * Starts a ProxyServer in this JVM on a free port
+	 * 
+	 * @return the port it's listening on
+	 */
+	static int startProxy() throws InterruptedException {
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				ProxyServer.main(new String[] { "0" });
+			}
+		}, "ProxyServer");
+		server.setDaemon(true);
+		server.start();
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!ProxyServer.isAlive) {
+			if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+				throw new IllegalStateException("Proxy didn't start");
+			}
+			Thread.sleep(10);
+		}
+		return ProxyServer.port;
+	}
+	
+	/**
+	 * Tells the proxy to shut down, and wakes its acceptor up so it notices
+	 */
+	static void stopProxy() {
+		ProxyServer.isAlive = false;
+		try {
+			new Socket(InetAddress.getLoopbackAddress(), proxyPort).close();
+		} catch (IOException e) {}
+	}
+	
+	private static long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+	
+	private static long getGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(gc.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+	
+	/**
+	 * Gets the latency that a fraction of requests took no longer than, in microseconds
+	 */
+	static double getPercentile(long[] histogram, double quantile) {
+		long count = 0;
+		for (long n : histogram) count += n;
+		if (count == 0) return 0;
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank) return Metrics.getBucketValue(i);
+		}
+		return Metrics.getBucketValue(histogram.length - 1);
+	}
+	
+	
+	/**
+	 * One client, sending requests through the proxy one at a time and
+	 * keeping track of how they went (only it touches its counters, until
+	 * it's been joined)
+	 */
+	static class Client extends Thread {
+		final String originUrl; // or "" to ask the proxy for the path itself, when it's reverse proxying
+		final long[] latencies = new long[Metrics.BUCKET_COUNT];
+		long requests, bytes, maxMicros;
+		long connectErrors, timeouts, statusErrors, ioErrors;
+		
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private final byte[] scratch = new byte[16384];
+		private int sent; // requests sent, for picking URLs
+		
+		Client(int id, String originUrl) {
+			super("LoadClient-" + id);
+			setDaemon(true);
+			this.originUrl = originUrl;
+			sent = id;
+		}
+		
+		@Override
+		public void run() {
+			long interval = (rate > 0) ? 1000000000L / rate : 0;
+			while (running) {
+				// open-loop requests are due at a fixed rate, whether or not we're keeping up
+				long due = System.nanoTime();
+				if (rate > 0) {
+					due = openLoopStart + nextTicket.getAndIncrement() * interval;
+					long wait;
+					while (running && (wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+					if (!running) break;
+				}
+				
+				boolean counted = measuring;
+				try {
+					long received = sendRequest();
+					long micros = (System.nanoTime() - due) / 1000;
+					if (counted && measuring) {
+						latencies[Metrics.getBucket(micros)]++;
+						maxMicros = Math.max(maxMicros, micros);
+						requests++;
+						bytes += received;
+					}
+				} catch (ConnectException e) {
+					if (counted) connectErrors++;
+					disconnect();
+				} catch (SocketTimeoutException e) {
+					if (counted) timeouts++;
+					disconnect();
+				} catch (StatusException e) {
+					if (counted) statusErrors++;
+					disconnect();
+				} catch (IOException e) {
+					if (counted && running) ioErrors++;
+					disconnect();
+				}
+			}
+			disconnect();
+		}
+		
+		/**
+		 * Sends a request through the proxy and reads the whole response
+		 * 
+		 * @return the size of the response body
+		 */
+		private long sendRequest() throws IOException {
+			if (socket == null) {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(timeout);
+				socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort), timeout);
+				in = new BufferedInputStream(socket.getInputStream());
+				out = new BufferedOutputStream(socket.getOutputStream());
+			}
+			
+			String url = originUrl + "/load/" + (sent++ % urls) + "?size=" + size
+					+ (chunked ? "&chunked=true" : "") + (delay > 0 ? "&delay=" + delay : "")
+					+ (cacheable ? "&cache=true" : "");
+			String host = originUrl.isEmpty() ? "localhost:" + proxyPort : originUrl.substring("http://".length());
+			out.write(("GET " + url + " HTTP/1.1\r\nHost: " + host + "\r\n"
+					+ (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			
+			// read the head
+			String statusLine = StubOrigin.readLine(in);
+			if (statusLine == null) throw new IOException("Proxy closed the connection");
+			String[] status = statusLine.split(" ");
+			if (status.length < 2 || !status[1].equals("200")) throw new StatusException(statusLine);
+			
+			long contentLength = -1;
+			boolean isChunked = false;
+			boolean close = !keepAlive;
+			String line;
+			while ((line = StubOrigin.readLine(in)) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon < 0) continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) contentLength = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Transfer-Encoding")) isChunked = value.equalsIgnoreCase("chunked");
+				else if (name.equalsIgnoreCase("Connection")) close |= value.equalsIgnoreCase("close");
+			}
+			if (line == null) throw new IOException("Proxy closed the connection mid-head");
+			
+			// then the body
+			long received = 0;
+			if (isChunked) {
+				String chunkHead;
+				while ((chunkHead = StubOrigin.readLine(in)) != null) {
+					int chunkSize = Integer.parseInt(chunkHead.split(";")[0].trim(), 16);
+					if (chunkSize == 0) break;
+					skip(chunkSize + 2);
+					received += chunkSize;
+				}
+				while ((line = StubOrigin.readLine(in)) != null && !line.isEmpty()) {} // trailers
+			} else if (contentLength >= 0) {
+				skip(contentLength);
+				received = contentLength;
+			} else {
+				int n;
+				while ((n = in.read(scratch)) >= 0) received += n;
+				close = true;
+			}
+			
+			if (close) disconnect();
+			return received;
+		}
+		
+		private void skip(long n) throws IOException {
+			while (n > 0) {
+				int read = in.read(scratch, 0, (int) Math.min(n, scratch.length));
+				if (read < 0) throw new IOException("Proxy closed the connection mid-body");
+				n -= read;
+			}
+		}
+		
+		private void disconnect() {
+			if (socket == null) return;
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			socket = null;
+		}
+	}
+	
+	/**
+	 * Thrown when the proxy answers with something other than 200 OK
+	 */
+	static class StatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		StatusException(String statusLine) {
+			super(statusLine);
+		}
+	}
+}
@@ -0,0 +1,241 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+
+/**
+ * The proxy's hot paths, for BenchmarkRunner to time: parsing request and
+ * response heads, reading and relaying Content-Length and chunked bodies,
+ * writing heads, formatting dates and pages, and serving static files.
+ * Everything is fed from memory and written to a stream that throws its
+ * bytes away, so only the proxy's own code gets timed.
+ */
+public class ProxyBenchmarks {
+	
+	// a typical request from a browser to the proxy
+	static final String REQUEST_HEAD = "GET http://www.example.com/articles/2015/04/some-article.html?ref=front HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/42.0.2311.90 Safari/537.36\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n"
+			+ "Accept-Encoding: gzip, deflate, sdch\r\n"
+			+ "Accept-Language: en-US,en;q=0.8\r\n"
+			+ "Cookie: session=7d3b1f0c2a9e4b6d8f1a3c5e7b9d0f2a; theme=dark; _ga=GA1.2.1234567890.1428000000\r\n"
+			+ "Referer: http://www.example.com/\r\n"
+			+ "Proxy-Connection: keep-alive\r\n"
+			+ "Cache-Control: max-age=0\r\n"
+			+ "\r\n";
+	
+	// a typical response from a remote server
+	static final String RESPONSE_HEAD = "HTTP/1.1 200 OK\r\n"
+			+ "Date: Tue, 21 Apr 2015 18:30:00 GMT\r\n"
+			+ "Server: Apache/2.4.7 (Ubuntu)\r\n"
+			+ "Last-Modified: Mon, 20 Apr 2015 12:00:00 GMT\r\n"
+			+ "ETag: \"2b60-514c4e3ac0f00\"\r\n"
+			+ "Accept-Ranges: bytes\r\n"
+			+ "Cache-Control: max-age=300, public\r\n"
+			+ "Vary: Accept-Encoding\r\n"
+			+ "Content-Type: text/html; charset=UTF-8\r\n"
+			+ "Set-Cookie: a=1; Path=/\r\n"
+			+ "Set-Cookie: b=2; Path=/\r\n"
+			+ "Content-Length: 65536\r\n"
+			+ "\r\n";
+	
+	// size of the bodies that get read and relayed, and of the chunks they're split into
+	static final int BODY_SIZE = 64 * 1024;
+	static final int CHUNK_SIZE = 4096;
+	
+	// static files of a couple of sizes, under Utils.DOCUMENT_ROOT
+	static final String SMALL_FILE = "/test.txt";
+	static final String LARGE_FILE = "/css/bootstrap.min.css";
+	
+	// throws away whatever's written to it
+	static final OutputStream DISCARD = new OutputStream() {
+		public void write(int b) {}
+		public void write(byte[] b, int off, int len) {}
+	};
+	
+	/**
+	 * Gets every benchmark, in the order they're run
+	 */
+	static List<BenchmarkRunner.Benchmark> all() {
+		List<BenchmarkRunner.Benchmark> benchmarks = new ArrayList<BenchmarkRunner.Benchmark>();
+		
+		// parsing heads
+		benchmarks.add(parseHead("parseRequestHead", REQUEST_HEAD, true));
+		benchmarks.add(parseHead("parseResponseHead", RESPONSE_HEAD, false));
+		
+		// reading whole bodies into memory (the non-streaming path)
+		benchmarks.add(readBody("readFixedBody", false));
+		benchmarks.add(readBody("readChunkedBody", true));
+		
+		// relaying bodies as they arrive (the streaming path)
+		benchmarks.add(relayBody("relayFixedBody", false));
+		benchmarks.add(relayBody("relayChunkedBody", true));
+		
+		// writing heads
+		benchmarks.add(new BenchmarkRunner.Benchmark("writeResponseHead") {
+			Hashtable<String,String> headers;
+			
+			void setup() {
+				HttpParser parser = new HttpParser(false);
+				byte[] head = RESPONSE_HEAD.getBytes(StandardCharsets.ISO_8859_1);
+				parser.parse(head, head.length);
+				headers = parser.copyHeadersTo(new Hashtable<String,String>());
+			}
+			
+			long run() throws IOException {
+				HeadWriter head = HeadWriter.get().append("HTTP/1.1 200 OK")
+						.headers(headers).connection(true).end();
+				head.writeTo(DISCARD);
+				return head.length();
+			}
+		});
+		benchmarks.add(new BenchmarkRunner.Benchmark("writeRemoteRequestHead") {
+			Hashtable<String,String> headers;
+			HeadWriter head = new HeadWriter();
+			
+			void setup() {
+				HttpParser parser = new HttpParser(true);
+				byte[] request = REQUEST_HEAD.getBytes(StandardCharsets.ISO_8859_1);
+				parser.parse(request, request.length);
+				headers = parser.copyHeadersTo(new Hashtable<String,String>());
+			}
+			
+			long run() throws IOException {
+				head.reset().append("GET /articles/2015/04/some-article.html?ref=front HTTP/1.1");
+				RequestWorker.writeRemoteHeaders(head, "www.example.com", headers);
+				head.end().writeTo(DISCARD);
+				return head.length();
+			}
+		});
+		
+		// formatting
+		benchmarks.add(new BenchmarkRunner.Benchmark("formatDate") {
+			long time = System.currentTimeMillis();
+			
+			long run() {
+				// a new second every time, so nothing can be reused
+				time += 1000;
+				return Utils.getRFC1123Date(time).length();
+			}
+		});
+		benchmarks.add(new BenchmarkRunner.Benchmark("currentDate") {
+			long run() {
+				return Utils.getRFC1123Date().length();
+			}
+		});
+		benchmarks.add(new BenchmarkRunner.Benchmark("simpleHtmlMessage") {
+			long run() {
+				return Utils.getSimpleHtmlMessage("404 Not Found",
+						"The requested resource could not be found but may be available again in the future.").length();
+			}
+		});
+		
+		// serving static files, through the same path as a real request
+		benchmarks.add(serveStatic("serveSmallStaticFile", SMALL_FILE));
+		benchmarks.add(serveStatic("serveLargeStaticFile", LARGE_FILE));
+		
+		return benchmarks;
+	}
+	
+	private static BenchmarkRunner.Benchmark parseHead(String name, final String head, final boolean isRequest) {
+		return new BenchmarkRunner.Benchmark(name) {
+			byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+			HttpParser parser = new HttpParser(isRequest);
+			
+			long run() {
+				parser.reset();
+				return parser.parse(bytes, bytes.length) + parser.getHeaderCount();
+			}
+		};
+	}
+	
+	private static BenchmarkRunner.Benchmark readBody(String name, final boolean chunked) {
+		return new BenchmarkRunner.Benchmark(name) {
+			byte[] body = getBody(chunked);
+			RequestWorker worker = newWorker();
+			
+			long run() throws IOException {
+				BodyFramer framer = chunked ? BodyFramer.chunked() : BodyFramer.fixed(BODY_SIZE);
+				ByteArrayOutputStream read = new ByteArrayOutputStream();
+				if (!worker.relayBody(new ByteArrayInputStream(body), read, framer)) {
+					throw new IOException("Body wasn't read");
+				}
+				return read.size();
+			}
+		};
+	}
+	
+	private static BenchmarkRunner.Benchmark relayBody(String name, final boolean chunked) {
+		return new BenchmarkRunner.Benchmark(name) {
+			byte[] body = getBody(chunked);
+			RequestWorker worker = newWorker();
+			
+			long run() throws IOException {
+				BodyFramer framer = chunked ? BodyFramer.chunked() : BodyFramer.fixed(BODY_SIZE);
+				if (!worker.relayBody(new ByteArrayInputStream(body), DISCARD, framer)) {
+					throw new IOException("Body wasn't relayed");
+				}
+				return body.length;
+			}
+		};
+	}
+	
+	private static BenchmarkRunner.Benchmark serveStatic(String name, final String path) {
+		return new BenchmarkRunner.Benchmark(name) {
+			RequestWorker worker = newWorker();
+			Hashtable<String,String> headers = new Hashtable<String,String>();
+			
+			void setup() {
+				headers.put("host", "localhost");
+			}
+			
+			long run() throws IOException {
+				worker.respond(InternalServer.handle(worker.id, "GET", path, "localhost", headers));
+				return worker.responseStatus;
+			}
+		};
+	}
+	
+	/**
+	 * Makes a worker with no real connections, whose responses go nowhere
+	 */
+	private static RequestWorker newWorker() {
+		RequestWorker worker = new RequestWorker(new Socket(), 0);
+		worker.method = "GET";
+		worker.keepAlive = true;
+		worker.clientOut = new DataOutputStream(DISCARD);
+		return worker;
+	}
+	
+	/**
+	 * Makes a body of BODY_SIZE bytes, in CHUNK_SIZE chunks if it's chunked
+	 */
+	static byte[] getBody(boolean chunked) {
+		byte[] data = new byte[BODY_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + i % 26);
+		}
+		if (!chunked) return data;
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (int off = 0; off < data.length; off += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, data.length - off);
+			byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			body.write(size, 0, size.length);
+			body.write(data, off, length);
+			body.write('\r');
+			body.write('\n');
+		}
+		byte[] end = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		body.write(end, 0, end.length);
+		return body.toByteArray();
+	}
+}
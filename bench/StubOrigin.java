@@ -0,0 +1,256 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A stand-in remote server for load tests, listening on a free port on the
+ * loopback interface. What it sends back is decided by the query string of
+ * each request, so clients can ask for whatever they want to test:
+ * 
+ *   size=<bytes>     length of the body (default 1024)
+ *   chunked=true     send the body with chunked encoding instead of a Content-Length
+ *   delay=<millis>   wait this long before responding
+ *   cache=true       let the proxy cache the response (otherwise it's sent with no-store)
+ * 
+ * Connections are kept alive, and each one gets its own thread. To stand in
+ * for a backend that's struggling, an origin can be made to add a delay to
+ * every response, or to fail every request with a 503.
+ */
+public class StubOrigin {
+	
+	// size of the chunks chunked bodies are sent in
+	final static int CHUNK_SIZE = 8192;
+	
+	final String name; // used for naming threads, and sent in the Server header
+	private final ServerSocket serverSocket;
+	private final ExecutorService connections;
+	private volatile boolean running = true;
+	
+	volatile int extraDelay; // added to every response's delay, in milliseconds
+	volatile boolean failing; // answer every request with a 503?
+	
+	// a body's worth of bytes to send from (grown when someone asks for a bigger body)
+	private volatile byte[] filler = new byte[0];
+	
+	// statistics
+	final AtomicLong requests = new AtomicLong();
+	final AtomicInteger openConnections = new AtomicInteger();
+	
+	/**
+	 * Starts listening on a free port
+	 */
+	public StubOrigin(final String name) throws IOException {
+		this.name = name;
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		
+		connections = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, name + "-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * Gets the base URL of this origin, like "http://127.0.0.1:41234"
+	 */
+	public String getUrl() {
+		return "http://" + serverSocket.getInetAddress().getHostAddress() + ":" + getPort();
+	}
+	
+	/**
+	 * Stops accepting connections, and closes the ones that are open
+	 */
+	public void close() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {}
+		connections.shutdownNow();
+	}
+	
+	private void accept() {
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				connections.execute(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				if (running) System.err.println(name + ": failed to accept: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Answers requests on a connection until the client closes it
+	 */
+	private void serve(Socket socket) {
+		openConnections.incrementAndGet();
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			
+			String requestLine;
+			while ((requestLine = readLine(in)) != null) {
+				if (requestLine.isEmpty()) continue;
+				
+				// headers only matter for knowing whether to close
+				boolean close = false;
+				String line;
+				while ((line = readLine(in)) != null && !line.isEmpty()) {
+					if (line.regionMatches(true, 0, "Connection:", 0, 11) && line.toLowerCase().contains("close")) {
+						close = true;
+					}
+				}
+				if (line == null) break;
+				
+				requests.incrementAndGet();
+				respond(requestLine, close, out);
+				if (close) break;
+			}
+		
+		} catch (SocketException e) {
+			// the client went away
+		} catch (IOException e) {
+			if (running) System.err.println(name + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			// shutting down
+		} finally {
+			openConnections.decrementAndGet();
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	private void respond(String requestLine, boolean close, OutputStream out) throws IOException, InterruptedException {
+		String[] parts = requestLine.split(" ");
+		String target = (parts.length > 1) ? parts[1] : "/";
+		int size = getParam(target, "size", 1024);
+		boolean chunked = getParam(target, "chunked", 0) != 0;
+		int delay = getParam(target, "delay", 0);
+		boolean cacheable = getParam(target, "cache", 0) != 0;
+		boolean isHead = parts[0].equals("HEAD");
+		
+		delay += extraDelay;
+		if (delay > 0) Thread.sleep(delay);
+		
+		if (failing) {
+			out.write(("HTTP/1.1 503 Service Unavailable\r\nServer: " + name + "\r\nContent-Length: 0\r\n"
+					+ (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+			return;
+		}
+		
+		byte[] body = getFiller(size);
+		StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+		head.append("Server: ").append(name).append("\r\n");
+		head.append("Content-Type: application/octet-stream\r\n");
+		head.append(cacheable ? "Cache-Control: max-age=60\r\n" : "Cache-Control: no-store\r\n");
+		if (chunked) head.append("Transfer-Encoding: chunked\r\n");
+		else head.append("Content-Length: ").append(size).append("\r\n");
+		if (close) head.append("Connection: close\r\n");
+		head.append("\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		
+		if (!isHead) {
+			if (chunked) {
+				for (int off = 0; off < size; off += CHUNK_SIZE) {
+					int length = Math.min(CHUNK_SIZE, size - off);
+					out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+					out.write(body, off, length);
+					out.write('\r');
+					out.write('\n');
+				}
+				out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			} else {
+				out.write(body, 0, size);
+			}
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Gets at least size bytes of body to send
+	 */
+	private byte[] getFiller(int size) {
+		byte[] bytes = filler;
+		if (bytes.length >= size) return bytes;
+		bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) ('a' + i % 26);
+		}
+		filler = bytes;
+		return bytes;
+	}
+	
+	/**
+	 * Gets a number out of a request target's query string ("true" counts as 1)
+	 */
+	static int getParam(String target, String name, int defaultValue) {
+		int query = target.indexOf('?');
+		if (query < 0) return defaultValue;
+		for (String param : target.substring(query + 1).split("&")) {
+			int equals = param.indexOf('=');
+			if (equals < 0 || !param.substring(0, equals).equals(name)) continue;
+			String value = param.substring(equals + 1);
+			if (value.equals("true")) return 1;
+			if (value.equals("false")) return 0;
+			try {
+				return Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				return defaultValue;
+			}
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Reads a line ending in LF (or CRLF), without the line ending
+	 * 
+	 * @return the line, or null if the stream ended first
+	 */
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) return null;
+			if (b != '\r') line.append((char) b);
+		}
+		return line.toString();
+	}
+}
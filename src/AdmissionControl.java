@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Limits how many requests to remote servers may be in progress at once, so
+ * that when the proxy is overloaded, some requests fail fast instead of all
+ * of them slowing to a crawl. Past the limit, a few requests may wait in a
+ * queue for a slot to free up; the rest (and any that wait too long) are
+ * shed with a ready-made 503 that tells the client when to try again.
+ * 
+ * The limit is either fixed (Utils.MAX_CONCURRENT_REQUESTS), or adjusted
+ * as requests finish according to how long they took (Utils.ADAPTIVE_LIMIT).
+ * Shared by both engines; requests the proxy answers itself (including from
+ * the cache) don't need a slot.
+ */
+public class AdmissionControl {
+	
+	// what acquire() did with a request
+	static final int ADMITTED = 0; // it has a slot
+	static final int QUEUED = 1; // it's waiting for one (its Waiter gets told when it has one)
+	static final int REJECTED = 2; // the queue's full, so it should be shed
+	
+	// the gradient limiter's tuning: how far latency may rise over the usual before the limit
+	// shrinks, how quickly the short- and long-term latencies follow new ones, and how much
+	// of each new limit gets blended into the old one
+	final static double GRADIENT_TOLERANCE = 1.5;
+	final static double SHORT_LATENCY_WEIGHT = 0.1;
+	final static double LONG_LATENCY_WEIGHT = 1.0 / 500;
+	final static double GRADIENT_SMOOTHING = 0.2;
+	
+	// how much the aimd limiter keeps of the limit when it backs off
+	final static double AIMD_BACKOFF = 0.9;
+	
+	// the whole response sent to shed requests, built once
+	static final byte[] OVERLOADED_RESPONSE = renderOverloadedResponse();
+	
+	// the limits used by both engines
+	static final AdmissionControl shared = new AdmissionControl(Utils.MAX_CONCURRENT_REQUESTS,
+			Utils.MAX_QUEUED_REQUESTS, Utils.ADAPTIVE_LIMIT);
+	
+	/**
+	 * A request waiting in the queue for a slot
+	 */
+	static abstract class Waiter {
+		
+		/**
+		 * Called (on whichever thread freed it up) once the request has been given a slot
+		 */
+		abstract void admit();
+	}
+	
+	final boolean enabled; // is there a limit at all?
+	final String mode; // "off", "aimd" or "gradient"
+	private final int maxQueued;
+	private final double minLimit;
+	private final double maxLimit;
+	
+	// everything below is guarded by this
+	private double limit;
+	private int inFlight;
+	private final ArrayDeque<Waiter> waiting = new ArrayDeque<Waiter>();
+	private double shortLatency; // recent latency, in nanoseconds (0 until there's a sample)
+	private double longLatency; // usual latency, in nanoseconds
+	
+	// statistics
+	final AtomicLong admitted = new AtomicLong(); // requests given a slot right away
+	final AtomicLong queued = new AtomicLong(); // ...that had to wait for one first
+	final AtomicLong rejected = new AtomicLong(); // requests shed because the queue was full
+	final AtomicLong timedOut = new AtomicLong(); // ...because they waited too long
+	final AtomicLong turnedAway = new AtomicLong(); // connections shed before being served at all
+	
+	/**
+	 * @param maxConcurrent fixed limit, or the most an adaptive one may grow to (0 for none)
+	 * @param mode adaptive limiter to use ("aimd" or "gradient"), or "off"
+	 */
+	public AdmissionControl(int maxConcurrent, int maxQueued, String mode) {
+		if (!mode.equalsIgnoreCase("aimd") && !mode.equalsIgnoreCase("gradient")) {
+			if (!mode.equalsIgnoreCase("off")) {
+				Utils.logError("Unknown adaptive limit \"" + mode + "\"; using a fixed limit instead");
+			}
+			mode = "off";
+		}
+		this.mode = mode.toLowerCase();
+		this.maxQueued = Math.max(0, maxQueued);
+		
+		boolean adaptive = !this.mode.equals("off");
+		enabled = adaptive || maxConcurrent > 0;
+		maxLimit = (maxConcurrent > 0) ? maxConcurrent : Integer.MAX_VALUE;
+		minLimit = Math.min(Math.max(1, Utils.ADAPTIVE_MIN_LIMIT), maxLimit);
+		limit = adaptive ? Math.min(Math.max(Utils.ADAPTIVE_INITIAL_LIMIT, minLimit), maxLimit) : maxLimit;
+	}
+	
+	/**
+	 * Gives a request a slot if one is free, or puts it in the queue if there's room
+	 * 
+	 * @return ADMITTED, QUEUED (the waiter's admit() gets called later), or REJECTED
+	 */
+	public synchronized int acquire(Waiter waiter) {
+		if (inFlight < (int) limit && waiting.isEmpty()) {
+			inFlight++;
+			admitted.incrementAndGet();
+			return ADMITTED;
+		}
+		if (waiting.size() >= maxQueued) {
+			rejected.incrementAndGet();
+			return REJECTED;
+		}
+		waiting.add(waiter);
+		queued.incrementAndGet();
+		return QUEUED;
+	}
+	
+	/**
+	 * Gets a slot for the current thread, waiting in the queue for up to a while if need be
+	 * 
+	 * @return true if it got one, or false if the request should be shed
+	 */
+	public boolean acquire(long waitMillis) {
+		final CountDownLatch latch = new CountDownLatch(1);
+		Waiter waiter = new Waiter() {
+			void admit() {
+				latch.countDown();
+			}
+		};
+		
+		int result = acquire(waiter);
+		if (result != QUEUED) return result == ADMITTED;
+		try {
+			if (latch.await(waitMillis, TimeUnit.MILLISECONDS)) return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		// if it's not in the queue anymore, it was given a slot just now
+		return !giveUp(waiter);
+	}
+	
+	/**
+	 * Takes a request out of the queue
+	 * 
+	 * @return true if it was still waiting, or false if it's already been given a slot
+	 * (its admit() has been or is about to be called, and the slot has to be released)
+	 */
+	public boolean giveUp(Waiter waiter) {
+		synchronized (this) {
+			if (!waiting.remove(waiter)) return false;
+		}
+		timedOut.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Frees up the slot a request was holding, and lets the adaptive limiter
+	 * (if there is one) learn from how it went
+	 * 
+	 * @param nanos how long the request held its slot
+	 * @param failed did the request fail in a way that suggests overload (a timeout or 5xx)?
+	 */
+	public void release(long nanos, boolean failed) {
+		synchronized (this) {
+			inFlight--;
+			if (mode.equals("aimd")) updateAimd(nanos, failed);
+			else if (mode.equals("gradient")) updateGradient(nanos);
+		}
+		admitWaiting();
+	}
+	
+	/**
+	 * Frees up a slot without a latency to learn from
+	 */
+	public void release() {
+		synchronized (this) {
+			inFlight--;
+		}
+		admitWaiting();
+	}
+	
+	/**
+	 * Hands any free slots to requests in the queue (outside the lock, since
+	 * admitting one may run its code)
+	 */
+	private void admitWaiting() {
+		while (true) {
+			Waiter next;
+			synchronized (this) {
+				if (waiting.isEmpty() || inFlight >= (int) limit) return;
+				next = waiting.poll();
+				inFlight++;
+			}
+			next.admit();
+		}
+	}
+	
+	/**
+	 * Additive increase, multiplicative decrease: back off sharply on a sign
+	 * of overload, and otherwise creep back up by about one per limit's worth
+	 * of requests, as long as the limit's actually being used
+	 */
+	private void updateAimd(long nanos, boolean failed) {
+		if (failed || nanos > Utils.AIMD_LATENCY_THRESHOLD * 1000000L) {
+			limit = Math.max(minLimit, limit * AIMD_BACKOFF);
+		} else if ((inFlight + 1) * 2 >= limit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+	}
+	
+	/**
+	 * Compares recent latency to the usual latency: when requests start taking
+	 * longer than usual, they're queueing up somewhere, so the limit shrinks in
+	 * proportion; otherwise it grows by a little headroom (the square root of
+	 * the limit). The usual latency drifts down when load drops, so it can't
+	 * get stuck high.
+	 */
+	private void updateGradient(long nanos) {
+		if (shortLatency == 0) {
+			shortLatency = nanos;
+			longLatency = nanos;
+			return;
+		}
+		shortLatency += (nanos - shortLatency) * SHORT_LATENCY_WEIGHT;
+		longLatency += (nanos - longLatency) * LONG_LATENCY_WEIGHT;
+		if (longLatency > shortLatency * 2) longLatency *= 0.95;
+		
+		// while the limit isn't being used, latency says nothing about it
+		if ((inFlight + 1) * 2 < limit) return;
+		
+		double gradient = Math.max(0.5, Math.min(1.0, GRADIENT_TOLERANCE * longLatency / shortLatency));
+		double newLimit = limit * gradient + Math.sqrt(limit);
+		limit = limit * (1 - GRADIENT_SMOOTHING) + newLimit * GRADIENT_SMOOTHING;
+		limit = Math.min(maxLimit, Math.max(minLimit, limit));
+	}
+	
+	/**
+	 * Sends the overloaded response down a connection we won't be serving, and closes it
+	 */
+	public void turnAway(Socket socket) {
+		turnedAway.incrementAndGet();
+		try {
+			socket.getOutputStream().write(OVERLOADED_RESPONSE);
+			socket.shutdownOutput();
+		} catch (IOException e) {
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	public synchronized int getLimit() {
+		return (int) Math.min(limit, Integer.MAX_VALUE);
+	}
+	
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	public synchronized int getQueueLength() {
+		return waiting.size();
+	}
+	
+	/**
+	 * Summarizes the limiter's statistics, for logging
+	 */
+	public String getStats() {
+		return "limit=" + (enabled ? String.valueOf(getLimit()) : "none")
+				+ " admitted=" + admitted.get()
+				+ " queued=" + queued.get()
+				+ " rejected=" + rejected.get()
+				+ " timedOut=" + timedOut.get()
+				+ " turnedAway=" + turnedAway.get();
+	}
+	
+	private static byte[] renderOverloadedResponse() {
+		HttpStatus status = HttpStatus.SERVICE_UNAVAILABLE;
+		byte[] body = Utils.getSimpleHtmlMessage(status.getFullName(),
+				"The server is too busy to handle your request right now. Please try again shortly.")
+				.getBytes(StandardCharsets.UTF_8);
+		
+		String head = status.statusLine
+				+ Utils.httpHeader("Server", Utils.SERVER_NAME)
+				+ Utils.httpHeader("Retry-After", String.valueOf(Utils.RETRY_AFTER))
+				+ Utils.httpHeader("Content-Type", "text/html")
+				+ Utils.httpHeader("Content-Length", String.valueOf(body.length))
+				+ Utils.httpHeader("Connection", "close")
+				+ Utils.HTTP_HEADER_END;
+		byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+		
+		byte[] response = new byte[headBytes.length + body.length];
+		System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+		System.arraycopy(body, 0, response, headBytes.length, body.length);
+		return response;
+	}
+}
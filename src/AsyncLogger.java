@@ -0,0 +1,255 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Takes log messages off of the threads serving requests. Threads publish
+ * events into a bounded ring buffer without taking any locks, and a single
+ * background thread formats them and writes them out in batches, so
+ * workers never wait on each other for stdout. When the buffer is full,
+ * events are either dropped (and counted) or the publishing thread waits
+ * for room, depending on Utils.LOG_WHEN_FULL.
+ * 
+ * The ring buffer is a bounded multi-producer queue: each slot has a
+ * sequence number saying whether it's free for the producer that claimed
+ * that position or holds an event ready for the consumer.
+ */
+public class AsyncLogger {
+	
+	// the logger used by Utils when Utils.LOG_ASYNC is set
+	static final AsyncLogger shared = new AsyncLogger(Utils.LOG_BUFFER_SIZE,
+			!Utils.LOG_WHEN_FULL.equalsIgnoreCase("block"));
+	
+	// longest the writer thread sleeps when there's nothing to write, in nanoseconds
+	// (publishers wake it up as soon as there is)
+	final static long IDLE_PARK_NANOS = 100000000;
+	
+	// how long a publisher waits between checks for room in a full buffer, in nanoseconds
+	final static long FULL_PARK_NANOS = 100000;
+	
+	// most characters written out in one go
+	final static int MAX_BATCH_CHARS = 16384;
+	
+	private final Event[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final boolean dropWhenFull;
+	
+	private final AtomicLong tail = new AtomicLong(); // next position producers will claim
+	private long head; // next position the writer will read (only touched inside drain)
+	
+	private final Thread writer;
+	private volatile boolean running = true;
+	private volatile boolean sleeping; // is the writer parked (or about to be), waiting for events?
+	
+	// statistics
+	final AtomicLong published = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong blocked = new AtomicLong(); // times a thread had to wait for room
+	
+	/**
+	 * @param capacity most events that can be waiting at once (rounded up to a power of 2)
+	 * @param dropWhenFull drop events when the buffer is full, rather than wait for room?
+	 */
+	public AsyncLogger(int capacity, boolean dropWhenFull) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		slots = new Event[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Event();
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+		this.dropWhenFull = dropWhenFull;
+		
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeEvents();
+			}
+		}, "AsyncLogger");
+		writer.setDaemon(true);
+		writer.start();
+		
+		// write out whatever's left when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				close();
+			}
+		}, "AsyncLoggerShutdown"));
+	}
+	
+	/**
+	 * Logs a plain message
+	 */
+	public void log(String message, boolean isError) {
+		publish(-1, null, null, message, isError);
+	}
+	
+	/**
+	 * Logs a message about a request
+	 * 
+	 * @param id number identifying the connection the request came in on
+	 */
+	public void logRequest(int id, String message, boolean isError) {
+		publish(id, null, null, message, isError);
+	}
+	
+	/**
+	 * Logs a request being sent between servers (formatted later by Utils.formatConnection)
+	 */
+	public void logConnection(int id, Node from, Node to, String message) {
+		publish(id, from, to, message, false);
+	}
+	
+	/**
+	 * Puts an event in the ring buffer for the writer thread
+	 * 
+	 * @return false if the event was dropped because the buffer was full
+	 */
+	private boolean publish(int id, Node from, Node to, String message, boolean isError) {
+		boolean waited = false;
+		long position = tail.get();
+		while (true) {
+			int index = (int) (position & mask);
+			long diff = sequences.get(index) - position;
+			
+			if (diff == 0) {
+				// the slot is free; try to claim it
+				if (tail.compareAndSet(position, position + 1)) {
+					Event event = slots[index];
+					event.id = id;
+					event.from = from;
+					event.to = to;
+					event.message = message;
+					event.isError = isError;
+					// (a full write, so the writer can't go to sleep without either seeing
+					// this event or us seeing that it's asleep)
+					sequences.set(index, position + 1);
+					published.incrementAndGet();
+					if (sleeping) LockSupport.unpark(writer);
+					return true;
+				}
+				position = tail.get();
+			
+			} else if (diff < 0) {
+				// the buffer is full
+				if (dropWhenFull || !running) {
+					dropped.incrementAndGet();
+					return false;
+				}
+				if (!waited) {
+					blocked.incrementAndGet();
+					waited = true;
+				}
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+				position = tail.get();
+			
+			} else {
+				// another thread claimed this position first
+				position = tail.get();
+			}
+		}
+	}
+	
+	/**
+	 * Runs on the writer thread, writing events out until the logger is closed
+	 */
+	private void writeEvents() {
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		while (running) {
+			if (drain(out, err) > 0) continue;
+			
+			// say we're going to sleep before checking one last time, so that
+			// anyone publishing after the check knows to wake us up
+			sleeping = true;
+			if (running && !hasReady()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+			sleeping = false;
+		}
+	}
+	
+	/**
+	 * Is the next event ready to be written?
+	 */
+	private synchronized boolean hasReady() {
+		return sequences.get((int) (head & mask)) == head + 1;
+	}
+	
+	/**
+	 * Writes out every event that's ready, in batches
+	 * 
+	 * @return number of events written
+	 */
+	private synchronized int drain(StringBuilder out, StringBuilder err) {
+		int count = 0;
+		while (true) {
+			int index = (int) (head & mask);
+			if (sequences.get(index) != head + 1) break; // nothing more ready
+			
+			Event event = slots[index];
+			StringBuilder batch = event.isError ? err : out;
+			batch.append(event.format()).append(System.lineSeparator());
+			event.clear();
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+			count++;
+			
+			if (out.length() >= MAX_BATCH_CHARS) flush(System.out, out);
+			if (err.length() >= MAX_BATCH_CHARS) flush(System.err, err);
+		}
+		flush(System.out, out);
+		flush(System.err, err);
+		return count;
+	}
+	
+	private static void flush(PrintStream stream, StringBuilder batch) {
+		if (batch.length() == 0) return;
+		stream.print(batch);
+		stream.flush();
+		batch.setLength(0);
+	}
+	
+	/**
+	 * Stops the writer thread after writing out everything that's been published
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		drain(new StringBuilder(), new StringBuilder());
+	}
+	
+	/**
+	 * Summarizes the logger's statistics, for logging
+	 */
+	public String getStats() {
+		return "published=" + published.get()
+				+ " dropped=" + dropped.get()
+				+ " blocked=" + blocked.get();
+	}
+	
+	
+	/**
+	 * One log event, reused for every event that passes through its slot
+	 */
+	private static class Event {
+		int id; // connection the event is about, or -1
+		Node from; // set (along with to) for connection events
+		Node to;
+		String message;
+		boolean isError;
+		
+		String format() {
+			if (from != null) return Utils.formatConnection(id, from, to, message);
+			if (id >= 0) return Utils.formatRequest(id, message);
+			return message;
+		}
+		
+		void clear() {
+			from = null;
+			to = null;
+			message = null;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+
+
+/**
+ * Keeps track of where an HTTP message body ends while its bytes are passed
+ * along untouched, so bodies can be relayed without being buffered or
+ * re-encoded. Handles Content-Length, chunked, and read-until-close framing.
+ */
+public class BodyFramer {
+	
+	enum Framing {
+		NONE, // there's no body at all
+		FIXED, // Content-Length bytes
+		CHUNKED, // chunked transfer-encoding
+		UNTIL_CLOSE // everything until the sender closes the connection
+	}
+	
+	// where we are within a chunked body
+	private enum ChunkState {
+		SIZE, SIZE_EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF,
+		TRAILER_START, TRAILER_LINE, TRAILER_LF, FINAL_LF, DONE
+	}
+	
+	final Framing framing;
+	
+	private long remaining; // bytes left in the body (FIXED) or current chunk (CHUNKED)
+	private ChunkState chunkState = ChunkState.SIZE;
+	private boolean sawSizeDigit;
+	private boolean closed; // has the sender closed the connection? (UNTIL_CLOSE)
+	
+	private BodyFramer(Framing framing, long length) {
+		this.framing = framing;
+		this.remaining = length;
+	}
+	
+	public static BodyFramer none() {
+		return new BodyFramer(Framing.NONE, 0);
+	}
+	
+	public static BodyFramer fixed(long length) {
+		return new BodyFramer(Framing.FIXED, length);
+	}
+	
+	public static BodyFramer chunked() {
+		return new BodyFramer(Framing.CHUNKED, 0);
+	}
+	
+	public static BodyFramer untilClose() {
+		return new BodyFramer(Framing.UNTIL_CLOSE, 0);
+	}
+	
+	/**
+	 * Works out how a message's body is framed from its headers
+	 * 
+	 * @param headers message headers, keyed by lowercase name
+	 * @param untilCloseIfUnframed if true, a message with neither Content-Length nor
+	 * chunked encoding is read until close (responses); if false, it has no body (requests)
+	 * @return the framer, or null if the framing headers are invalid
+	 */
+	public static BodyFramer forHeaders(Hashtable<String,String> headers, boolean untilCloseIfUnframed) {
+		if (headers.containsKey("transfer-encoding")) {
+			// we do not support any transfer-encoding methods besides chunked
+			if (!headers.get("transfer-encoding").equalsIgnoreCase("chunked")) return null;
+			return chunked();
+			
+		} else if (headers.containsKey("content-length")) {
+			try {
+				long length = Long.parseLong(headers.get("content-length").trim());
+				if (length < 0) return null;
+				return fixed(length);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return untilCloseIfUnframed ? untilClose() : none();
+	}
+	
+	/**
+	 * Works out how a response's body is framed
+	 * 
+	 * @param requestMethod method of the request being responded to
+	 * @param statusCode status of the response
+	 * @param headers response headers, keyed by lowercase name
+	 * @return the framer, or null if the framing headers are invalid
+	 */
+	public static BodyFramer forResponse(String requestMethod, int statusCode, Hashtable<String,String> headers) {
+		// these responses never have a body, whatever their headers say
+		if (requestMethod.equalsIgnoreCase("HEAD") || statusCode < 200
+				|| statusCode == 204 || statusCode == 304) {
+			return none();
+		}
+		return forHeaders(headers, true);
+	}
+	
+	/**
+	 * Has the whole body gone by?
+	 */
+	public boolean isComplete() {
+		switch (framing) {
+		case NONE:
+			return true;
+		case FIXED:
+			return remaining == 0;
+		case CHUNKED:
+			return chunkState == ChunkState.DONE;
+		default:
+			return closed;
+		}
+	}
+	
+	/**
+	 * Tells the framer that the sender closed the connection
+	 * 
+	 * @return true if that was a legitimate end of the body
+	 */
+	public boolean close() {
+		closed = true;
+		return framing == Framing.UNTIL_CLOSE || isComplete();
+	}
+	
+	/**
+	 * Scans bytes that are about to be passed along, without consuming them
+	 * 
+	 * @param buf bytes between position and limit are scanned
+	 * @return how many of those bytes belong to the body; anything after them
+	 * belongs to the next message
+	 */
+	public int scan(ByteBuffer buf) throws IOException {
+		if (buf.hasArray()) return scan(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		
+		// direct buffers have to be copied out to be scanned
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return scan(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Like scan(ByteBuffer), but for a plain array
+	 * 
+	 * @param buf bytes from off to off + len are scanned
+	 */
+	public int scan(byte[] buf, int off, int len) throws IOException {
+		switch (framing) {
+		case NONE:
+			return 0;
+		case FIXED:
+			int n = (int) Math.min(remaining, len);
+			remaining -= n;
+			return n;
+		case UNTIL_CLOSE:
+			return len;
+		default:
+			return scanChunked(buf, off, off + len) - off;
+		}
+	}
+	
+	/**
+	 * Walks through chunk headers, data, and trailers
+	 * 
+	 * @return index just past the last byte that belongs to the body
+	 */
+	private int scanChunked(byte[] buf, int i, int end) throws IOException {
+		while (i < end && chunkState != ChunkState.DONE) {
+			
+			if (chunkState == ChunkState.DATA) {
+				// skip over the chunk's data all at once
+				int n = (int) Math.min(remaining, end - i);
+				remaining -= n;
+				i += n;
+				if (remaining == 0) chunkState = ChunkState.DATA_CR;
+				continue;
+			}
+			
+			byte b = buf[i++];
+			switch (chunkState) {
+			case SIZE:
+				int digit = Character.digit(b, 16);
+				if (digit >= 0) {
+					if (remaining > (Long.MAX_VALUE >> 4)) throw new IOException("Chunk size too large");
+					remaining = remaining * 16 + digit;
+					sawSizeDigit = true;
+				} else if (sawSizeDigit && (b == ';' || b == ' ' || b == '\t')) {
+					chunkState = ChunkState.SIZE_EXTENSION;
+				} else if (sawSizeDigit && b == '\r') {
+					chunkState = ChunkState.SIZE_LF;
+				} else {
+					throw new IOException("Invalid chunk size");
+				}
+				break;
+			case SIZE_EXTENSION:
+				if (b == '\r') chunkState = ChunkState.SIZE_LF;
+				break;
+			case SIZE_LF:
+				if (b != '\n') throw new IOException("Invalid chunk header");
+				chunkState = (remaining == 0) ? ChunkState.TRAILER_START : ChunkState.DATA;
+				break;
+			case DATA_CR:
+				if (b != '\r') throw new IOException("Missing CRLF after chunk");
+				chunkState = ChunkState.DATA_LF;
+				break;
+			case DATA_LF:
+				if (b != '\n') throw new IOException("Missing CRLF after chunk");
+				chunkState = ChunkState.SIZE;
+				sawSizeDigit = false;
+				break;
+			case TRAILER_START:
+				chunkState = (b == '\r') ? ChunkState.FINAL_LF : ChunkState.TRAILER_LINE;
+				break;
+			case TRAILER_LINE:
+				if (b == '\r') chunkState = ChunkState.TRAILER_LF;
+				break;
+			case TRAILER_LF:
+				if (b != '\n') throw new IOException("Invalid chunk trailer");
+				chunkState = ChunkState.TRAILER_START;
+				break;
+			case FINAL_LF:
+				if (b != '\n') throw new IOException("Invalid end of chunked body");
+				chunkState = ChunkState.DONE;
+				break;
+			default:
+				break;
+			}
+		}
+		return i;
+	}
+}
@@ -0,0 +1,90 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Revalidates stale cached responses in the background, for responses the
+ * remote server lets us keep serving stale while we do (stale-while-revalidate).
+ * Only one revalidation per cache key runs at a time, on a small pool of its
+ * own so it can't take threads from clients; when the pool's backed up,
+ * revalidations are skipped, and the next request to find the response stale
+ * tries again.
+ */
+public class CacheRevalidator {
+	
+	// most revalidations waiting for a thread before more get skipped
+	final static int MAX_QUEUED = 1000;
+	
+	// the revalidator used by every RequestWorker
+	static final CacheRevalidator shared = new CacheRevalidator(Utils.REVALIDATION_THREADS);
+	
+	private final ThreadPoolExecutor executor;
+	
+	// keys being revalidated (or waiting to be)
+	private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	
+	// statistics
+	final AtomicLong started = new AtomicLong(); // revalidations handed to the pool
+	final AtomicLong skipped = new AtomicLong(); // ...not, because the pool was backed up
+	
+	public CacheRevalidator(int threads) {
+		threads = Math.max(1, threads);
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "CacheRevalidator-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Runs a revalidation in the background, unless one for the same key is already going
+	 * 
+	 * @return true if this one's going to run
+	 */
+	public boolean revalidate(final String key, final Runnable task) {
+		if (!pending.add(key)) return false;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						pending.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(key);
+			skipped.incrementAndGet();
+			return false;
+		}
+		started.incrementAndGet();
+		return true;
+	}
+	
+	public int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * Summarizes the revalidator's statistics, for logging
+	 */
+	public String getStats() {
+		return "started=" + started.get()
+				+ " skipped=" + skipped.get()
+				+ " pending=" + getPendingCount();
+	}
+}
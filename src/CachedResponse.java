@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.util.Hashtable;
+
+
+/**
+ * A response from a remote server kept by the ResponseCache, along with
+ * what's needed to tell how fresh it still is (RFC 7234 section 4.2)
+ */
+public class CachedResponse {
+	
+	final String key; // cache key this response is stored under
+	final String statusLine; // status line as the remote server sent it
+	final int statusCode;
+	final Hashtable<String,String> headers; // remote headers, keyed by lowercase name
+	final byte[] body; // body exactly as the remote server framed it (null if it's on disk)
+	
+	// where the body is, if this response came from the DiskCache
+	DiskCache.Segment segment;
+	long bodyOffset;
+	int bodyLength;
+	
+	final long requestTime; // when we sent the request that got this response
+	final long responseTime; // when the response arrived
+	final long dateValue; // the response's Date header, or responseTime if it had none
+	final long ageValue; // the response's Age header, in milliseconds
+	final long freshnessLifetime; // how long the response stays fresh, in milliseconds
+	final long staleWhileRevalidate; // how long past that it may be served while we revalidate it, in milliseconds
+	final long staleIfError; // how long past that it may be served if the remote server fails, in milliseconds
+	final boolean mustRevalidate; // may it never be served stale?
+	
+	public CachedResponse(String key, String statusLine, int statusCode, Hashtable<String,String> headers,
+			byte[] body, long requestTime, long responseTime) {
+		this.key = key;
+		this.statusLine = statusLine;
+		this.statusCode = statusCode;
+		this.headers = new Hashtable<String,String>(headers);
+		this.body = body;
+		this.bodyLength = (body == null) ? 0 : body.length;
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+		
+		long date = parseHttpDate(headers.get("date"));
+		this.dateValue = (date < 0) ? responseTime : date;
+		this.ageValue = Math.max(0, parseSeconds(headers.get("age"))) * 1000;
+		this.freshnessLifetime = getFreshnessLifetime(headers);
+		
+		Hashtable<String,String> cacheControl = parseCacheControl(headers.get("cache-control"));
+		this.staleWhileRevalidate = Math.max(0, parseSeconds(cacheControl.get("stale-while-revalidate"))) * 1000;
+		this.staleIfError = Math.max(0, parseSeconds(cacheControl.get("stale-if-error"))) * 1000;
+		this.mustRevalidate = cacheControl.containsKey("must-revalidate") || cacheControl.containsKey("proxy-revalidate");
+		
+		// we send our own Age when serving this response
+		this.headers.remove("age");
+	}
+	
+	/**
+	 * Gets how old this response is now, in milliseconds
+	 */
+	public long getCurrentAge(long now) {
+		long apparentAge = Math.max(0, responseTime - dateValue);
+		long correctedAgeValue = ageValue + (responseTime - requestTime);
+		long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+		return correctedInitialAge + (now - responseTime);
+	}
+	
+	/**
+	 * Can this response still be used without checking with the remote server?
+	 */
+	public boolean isFresh(long now) {
+		return freshnessLifetime > getCurrentAge(now);
+	}
+	
+	/**
+	 * Can this response be served even though it's stale, given how stale
+	 * the remote server lets it get (staleWhileRevalidate or staleIfError)?
+	 */
+	public boolean canServeStale(long now, long allowance) {
+		return !mustRevalidate && getCurrentAge(now) - freshnessLifetime <= allowance;
+	}
+	
+	/**
+	 * Does this response have a validator (ETag or Last-Modified) to check it with the remote server?
+	 */
+	public boolean isRevalidatable() {
+		return headers.containsKey("etag") || headers.containsKey("last-modified");
+	}
+	
+	/**
+	 * Gets how long after it goes stale this response is still worth keeping:
+	 * for as long as it may be served stale, or if it can be revalidated,
+	 * for Utils.CACHE_STALE_RETENTION
+	 */
+	public long getStaleRetention() {
+		long retention = Math.max(staleWhileRevalidate, staleIfError);
+		if (isRevalidatable()) retention = Math.max(retention, Utils.CACHE_STALE_RETENTION);
+		return retention;
+	}
+	
+	/**
+	 * Gets the body, reading it from the disk cache if that's where it is
+	 */
+	public byte[] readBody() throws IOException {
+		if (body != null) return body;
+		return segment.read(bodyOffset, bodyLength);
+	}
+	
+	/**
+	 * Gets roughly how much memory this response takes up, in bytes
+	 */
+	public int getSize() {
+		int size = bodyLength + statusLine.length() + key.length();
+		for (String name : headers.keySet()) {
+			size += name.length() + headers.get(name).length();
+		}
+		return size;
+	}
+	
+	/**
+	 * Sends a body that's in the disk cache straight from its segment file
+	 */
+	public void transferBody(WritableByteChannel target) throws IOException {
+		segment.transferTo(bodyOffset, bodyLength, target);
+	}
+	
+	/**
+	 * Lets go of the disk cache segment holding the body, if there is one
+	 * (must be called once the response has been sent)
+	 */
+	public void release() {
+		if (segment != null) {
+			segment.release();
+			segment = null;
+		}
+	}
+	
+	/**
+	 * Works out how long a response stays fresh, from its Cache-Control or Expires headers
+	 * 
+	 * @return lifetime in milliseconds, or 0 if the response says nothing about it
+	 */
+	static long getFreshnessLifetime(Hashtable<String,String> headers) {
+		Hashtable<String,String> cacheControl = parseCacheControl(headers.get("cache-control"));
+		
+		// a shared cache like us goes by s-maxage first
+		long seconds = parseSeconds(cacheControl.get("s-maxage"));
+		if (seconds < 0) seconds = parseSeconds(cacheControl.get("max-age"));
+		if (seconds >= 0) return seconds * 1000;
+		
+		long expires = parseHttpDate(headers.get("expires"));
+		if (headers.containsKey("expires") && expires < 0) return 0; // invalid dates mean already expired
+		if (expires >= 0) {
+			long date = parseHttpDate(headers.get("date"));
+			if (date < 0) date = System.currentTimeMillis();
+			return Math.max(0, expires - date);
+		}
+		return 0;
+	}
+	
+	/**
+	 * Splits a Cache-Control header into its directives
+	 * 
+	 * @return directive values keyed by lowercase name (directives without a value map to "")
+	 */
+	static Hashtable<String,String> parseCacheControl(String value) {
+		Hashtable<String,String> directives = new Hashtable<String,String>();
+		if (value == null) return directives;
+		
+		// repeated headers are joined by CRLFs, and their directives by commas
+		for (String directive : value.split(",|" + Utils.CRLF)) {
+			directive = directive.trim();
+			if (directive.isEmpty()) continue;
+			
+			int equals = directive.indexOf('=');
+			if (equals < 0) {
+				directives.put(directive.toLowerCase(), "");
+			} else {
+				String directiveValue = directive.substring(equals + 1).trim();
+				if (directiveValue.startsWith("\"") && directiveValue.endsWith("\"") && directiveValue.length() >= 2) {
+					directiveValue = directiveValue.substring(1, directiveValue.length() - 1);
+				}
+				directives.put(directive.substring(0, equals).trim().toLowerCase(), directiveValue);
+			}
+		}
+		return directives;
+	}
+	
+	/**
+	 * Parses a number of seconds (from an Age header or a max-age directive)
+	 * 
+	 * @return the number, or -1 if there isn't a valid one
+	 */
+	static long parseSeconds(String value) {
+		if (value == null) return -1;
+		try {
+			long seconds = Long.parseLong(value.trim());
+			return (seconds < 0) ? -1 : seconds;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Parses an RFC 1123 formatted date (like the ones in Date and Expires headers)
+	 * 
+	 * @return milliseconds since the epoch, or -1 if it's not a valid date
+	 */
+	static long parseHttpDate(String value) {
+		if (value == null) return -1;
+		try {
+			return Utils.parseRFC1123Date(value.trim());
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+}
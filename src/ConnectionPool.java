@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Keeps idle connections to remote servers open, keyed by host:port, so that
+ * later requests to the same server can skip connecting. Shared by all
+ * RequestWorkers.
+ */
+public class ConnectionPool {
+	
+	// the pool used by every RequestWorker
+	static final ConnectionPool shared = new ConnectionPool();
+	
+	// idle connections for each host:port, most recently used first
+	private final ConcurrentHashMap<String,ConcurrentLinkedDeque<RemoteConnection>> idle =
+			new ConcurrentHashMap<String,ConcurrentLinkedDeque<RemoteConnection>>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	
+	// statistics
+	final AtomicLong checkouts = new AtomicLong(); // connections handed out
+	final AtomicLong reuses = new AtomicLong(); // ...that were already open
+	final AtomicLong staleDiscards = new AtomicLong(); // idle connections that failed their health check
+	final AtomicLong evictions = new AtomicLong(); // idle connections closed for sitting too long
+	
+	private ConnectionPool() {
+		Thread evictor = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(Math.max(1000, Utils.POOL_IDLE_TIMEOUT / 2));
+					} catch (InterruptedException e) {
+						return;
+					}
+					evictIdle();
+				}
+			}
+		}, "ConnectionPoolEvictor");
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+	
+	static String getKey(String hostname, int port) {
+		return hostname.toLowerCase() + ":" + port;
+	}
+	
+	/**
+	 * Gets a connection to a remote server, reusing an idle one if there's a good one
+	 * 
+	 * @param timing gets the time spent opening a new connection, if one is needed; may be null
+	 */
+	public RemoteConnection checkout(String hostname, int port, RequestTiming timing) throws IOException {
+		return checkout(hostname, port, timing, false);
+	}
+	
+	/**
+	 * Gets a connection to a remote server
+	 * 
+	 * @param freshOnly if true, a new connection is always opened, for retrying
+	 * a request that a pooled one failed (its siblings are likely just as stale)
+	 */
+	public RemoteConnection checkout(String hostname, int port, RequestTiming timing, boolean freshOnly) throws IOException {
+		checkouts.incrementAndGet();
+		
+		ConcurrentLinkedDeque<RemoteConnection> connections = freshOnly ? null : idle.get(getKey(hostname, port));
+		if (connections != null) {
+			long now = System.currentTimeMillis();
+			RemoteConnection connection;
+			while ((connection = connections.pollFirst()) != null) {
+				idleCount.decrementAndGet();
+				
+				if (now - connection.lastUsed < Utils.POOL_IDLE_TIMEOUT && connection.isHealthy()) {
+					reuses.incrementAndGet();
+					connection.uses++;
+					return connection;
+				}
+				staleDiscards.incrementAndGet();
+				connection.close();
+			}
+		}
+		
+		RemoteConnection connection = RemoteConnection.open(hostname, port, timing);
+		connection.uses++;
+		return connection;
+	}
+	
+	/**
+	 * Gives back a connection once a request is done with it
+	 * 
+	 * @param reusable true only if the response was read completely, and the
+	 * remote server is willing to take another request on this connection
+	 */
+	public void release(RemoteConnection connection, boolean reusable) {
+		if (!reusable || !Utils.ENABLE_CONNECTION_POOL || !ProxyServer.isAlive) {
+			connection.close();
+			return;
+		}
+		
+		ConcurrentLinkedDeque<RemoteConnection> connections = idle.get(connection.key);
+		if (connections == null) {
+			connections = new ConcurrentLinkedDeque<RemoteConnection>();
+			ConcurrentLinkedDeque<RemoteConnection> existing = idle.putIfAbsent(connection.key, connections);
+			if (existing != null) connections = existing;
+		}
+		
+		// don't keep more idle connections around than we're allowed
+		if (connections.size() >= Utils.POOL_MAX_IDLE_PER_HOST) {
+			connection.close();
+			return;
+		}
+		if (idleCount.incrementAndGet() > Utils.POOL_MAX_IDLE_TOTAL) {
+			idleCount.decrementAndGet();
+			connection.close();
+			return;
+		}
+		
+		connection.lastUsed = System.currentTimeMillis();
+		connections.offerFirst(connection);
+	}
+	
+	/**
+	 * Closes connections that have been idle for too long
+	 */
+	void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (ConcurrentLinkedDeque<RemoteConnection> connections : idle.values()) {
+			Iterator<RemoteConnection> it = connections.iterator();
+			while (it.hasNext()) {
+				RemoteConnection connection = it.next();
+				if (now - connection.lastUsed >= Utils.POOL_IDLE_TIMEOUT && connections.remove(connection)) {
+					idleCount.decrementAndGet();
+					evictions.incrementAndGet();
+					connection.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of idle connections currently being held open
+	 */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+	
+	/**
+	 * Gets the fraction of checkouts that reused an open connection
+	 */
+	public double getReuseRate() {
+		long total = checkouts.get();
+		return (total == 0) ? 0 : (double) reuses.get() / total;
+	}
+	
+	/**
+	 * Summarizes the pool's statistics, for logging
+	 */
+	public String getStats() {
+		return "checkouts=" + checkouts.get()
+				+ " reuses=" + reuses.get()
+				+ " reuseRate=" + String.format("%.1f%%", getReuseRate() * 100)
+				+ " idle=" + getIdleCount()
+				+ " staleDiscards=" + staleDiscards.get()
+				+ " evictions=" + evictions.get();
+	}
+}
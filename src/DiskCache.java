@@ -0,0 +1,746 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A second, bigger tier under the ResponseCache that keeps responses on disk.
+ * 
+ * Responses are appended to large segment files, and a compact in-memory
+ * index maps each cache key to where its record lives. Bodies are sent
+ * from the segment files into the client's socket with FileChannel.transferTo,
+ * without being copied through the heap. When the cache
+ * runs out of room, whole segments are dropped oldest first, and a background
+ * thread rewrites segments that are mostly dead records. The index is saved
+ * next to the segments, so the cache comes back warm after a restart.
+ */
+public class DiskCache {
+	
+	final static int RECORD_MAGIC = 0x41505243; // "APRC"
+	final static int INDEX_MAGIC = 0x41504958; // "APIX"
+	final static int INDEX_VERSION = 1;
+	
+	// bytes in a record besides its key, head and body
+	final static int RECORD_OVERHEAD = 4 + 4 + 4 + 8 + 8 + 4;
+	
+	// sealed segments with less than this share of live records get compacted
+	final static double COMPACT_THRESHOLD = 0.5;
+	
+	final static String INDEX_FILE = "index";
+	final static String SEGMENT_PREFIX = "segment-";
+	final static String SEGMENT_SUFFIX = ".dat";
+	final static Charset UTF8 = Charset.forName("UTF-8"); // what keys are stored in
+	final static Charset LATIN1 = Charset.forName("ISO-8859-1"); // what http heads are stored in
+	
+	private final File dir;
+	private final long maxBytes;
+	private final int segmentSize;
+	
+	// where the record for each cache key lives
+	private final ConcurrentHashMap<String,Entry> index = new ConcurrentHashMap<String,Entry>();
+	
+	// which request headers each URL's responses vary on, going by the stored records
+	final ConcurrentHashMap<String,String[]> varyHeaders = new ConcurrentHashMap<String,String[]>();
+	
+	// every segment, oldest first (guarded by this)
+	private final TreeMap<Integer,Segment> segments = new TreeMap<Integer,Segment>();
+	private Segment active; // the segment new records are appended to
+	private volatile boolean indexDirty; // has the index changed since it was last saved?
+	
+	// statistics
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong stores = new AtomicLong();
+	final AtomicLong droppedSegments = new AtomicLong(); // segments deleted to make room
+	final AtomicLong compactions = new AtomicLong(); // segments rewritten to reclaim dead records
+	
+	/**
+	 * Opens the disk cache configured in Utils, logging and returning null if it can't be
+	 */
+	static DiskCache open() {
+		try {
+			DiskCache cache = new DiskCache(new File(Utils.DISK_CACHE_DIR),
+					Utils.DISK_CACHE_SIZE, Utils.DISK_CACHE_SEGMENT_SIZE);
+			Utils.log("Disk cache: loaded " + cache.index.size() + " responses from " + cache.dir.getAbsolutePath());
+			return cache;
+		} catch (IOException e) {
+			Utils.logError("Failed to open disk cache: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	public DiskCache(File dir, long maxBytes, int segmentSize) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.segmentSize = segmentSize;
+		
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Couldn't create " + dir.getAbsolutePath());
+		}
+		load();
+		
+		Thread maintainer = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(Utils.DISK_CACHE_MAINTENANCE_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+					maintain();
+				}
+			}
+		}, "DiskCacheMaintainer");
+		maintainer.setDaemon(true);
+		maintainer.start();
+	}
+	
+	/**
+	 * Looks up the response stored under a cache key. The response's body
+	 * stays on disk, and its segment is kept open until the response is
+	 * released.
+	 * 
+	 * @return the response, or null if there isn't one
+	 */
+	public CachedResponse lookup(String key) {
+		Entry entry = index.get(key);
+		if (entry == null || !entry.segment.retain()) return null;
+		
+		try {
+			Record record = readRecord(entry.segment, entry.offset);
+			if (!record.key.equals(key)) throw new IOException("record doesn't match the index");
+			
+			CachedResponse cached = new CachedResponse(key, record.statusLine,
+					record.statusCode, record.headers, null, record.requestTime, record.responseTime);
+			cached.segment = entry.segment;
+			cached.bodyOffset = record.bodyOffset;
+			cached.bodyLength = record.bodyLength;
+			hits.incrementAndGet();
+			return cached;
+		
+		} catch (IOException e) {
+			Utils.logError("Disk cache: couldn't read " + key + " from " + entry.segment.file + ": " + e.getMessage());
+			entry.segment.release();
+			remove(key, entry);
+			return null;
+		}
+	}
+	
+	/**
+	 * Appends a response to the active segment, replacing any older copy
+	 */
+	public void store(CachedResponse cached) {
+		byte[] record;
+		try {
+			record = encodeRecord(cached);
+		} catch (IOException e) {
+			return; // can't happen writing to memory
+		}
+		
+		synchronized (this) {
+			try {
+				Entry replaced = index.put(cached.key, append(record, getKeepUntil(cached)));
+				if (replaced != null) replaced.segment.liveBytes.addAndGet(-replaced.length);
+			} catch (IOException e) {
+				Utils.logError("Disk cache: failed to store " + cached.key + ": " + e.getMessage());
+				return;
+			}
+			dropOldSegments();
+		}
+		
+		String primaryKey = ResponseCache.getPrimaryKey(cached.key);
+		String[] varyNames = ResponseCache.parseVary(cached.headers.get("vary"));
+		if (varyNames == null) {
+			varyHeaders.remove(primaryKey);
+		} else {
+			varyHeaders.put(primaryKey, varyNames);
+		}
+		
+		stores.incrementAndGet();
+		indexDirty = true;
+	}
+	
+	/**
+	 * Forgets every response stored under a primary key, whatever it varied on
+	 * (the records stay in their segments until compaction or eviction)
+	 */
+	public void invalidate(String primaryKey) {
+		if (varyHeaders.remove(primaryKey) == null) {
+			Entry entry = index.get(primaryKey);
+			if (entry == null) return;
+			remove(primaryKey, entry);
+		} else {
+			for (Map.Entry<String,Entry> mapping : index.entrySet()) {
+				if (ResponseCache.getPrimaryKey(mapping.getKey()).equals(primaryKey)) {
+					remove(mapping.getKey(), mapping.getValue());
+				}
+			}
+		}
+		indexDirty = true;
+	}
+	
+	/**
+	 * Saves the index, so it's ready for the next time the proxy starts
+	 */
+	public void save() {
+		saveIndex();
+	}
+	
+	/**
+	 * Gets the total size of the segment files, in bytes
+	 */
+	public synchronized long getSize() {
+		long size = 0;
+		for (Segment segment : segments.values()) {
+			size += segment.size;
+		}
+		return size;
+	}
+	
+	/**
+	 * Summarizes the disk cache's statistics, for logging
+	 */
+	public String getStats() {
+		return "responses=" + index.size()
+				+ " hits=" + hits.get()
+				+ " stores=" + stores.get()
+				+ " segments=" + getSegmentCount()
+				+ " bytes=" + getSize()
+				+ " droppedSegments=" + droppedSegments.get()
+				+ " compactions=" + compactions.get();
+	}
+	
+	synchronized int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/**
+	 * Drops responses that are past keeping, compacts mostly dead segments,
+	 * and saves the index if it's changed. Runs periodically on the
+	 * maintenance thread.
+	 */
+	void maintain() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String,Entry> mapping : index.entrySet()) {
+			if (mapping.getValue().keepUntil < now) remove(mapping.getKey(), mapping.getValue());
+		}
+		
+		ArrayList<Segment> sealed;
+		synchronized (this) {
+			sealed = new ArrayList<Segment>(segments.values());
+			sealed.remove(active);
+		}
+		for (Segment segment : sealed) {
+			if (segment.liveBytes.get() < segment.size * COMPACT_THRESHOLD) {
+				try {
+					compact(segment);
+				} catch (IOException e) {
+					Utils.logError("Disk cache: failed to compact " + segment.file + ": " + e.getMessage());
+				}
+			}
+		}
+		
+		if (indexDirty) saveIndex();
+	}
+	
+	/**
+	 * Copies a segment's live records to the active segment, then deletes it
+	 */
+	private void compact(Segment segment) throws IOException {
+		for (Map.Entry<String,Entry> mapping : index.entrySet()) {
+			Entry entry = mapping.getValue();
+			if (entry.segment != segment) continue;
+			
+			ByteBuffer record = ByteBuffer.allocate(entry.length);
+			readFully(segment.channel, record, entry.offset);
+			
+			synchronized (this) {
+				// only move records that haven't been replaced in the meantime
+				if (index.get(mapping.getKey()) != entry) continue;
+				index.put(mapping.getKey(), append(record.array(), entry.keepUntil));
+			}
+		}
+		
+		synchronized (this) {
+			dropSegment(segment);
+		}
+		compactions.incrementAndGet();
+		indexDirty = true;
+	}
+	
+	/**
+	 * Appends a record to the active segment, starting a new segment first if it's full
+	 * (must hold the lock on this)
+	 */
+	private Entry append(byte[] record, long keepUntil) throws IOException {
+		if (active == null || (active.size > 0 && active.size + record.length > segmentSize)) {
+			int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+			active = new Segment(id, new File(dir, SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX));
+			segments.put(id, active);
+		}
+		
+		long offset = active.size;
+		writeFully(active.channel, ByteBuffer.wrap(record), offset);
+		active.size += record.length;
+		active.liveBytes.addAndGet(record.length);
+		return new Entry(active, offset, record.length, keepUntil);
+	}
+	
+	/**
+	 * Deletes the oldest segments until the cache fits in its budget
+	 * (must hold the lock on this)
+	 */
+	private void dropOldSegments() {
+		long size = getSize();
+		while (size > maxBytes && segments.size() > 1) {
+			Segment oldest = segments.firstEntry().getValue();
+			size -= oldest.size;
+			dropSegment(oldest);
+			droppedSegments.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Forgets everything stored in a segment and deletes it once nobody's reading from it
+	 * (must hold the lock on this)
+	 */
+	private void dropSegment(Segment segment) {
+		segments.remove(segment.id);
+		if (segment == active) active = null;
+		for (Map.Entry<String,Entry> mapping : index.entrySet()) {
+			if (mapping.getValue().segment == segment) remove(mapping.getKey(), mapping.getValue());
+		}
+		segment.retire();
+		indexDirty = true;
+	}
+	
+	/**
+	 * Removes a key from the index if it still maps to the given entry
+	 */
+	private void remove(String key, Entry entry) {
+		if (index.remove(key, entry)) {
+			entry.segment.liveBytes.addAndGet(-entry.length);
+		}
+	}
+	
+	/**
+	 * When a stored response stops being worth keeping (once it's stale and
+	 * can't be served stale or revalidated anymore), in milliseconds since the epoch
+	 */
+	static long getKeepUntil(CachedResponse cached) {
+		return cached.responseTime + cached.freshnessLifetime - cached.getCurrentAge(cached.responseTime)
+				+ cached.getStaleRetention();
+	}
+	
+	
+	/**
+	 * Opens the segments in the cache directory and rebuilds the index from
+	 * the saved copy, reading any records appended after it was saved
+	 */
+	private synchronized void load() throws IOException {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+				try {
+					int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					segments.put(id, new Segment(id, file));
+				} catch (NumberFormatException e) {}
+			}
+		}
+		
+		HashMap<Integer,Long> indexedSizes = loadIndex();
+		for (Segment segment : segments.values()) {
+			Long indexedSize = indexedSizes.get(segment.id);
+			scanSegment(segment, (indexedSize == null) ? 0 : Math.min(indexedSize, segment.size));
+		}
+		
+		// now that we know which records are still live, tally them up
+		for (Entry entry : index.values()) {
+			entry.segment.liveBytes.addAndGet(entry.length);
+		}
+		
+		if (!segments.isEmpty()) active = segments.lastEntry().getValue();
+		dropOldSegments();
+	}
+	
+	/**
+	 * Reads the saved index, if there is a usable one
+	 * 
+	 * @return how long each segment was when the index was saved, keyed by segment id
+	 */
+	private HashMap<Integer,Long> loadIndex() {
+		HashMap<Integer,Long> indexedSizes = new HashMap<Integer,Long>();
+		File file = new File(dir, INDEX_FILE);
+		if (!file.exists()) return indexedSizes;
+		
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				throw new IOException("unrecognized index format");
+			}
+			
+			int segmentCount = in.readInt();
+			for (int i = 0; i < segmentCount; i++) {
+				indexedSizes.put(in.readInt(), in.readLong());
+			}
+			
+			long now = System.currentTimeMillis();
+			while (in.readBoolean()) {
+				String key = readString(in);
+				Segment segment = segments.get(in.readInt());
+				long offset = in.readLong();
+				int length = in.readInt();
+				long keepUntil = in.readLong();
+				if (segment != null && offset + length <= segment.size && keepUntil >= now) {
+					index.put(key, new Entry(segment, offset, length, keepUntil));
+				}
+			}
+			
+			while (in.readBoolean()) {
+				String primaryKey = readString(in);
+				varyHeaders.put(primaryKey, ResponseCache.parseVary(readString(in)));
+			}
+		
+		} catch (IOException e) {
+			// the segments are the real record of what's stored, so we can just start over from them
+			Utils.logError("Disk cache: couldn't read saved index, rebuilding it: " + e.getMessage());
+			index.clear();
+			varyHeaders.clear();
+			indexedSizes.clear();
+		} finally {
+			try {
+				if (in != null) in.close();
+			} catch (IOException e) {}
+		}
+		return indexedSizes;
+	}
+	
+	/**
+	 * Adds the records in a segment from the given position onward to the
+	 * index, cutting off the segment at the first record that's incomplete
+	 */
+	private void scanSegment(Segment segment, long position) throws IOException {
+		long now = System.currentTimeMillis();
+		while (position < segment.size) {
+			Record record;
+			try {
+				record = readRecord(segment, position);
+			} catch (IOException e) {
+				// most likely a write cut short when we last shut down
+				Utils.logError("Disk cache: truncating " + segment.file + " at " + position + ": " + e.getMessage());
+				segment.channel.truncate(position);
+				segment.size = position;
+				return;
+			}
+			
+			long keepUntil = getKeepUntil(new CachedResponse(record.key, record.statusLine,
+					record.statusCode, record.headers, null, record.requestTime, record.responseTime));
+			if (keepUntil >= now) {
+				index.put(record.key, new Entry(segment, position, record.length, keepUntil));
+				String[] varyNames = ResponseCache.parseVary(record.headers.get("vary"));
+				if (varyNames != null) varyHeaders.put(ResponseCache.getPrimaryKey(record.key), varyNames);
+			} else {
+				index.remove(record.key);
+			}
+			position += record.length;
+		}
+	}
+	
+	/**
+	 * Writes the index to disk, replacing the saved copy
+	 */
+	private synchronized void saveIndex() {
+		indexDirty = false;
+		File temp = new File(dir, INDEX_FILE + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			
+			out.writeInt(segments.size());
+			for (Segment segment : segments.values()) {
+				out.writeInt(segment.id);
+				out.writeLong(segment.size);
+			}
+			
+			for (Map.Entry<String,Entry> mapping : index.entrySet()) {
+				Entry entry = mapping.getValue();
+				out.writeBoolean(true);
+				writeString(out, mapping.getKey());
+				out.writeInt(entry.segment.id);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+				out.writeLong(entry.keepUntil);
+			}
+			out.writeBoolean(false);
+			
+			for (Map.Entry<String,String[]> mapping : varyHeaders.entrySet()) {
+				StringBuilder names = new StringBuilder();
+				for (String name : mapping.getValue()) {
+					if (names.length() > 0) names.append(", ");
+					names.append(name);
+				}
+				out.writeBoolean(true);
+				writeString(out, mapping.getKey());
+				writeString(out, names.toString());
+			}
+			out.writeBoolean(false);
+			
+			out.close();
+			out = null;
+			Files.move(temp.toPath(), new File(dir, INDEX_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		
+		} catch (IOException e) {
+			Utils.logError("Disk cache: failed to save index: " + e.getMessage());
+			indexDirty = true;
+		} finally {
+			try {
+				if (out != null) out.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	
+	/**
+	 * Serializes a response into a record:
+	 *   magic, key length, key, head length, head (status line and headers),
+	 *   request time, response time, body length, body
+	 */
+	static byte[] encodeRecord(CachedResponse cached) throws IOException {
+		byte[] key = cached.key.getBytes(UTF8);
+		
+		StringBuilder head = new StringBuilder(cached.statusLine);
+		for (Map.Entry<String,String> header : cached.headers.entrySet()) {
+			for (String value : header.getValue().split(Utils.CRLF)) {
+				head.append(Utils.httpHeader(header.getKey(), value));
+			}
+		}
+		if (cached.ageValue > 0) head.append(Utils.httpHeader("age", String.valueOf(cached.ageValue / 1000)));
+		byte[] headBytes = head.toString().getBytes(LATIN1);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_OVERHEAD + key.length + headBytes.length + cached.body.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(RECORD_MAGIC);
+		out.writeInt(key.length);
+		out.write(key);
+		out.writeInt(headBytes.length);
+		out.write(headBytes);
+		out.writeLong(cached.requestTime);
+		out.writeLong(cached.responseTime);
+		out.writeInt(cached.body.length);
+		out.write(cached.body);
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Reads everything but the body of the record at the given position
+	 */
+	static Record readRecord(Segment segment, long offset) throws IOException {
+		Record record = new Record();
+		long position = offset;
+		
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		readFully(segment.channel, buffer, position);
+		position += 8;
+		if (buffer.getInt(0) != RECORD_MAGIC) throw new IOException("bad record");
+		
+		byte[] key = readBytes(segment.channel, buffer.getInt(4), position);
+		position += key.length;
+		record.key = new String(key, UTF8);
+		
+		buffer = ByteBuffer.allocate(4);
+		readFully(segment.channel, buffer, position);
+		position += 4;
+		int headLength = buffer.getInt(0);
+		if (headLength < 0 || headLength > Utils.MAX_HEADER_SIZE * 2) throw new IOException("bad record");
+		
+		// the head is stored without the blank line that would end it on the wire, so add one
+		buffer = ByteBuffer.allocate(headLength + 4);
+		buffer.limit(headLength);
+		readFully(segment.channel, buffer, position);
+		position += headLength;
+		byte[] head = buffer.array();
+		head[headLength] = head[headLength + 2] = '\r';
+		head[headLength + 1] = head[headLength + 3] = '\n';
+		
+		HttpParser parser = new HttpParser(false, head.length, Utils.MAX_HEADER_COUNT * 2);
+		parser.reset();
+		if (parser.parse(head, head.length) < 0) {
+			throw new IOException("bad record head: " + parser.getError());
+		}
+		record.statusLine = parser.getStartLine();
+		record.statusCode = parser.getStatusCode();
+		record.headers = parser.copyHeadersTo(new Hashtable<String,String>());
+		
+		buffer = ByteBuffer.allocate(20);
+		readFully(segment.channel, buffer, position);
+		position += 20;
+		record.requestTime = buffer.getLong(0);
+		record.responseTime = buffer.getLong(8);
+		record.bodyLength = buffer.getInt(16);
+		record.bodyOffset = position;
+		
+		if (record.bodyLength < 0 || position + record.bodyLength > segment.size) throw new EOFException("record cut short");
+		record.length = (int) (position + record.bodyLength - offset);
+		return record;
+	}
+	
+	private static byte[] readBytes(FileChannel channel, int length, long position) throws IOException {
+		if (length < 0 || length > Utils.MAX_HEADER_SIZE * 2) throw new IOException("bad record");
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(channel, buffer, position);
+		return buffer.array();
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) throw new EOFException("record cut short");
+			position += n;
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	
+	/**
+	 * Where a key's record lives
+	 */
+	static class Entry {
+		final Segment segment;
+		final long offset;
+		final int length;
+		final long keepUntil;
+		
+		Entry(Segment segment, long offset, int length, long keepUntil) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.keepUntil = keepUntil;
+		}
+	}
+	
+	/**
+	 * A record's contents, minus its body
+	 */
+	static class Record {
+		String key;
+		String statusLine;
+		int statusCode;
+		Hashtable<String,String> headers;
+		long requestTime;
+		long responseTime;
+		long bodyOffset;
+		int bodyLength;
+		int length; // of the whole record
+	}
+	
+	/**
+	 * One append-only segment file. Segments that get dropped stay open
+	 * until the last response being sent out of them is released.
+	 */
+	static class Segment {
+		final int id;
+		final File file;
+		final FileChannel channel;
+		volatile long size; // bytes written so far (only changed while holding the DiskCache's lock)
+		final AtomicLong liveBytes = new AtomicLong(); // bytes of records the index still points to
+		
+		private int readers;
+		private boolean retired;
+		
+		@SuppressWarnings("resource")
+		Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+		
+		/**
+		 * Sends part of the segment to a channel (a socket's, so the kernel can
+		 * copy it straight from the file)
+		 */
+		void transferTo(long position, long length, WritableByteChannel target) throws IOException {
+			while (length > 0) {
+				long n = channel.transferTo(position, length, target);
+				if (n <= 0) throw new EOFException("segment cut short");
+				position += n;
+				length -= n;
+			}
+		}
+		
+		/**
+		 * Reads part of the segment into memory
+		 */
+		byte[] read(long position, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			readFully(channel, buffer, position);
+			return buffer.array();
+		}
+		
+		synchronized boolean retain() {
+			if (retired) return false;
+			readers++;
+			return true;
+		}
+		
+		synchronized void release() {
+			readers--;
+			if (retired && readers == 0) delete();
+		}
+		
+		synchronized void retire() {
+			boolean wasRetired = retired;
+			retired = true;
+			if (!wasRetired && readers == 0) delete();
+		}
+		
+		private void delete() {
+			try {
+				channel.close();
+			} catch (IOException e) {}
+			file.delete();
+		}
+	}
+}
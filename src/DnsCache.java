@@ -0,0 +1,260 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Remembers the addresses of remote servers, so that requests don't each
+ * have to look them up again. Failed lookups are remembered too, for a
+ * shorter time, so clients retrying a bad hostname don't hammer the DNS
+ * server. Entries that are still being used get looked up again in the
+ * background shortly before they expire, so busy hostnames never make a
+ * request wait on DNS; if that lookup fails, the addresses we already have
+ * are kept for a while longer. Requests that miss on a host while it's
+ * being looked up wait for that lookup instead of starting their own.
+ */
+public class DnsCache {
+	
+	/**
+	 * Something that can look up hostnames (swappable so tests can fake DNS)
+	 */
+	public interface Resolver {
+		InetAddress[] resolve(String hostname) throws UnknownHostException;
+	}
+	
+	// looks hostnames up the normal way, through the JVM
+	static final Resolver SYSTEM_RESOLVER = new Resolver() {
+		public InetAddress[] resolve(String hostname) throws UnknownHostException {
+			return InetAddress.getAllByName(hostname);
+		}
+	};
+	
+	// the cache used for every connection to a remote server
+	static final DnsCache shared = new DnsCache(SYSTEM_RESOLVER);
+	
+	// share of an entry's TTL left when we start refreshing it in the background
+	final static double REFRESH_AHEAD_SHARE = 0.2;
+	
+	private volatile Resolver resolver;
+	private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+	
+	// lookups in progress, by hostname
+	private final ConcurrentHashMap<String,Lookup> lookups = new ConcurrentHashMap<String,Lookup>();
+	
+	// does the background refreshing, so request threads don't have to
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "DnsRefresher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	// statistics
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong negativeHits = new AtomicLong(); // hits on remembered failures
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong joined = new AtomicLong(); // misses that waited on a lookup someone else started
+	final AtomicLong refreshes = new AtomicLong(); // lookups done ahead of time in the background
+	final AtomicLong refreshFailures = new AtomicLong(); // ...that failed, so the old addresses were kept
+	
+	public DnsCache(Resolver resolver) {
+		this.resolver = resolver;
+	}
+	
+	/**
+	 * Swaps out how hostnames get looked up, forgetting everything looked up so far
+	 */
+	public void setResolver(Resolver resolver) {
+		this.resolver = resolver;
+		entries.clear();
+	}
+	
+	/**
+	 * Gets the addresses of a host, looking them up only if we don't have fresh ones
+	 * 
+	 * @throws UnknownHostException if the host doesn't exist (or recently didn't)
+	 */
+	public InetAddress[] resolve(String hostname) throws UnknownHostException {
+		InetAddress[] addresses = getIfCached(hostname);
+		if (addresses != null) return addresses;
+		
+		String key = hostname.toLowerCase();
+		Lookup lookup = new Lookup();
+		Lookup existing = lookups.putIfAbsent(key, lookup);
+		if (existing != null) {
+			// someone's already looking it up, so wait for them (or look it up ourselves if they fail)
+			joined.incrementAndGet();
+			Entry entry = existing.await();
+			return ((entry != null) ? entry : lookup(key)).getAddresses();
+		}
+		
+		misses.incrementAndGet();
+		try {
+			lookup.entry = lookup(key);
+		} finally {
+			lookups.remove(key, lookup);
+			lookup.done.countDown();
+		}
+		return lookup.entry.getAddresses();
+	}
+	
+	/**
+	 * Gets the addresses of a host only if we already have fresh ones, without ever blocking
+	 * 
+	 * @return the addresses, or null if they'd have to be looked up
+	 * @throws UnknownHostException if the host recently didn't exist
+	 */
+	public InetAddress[] getIfCached(String hostname) throws UnknownHostException {
+		if (!Utils.ENABLE_DNS_CACHE) return null;
+		
+		final String key = hostname.toLowerCase();
+		final Entry entry = entries.get(key);
+		long now = System.currentTimeMillis();
+		if (entry == null || now >= entry.expires) return null;
+		
+		if (entry.failure != null) {
+			negativeHits.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+			
+			// look it up again before it expires, since it's clearly still wanted
+			if (now >= entry.refreshAt && entry.refreshing.compareAndSet(false, true)) {
+				refreshes.incrementAndGet();
+				refresher.execute(new Runnable() {
+					public void run() {
+						try {
+							lookup(key);
+						} finally {
+							entry.refreshing.set(false);
+						}
+					}
+				});
+			}
+		}
+		return entry.getAddresses();
+	}
+	
+	/**
+	 * Looks up a host and remembers the result
+	 */
+	private Entry lookup(String key) {
+		long now = System.currentTimeMillis();
+		Entry entry;
+		try {
+			entry = new Entry(resolver.resolve(key), null, now + Utils.DNS_CACHE_TTL);
+		} catch (UnknownHostException e) {
+			Entry old = entries.get(key);
+			if (old != null && old.failure == null && now < old.expires) {
+				// a refresh failed, but the addresses we have are still good; keep
+				// them, and try again once a failure would have been forgotten
+				// (but never past their original expiry plus one more TTL, after
+				// which the failure gets remembered instead)
+				refreshFailures.incrementAndGet();
+				long retryAt = now + Utils.DNS_NEGATIVE_TTL;
+				long expires = Math.min(Math.max(old.expires, retryAt + getRefreshAhead()), old.staleUntil);
+				entry = new Entry(old.addresses, null, expires, Math.min(retryAt, expires), old.staleUntil);
+			} else {
+				entry = new Entry(null, e, now + Utils.DNS_NEGATIVE_TTL);
+			}
+		}
+		
+		if (Utils.ENABLE_DNS_CACHE) {
+			if (entries.size() >= Utils.DNS_CACHE_MAX_ENTRIES) evictExpired(now);
+			if (entries.size() < Utils.DNS_CACHE_MAX_ENTRIES || entries.containsKey(key)) {
+				entries.put(key, entry);
+			}
+		}
+		return entry;
+	}
+	
+	/**
+	 * Forgets entries that have expired, to make room for new ones
+	 */
+	private void evictExpired(long now) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (now >= it.next().expires) it.remove();
+		}
+	}
+	
+	/**
+	 * Summarizes the cache's statistics, for logging
+	 */
+	public String getStats() {
+		return "hosts=" + entries.size()
+				+ " hits=" + hits.get()
+				+ " negativeHits=" + negativeHits.get()
+				+ " misses=" + misses.get()
+				+ " joined=" + joined.get()
+				+ " refreshes=" + refreshes.get()
+				+ " refreshFailures=" + refreshFailures.get();
+	}
+	
+	/**
+	 * How long before an entry expires it gets refreshed, in milliseconds
+	 */
+	private static long getRefreshAhead() {
+		return (long) (Utils.DNS_CACHE_TTL * REFRESH_AHEAD_SHARE);
+	}
+	
+	
+	/**
+	 * The result of looking up one hostname
+	 */
+	private static class Entry {
+		final InetAddress[] addresses; // null if the lookup failed
+		final UnknownHostException failure; // null if the lookup worked
+		final long expires;
+		final long refreshAt;
+		final long staleUntil; // furthest the addresses' expiry may be pushed out when refreshes fail
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		
+		Entry(InetAddress[] addresses, UnknownHostException failure, long expires) {
+			this(addresses, failure, expires, expires - getRefreshAhead(), expires + Utils.DNS_CACHE_TTL);
+		}
+		
+		Entry(InetAddress[] addresses, UnknownHostException failure, long expires, long refreshAt, long staleUntil) {
+			this.addresses = addresses;
+			this.failure = failure;
+			this.expires = expires;
+			this.refreshAt = refreshAt;
+			this.staleUntil = staleUntil;
+		}
+		
+		InetAddress[] getAddresses() throws UnknownHostException {
+			if (failure != null) throw new UnknownHostException(failure.getMessage());
+			return addresses;
+		}
+	}
+	
+	/**
+	 * A lookup that other requests for the same host can wait on
+	 */
+	private static class Lookup {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Entry entry; // set before done counts down, unless the lookup blew up
+		
+		/**
+		 * Waits for the lookup to finish
+		 * 
+		 * @return its result, or null if it didn't get one
+		 */
+		Entry await() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+
+/**
+ * Builds the head of a request or response (the start line and headers)
+ * straight into a reusable byte buffer, so it can be sent with a single
+ * write instead of a write per header. Headers that never change are
+ * encoded once up front, and the Date header is kept ready by a clock
+ * thread that updates it once a second.
+ * 
+ * Like the rest of the proxy's headers, each header line starts with its
+ * CRLF (see Utils.httpHeader), and end() adds the blank line.
+ */
+public class HeadWriter {
+	
+	static final byte[] SERVER_HEADER = encode(Utils.httpHeader("Server", Utils.SERVER_NAME));
+	static final byte[] CONNECTION_KEEP_ALIVE = encode(Utils.httpHeader("Connection", "keep-alive"));
+	static final byte[] CONNECTION_CLOSE = encode(Utils.httpHeader("Connection", "close"));
+	static final byte[] HEAD_END = encode(Utils.HTTP_HEADER_END);
+	
+	// "HTTP/1.1 200 OK" and friends, by HttpStatus ordinal
+	private static final byte[][] STATUS_LINES;
+	static {
+		HttpStatus[] statuses = HttpStatus.values();
+		STATUS_LINES = new byte[statuses.length][];
+		for (HttpStatus status : statuses) {
+			STATUS_LINES[status.ordinal()] = encode(status.statusLine);
+		}
+	}
+	
+	// the current date, as a string and as a ready-made header; refreshed every second
+	private static volatile String date;
+	private static volatile byte[] dateHeader;
+	static {
+		updateDate();
+		Thread clock = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						// wake up just after the second ticks over
+						Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+					updateDate();
+				}
+			}
+		}, "HttpDateClock");
+		clock.setDaemon(true);
+		clock.start();
+	}
+	
+	// each thread gets one writer, which it reuses for every head it builds
+	private static final ThreadLocal<HeadWriter> writers = new ThreadLocal<HeadWriter>() {
+		@Override
+		protected HeadWriter initialValue() {
+			return new HeadWriter();
+		}
+	};
+	
+	private byte[] buf = new byte[1024];
+	private int length;
+	
+	/**
+	 * Gets this thread's writer, emptied out and ready for a new head. The
+	 * head has to be sent (or copied) before the thread builds another one.
+	 */
+	public static HeadWriter get() {
+		return writers.get().reset();
+	}
+	
+	/**
+	 * Empties out the writer, to start on a new head
+	 */
+	public HeadWriter reset() {
+		length = 0;
+		return this;
+	}
+	
+	/**
+	 * Gets the current date, formatted for HTTP, without formatting it again
+	 */
+	public static String getDate() {
+		return date;
+	}
+	
+	private static void updateDate() {
+		String now = Utils.getRFC1123Date(System.currentTimeMillis());
+		dateHeader = encode(Utils.httpHeader("Date", now));
+		date = now;
+	}
+	
+	/**
+	 * Starts a response the proxy generated itself, with the headers every such response gets
+	 */
+	public HeadWriter beginResponse(HttpStatus status, boolean keepAlive) {
+		append(STATUS_LINES[status.ordinal()]);
+		append(SERVER_HEADER);
+		append(dateHeader);
+		return connection(keepAlive);
+	}
+	
+	public HeadWriter connection(boolean keepAlive) {
+		return append(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+	}
+	
+	public HeadWriter header(String key, long value) {
+		append(Utils.CRLF).append(key).append(": ").append(value);
+		return this;
+	}
+	
+	/**
+	 * Adds every header in a table, except hop-by-hop ones (repeated headers
+	 * are separated by CRLFs in the table, so they come out as separate lines)
+	 */
+	public HeadWriter headers(Hashtable<String,String> headers) {
+		Enumeration<String> keys = headers.keys();
+		while (keys.hasMoreElements()) {
+			String key = keys.nextElement();
+			if (RequestWorker.isHopByHopHeader(key)) continue;
+			header(key, headers.get(key));
+		}
+		return this;
+	}
+	
+	/**
+	 * Adds a header whose value may hold several values separated by CRLFs,
+	 * as one line per value
+	 */
+	public HeadWriter header(String key, String value) {
+		append(Utils.CRLF).append(key).append(": ");
+		int n = value.length();
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			char c = value.charAt(i);
+			if (c == '\r' && i + 1 < n && value.charAt(i + 1) == '\n') {
+				append(Utils.CRLF).append(key).append(": ");
+				ensureCapacity(n - i);
+				i++;
+				continue;
+			}
+			buf[length++] = (byte) c;
+		}
+		return this;
+	}
+	
+	/**
+	 * Ends the head with a blank line
+	 */
+	public HeadWriter end() {
+		return append(HEAD_END);
+	}
+	
+	public HeadWriter append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buf, length, bytes.length);
+		length += bytes.length;
+		return this;
+	}
+	
+	/**
+	 * Adds a string, one byte per character (headers are ISO-8859-1)
+	 */
+	public HeadWriter append(String s) {
+		int n = s.length();
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			buf[length++] = (byte) s.charAt(i);
+		}
+		return this;
+	}
+	
+	public HeadWriter append(long value) {
+		if (value < 0) {
+			ensureCapacity(1);
+			buf[length++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) digits++;
+		ensureCapacity(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			buf[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+		return this;
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	/**
+	 * Writes the head to a stream
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, length);
+	}
+	
+	/**
+	 * Writes the head and a body to a blocking channel with one gathering write
+	 */
+	public void writeTo(SocketChannel channel, byte[] body) throws IOException {
+		ByteBuffer[] buffers = { ByteBuffer.wrap(buf, 0, length), ByteBuffer.wrap(body) };
+		while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+			channel.write(buffers);
+		}
+	}
+	
+	/**
+	 * Copies the head into a buffer from the pool (or a new one, if it doesn't fit),
+	 * ready to be written out
+	 */
+	public ByteBuffer toBuffer(NioEventLoop loop) {
+		ByteBuffer out = loop.acquireBuffer();
+		if (out.capacity() < length) {
+			loop.releaseBuffer(out);
+			out = ByteBuffer.allocate(length);
+		}
+		out.put(buf, 0, length);
+		out.flip();
+		return out;
+	}
+	
+	private void ensureCapacity(int extra) {
+		if (length + extra > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length * 2, length + extra)];
+			System.arraycopy(buf, 0, bigger, 0, length);
+			buf = bigger;
+		}
+	}
+	
+	private static byte[] encode(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,459 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+
+
+/**
+ * Parses the head of an HTTP/1.x request or response (the start line and
+ * headers) straight out of a byte array, as the bytes arrive. Nothing gets
+ * allocated while parsing: the parser just remembers where each part of
+ * the head starts and ends, and matches header names against a table of
+ * well-known ones. Strings only get made when someone asks for them.
+ * 
+ * A parser is meant to be reused for every head read on a connection; call
+ * reset() before each one.
+ */
+public class HttpParser {
+	
+	// lowercase names of the headers we expect to see a lot of; getName() hands
+	// these out instead of making a new string every time
+	static final String[] KNOWN_HEADERS = {
+			"accept", "accept-charset", "accept-encoding", "accept-language", "accept-ranges",
+			"age", "authorization", "cache-control", "connection", "content-encoding",
+			"content-length", "content-type", "cookie", "date", "dnt", "etag", "expect",
+			"expires", "from", "host", "if-modified-since", "if-none-match", "keep-alive",
+			"last-modified", "location", "pragma", "proxy-connection", "referer", "server",
+			"set-cookie", "te", "trailer", "transfer-encoding", "upgrade", "user-agent",
+			"vary", "via", "x-cache", "x-forwarded-for"
+			};
+	
+	// methods that get handed out as constants too
+	static final String[] KNOWN_METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "CONNECT", "TRACE", "PATCH" };
+	
+	private static final byte[][] KNOWN_HEADER_BYTES = toBytes(KNOWN_HEADERS);
+	private static final byte[][] KNOWN_METHOD_BYTES = toBytes(KNOWN_METHODS);
+	
+	final boolean isRequest; // parsing requests (true) or responses (false)?
+	final int maxHeadSize; // most bytes the head may take up
+	final int maxHeaders; // most header lines the head may have
+	
+	// where we're up to in the buffer
+	private byte[] buf;
+	private int headStart; // where the head starts in the buffer
+	private int position; // how far we've scanned
+	private int lineStart; // where the line we're in the middle of starts
+	private int headEnd = -1; // just past the blank line that ends the head, once we've found it
+	private String error; // why the head was rejected, if it was
+	private boolean tooLarge; // was it rejected for being too big?
+	
+	// the start line's three parts (method, target, version for requests;
+	// version, status code, reason for responses), as start/end offsets
+	private final int[] startLine = new int[6];
+	private boolean haveStartLine;
+	private int statusCode = -1;
+	
+	// the headers, as offsets into the buffer
+	private int headerCount;
+	private final int[] nameStart, nameEnd, valueStart, valueEnd, known;
+	
+	public HttpParser(boolean isRequest) {
+		this(isRequest, Utils.MAX_HEADER_SIZE, Utils.MAX_HEADER_COUNT);
+	}
+	
+	public HttpParser(boolean isRequest, int maxHeadSize, int maxHeaders) {
+		this.isRequest = isRequest;
+		this.maxHeadSize = maxHeadSize;
+		this.maxHeaders = maxHeaders;
+		nameStart = new int[maxHeaders];
+		nameEnd = new int[maxHeaders];
+		valueStart = new int[maxHeaders];
+		valueEnd = new int[maxHeaders];
+		known = new int[maxHeaders];
+	}
+	
+	/**
+	 * Gets ready to parse a new head
+	 * 
+	 * @param start where the head will start in the buffer
+	 */
+	public void reset(int start) {
+		buf = null;
+		headStart = position = lineStart = start;
+		headEnd = -1;
+		error = null;
+		tooLarge = false;
+		haveStartLine = false;
+		statusCode = -1;
+		headerCount = 0;
+	}
+	
+	public void reset() {
+		reset(0);
+	}
+	
+	/**
+	 * Parses whatever has arrived since the last call. The bytes parsed so far
+	 * have to stay where they are in the buffer (or be copied to the same place
+	 * in a bigger one).
+	 * 
+	 * @param buffer the bytes of the head, starting where reset() said it would
+	 * @param end how far the buffer has been filled
+	 * @return index just past the end of the head, or -1 if it isn't all there
+	 * yet or it was rejected (see getError)
+	 */
+	public int parse(byte[] buffer, int end) {
+		buf = buffer;
+		if (headEnd >= 0 || error != null) return headEnd;
+		
+		for (; position < end; position++) {
+			if (buf[position] != '\n') continue;
+			
+			int lineEnd = position;
+			if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') lineEnd--;
+			int nextLine = position + 1;
+			
+			if (lineEnd == lineStart) {
+				if (haveStartLine) {
+					// a blank line ends the head
+					position = nextLine;
+					headEnd = nextLine;
+					return headEnd;
+				}
+				// blank lines before the start line are allowed, and ignored
+			
+			} else if (!haveStartLine) {
+				if (!parseStartLine(lineStart, lineEnd)) return -1;
+				haveStartLine = true;
+			
+			} else {
+				if (!parseHeaderLine(lineStart, lineEnd)) return -1;
+			}
+			lineStart = nextLine;
+		}
+		
+		if (position - headStart > maxHeadSize) {
+			tooLarge = true;
+			return fail("Header block too large");
+		}
+		return -1;
+	}
+	
+	private boolean parseStartLine(int start, int end) {
+		// three parts separated by single spaces (though a response's reason may have spaces in it)
+		int firstSpace = indexOf(' ', start, end);
+		int secondSpace = (firstSpace < 0) ? -1 : indexOf(' ', firstSpace + 1, end);
+		if (isRequest) {
+			if (secondSpace < 0 || indexOf(' ', secondSpace + 1, end) >= 0
+					|| firstSpace == start || secondSpace == firstSpace + 1 || secondSpace == end - 1) {
+				fail("Invalid request line");
+				return false;
+			}
+			for (int i = start; i < firstSpace; i++) {
+				if (!isTokenChar(buf[i])) {
+					fail("Invalid request method");
+					return false;
+				}
+			}
+			setStartLine(start, firstSpace, secondSpace, end);
+		
+		} else {
+			if (firstSpace < 0) {
+				fail("Invalid status line");
+				return false;
+			}
+			int codeEnd = (secondSpace < 0) ? end : secondSpace;
+			statusCode = parseStatusCode(start, firstSpace, codeEnd);
+			if (statusCode < 0) {
+				fail("Invalid status line");
+				return false;
+			}
+			setStartLine(start, firstSpace, codeEnd, end);
+		}
+		return true;
+	}
+	
+	private void setStartLine(int start, int firstSpace, int secondSpace, int end) {
+		startLine[0] = start;
+		startLine[1] = firstSpace;
+		startLine[2] = firstSpace + 1;
+		startLine[3] = secondSpace;
+		startLine[4] = Math.min(secondSpace + 1, end);
+		startLine[5] = end;
+	}
+	
+	private int parseStatusCode(int versionStart, int versionEnd, int codeEnd) {
+		if (versionEnd - versionStart < 5 || !regionMatchesIgnoreCase(versionStart, "HTTP/")) return -1;
+		if (codeEnd - versionEnd - 1 != 3) return -1;
+		int code = 0;
+		for (int i = versionEnd + 1; i < codeEnd; i++) {
+			if (buf[i] < '0' || buf[i] > '9') return -1;
+			code = code * 10 + (buf[i] - '0');
+		}
+		return (code >= 100) ? code : -1;
+	}
+	
+	private boolean parseHeaderLine(int start, int end) {
+		if (headerCount == maxHeaders) {
+			tooLarge = true;
+			fail("Too many headers");
+			return false;
+		}
+		
+		// continuation lines are obsolete, and a good way to smuggle things past proxies
+		if (buf[start] == ' ' || buf[start] == '\t') {
+			fail("Invalid header (line folding isn't allowed)");
+			return false;
+		}
+		
+		// the name has to be a token, right up against the colon
+		int colon = start;
+		while (colon < end && buf[colon] != ':') {
+			if (!isTokenChar(buf[colon])) {
+				fail("Invalid header name");
+				return false;
+			}
+			colon++;
+		}
+		if (colon == end || colon == start) {
+			fail("Invalid header");
+			return false;
+		}
+		
+		// trim the whitespace around the value
+		int vStart = colon + 1;
+		int vEnd = end;
+		while (vStart < vEnd && (buf[vStart] == ' ' || buf[vStart] == '\t')) vStart++;
+		while (vEnd > vStart && (buf[vEnd - 1] == ' ' || buf[vEnd - 1] == '\t')) vEnd--;
+		
+		nameStart[headerCount] = start;
+		nameEnd[headerCount] = colon;
+		valueStart[headerCount] = vStart;
+		valueEnd[headerCount] = vEnd;
+		known[headerCount] = findKnown(KNOWN_HEADER_BYTES, start, colon);
+		headerCount++;
+		return true;
+	}
+	
+	private int fail(String message) {
+		error = message;
+		return -1;
+	}
+	
+	
+	/**
+	 * Why the head was rejected, or null if it wasn't
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	/**
+	 * Was the head rejected for being too big (rather than for being malformed)?
+	 */
+	public boolean isTooLarge() {
+		return tooLarge;
+	}
+	
+	/**
+	 * Has the whole head been parsed?
+	 */
+	public boolean isComplete() {
+		return headEnd >= 0;
+	}
+	
+	/**
+	 * Has any of the head arrived yet?
+	 */
+	public boolean hasStarted() {
+		return position > headStart;
+	}
+	
+	/**
+	 * Gets the whole start line, for logging
+	 */
+	public String getStartLine() {
+		return string(startLine[0], startLine[5]);
+	}
+	
+	/**
+	 * Gets the request's method (as a shared constant if it's a common one)
+	 */
+	public String getMethod() {
+		int i = findKnown(KNOWN_METHOD_BYTES, startLine[0], startLine[1], false);
+		return (i >= 0) ? KNOWN_METHODS[i] : string(startLine[0], startLine[1]);
+	}
+	
+	/**
+	 * Gets the request's target (the URL or path being requested)
+	 */
+	public String getTarget() {
+		return string(startLine[2], startLine[3]);
+	}
+	
+	/**
+	 * Checks the request's (or response's) HTTP version, without allocating
+	 */
+	public boolean isVersion(String version) {
+		int start = isRequest ? startLine[4] : startLine[0];
+		int end = isRequest ? startLine[5] : startLine[1];
+		return end - start == version.length() && regionMatchesIgnoreCase(start, version);
+	}
+	
+	/**
+	 * Gets the response's status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	/**
+	 * Gets everything after the response's HTTP version (the status code and reason)
+	 */
+	public String getStatus() {
+		return string(startLine[2], startLine[5]);
+	}
+	
+	public int getHeaderCount() {
+		return headerCount;
+	}
+	
+	/**
+	 * Gets a header's name, in lowercase
+	 */
+	public String getName(int i) {
+		if (known[i] >= 0) return KNOWN_HEADERS[known[i]];
+		char[] name = new char[nameEnd[i] - nameStart[i]];
+		for (int j = 0; j < name.length; j++) {
+			name[j] = (char) toLower(buf[nameStart[i] + j]);
+		}
+		return new String(name);
+	}
+	
+	public String getValue(int i) {
+		return string(valueStart[i], valueEnd[i]);
+	}
+	
+	/**
+	 * Finds the first header with the given name, without allocating
+	 * 
+	 * @param name header name, in lowercase
+	 * @return the header's index, or -1 if there isn't one
+	 */
+	public int indexOf(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (known[i] >= 0) {
+				if (KNOWN_HEADERS[known[i]].equals(name)) return i;
+			} else if (nameEnd[i] - nameStart[i] == name.length() && regionMatchesIgnoreCase(nameStart[i], name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Checks whether a header's comma-separated value includes a token
+	 * (like "close" in Connection), without allocating
+	 * 
+	 * @param token the token, in lowercase
+	 */
+	public boolean valueHasToken(int i, String token) {
+		int pos = valueStart[i];
+		int end = valueEnd[i];
+		while (pos < end) {
+			while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t' || buf[pos] == ',')) pos++;
+			int tokenEnd = pos;
+			while (tokenEnd < end && buf[tokenEnd] != ',') tokenEnd++;
+			int trimmedEnd = tokenEnd;
+			while (trimmedEnd > pos && (buf[trimmedEnd - 1] == ' ' || buf[trimmedEnd - 1] == '\t')) trimmedEnd--;
+			if (trimmedEnd - pos == token.length() && regionMatchesIgnoreCase(pos, token)) return true;
+			pos = tokenEnd;
+		}
+		return false;
+	}
+	
+	/**
+	 * Copies the headers into a table keyed by lowercase name, the way the
+	 * rest of the proxy passes them around (repeated headers get joined with CRLFs)
+	 */
+	public Hashtable<String,String> copyHeadersTo(Hashtable<String,String> headers) {
+		for (int i = 0; i < headerCount; i++) {
+			String name = getName(i);
+			String value = getValue(i);
+			String existing = headers.get(name);
+			headers.put(name, (existing == null) ? value : existing + Utils.CRLF + value);
+		}
+		return headers;
+	}
+	
+	
+	private String string(int start, int end) {
+		return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+	
+	private int indexOf(char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] == c) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Does the buffer have the given (ascii) string at an offset, ignoring case?
+	 */
+	private boolean regionMatchesIgnoreCase(int offset, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (toLower(buf[offset + i]) != Character.toLowerCase(s.charAt(i))) return false;
+		}
+		return true;
+	}
+	
+	private int findKnown(byte[][] table, int start, int end) {
+		return findKnown(table, start, end, true);
+	}
+	
+	/**
+	 * Looks for a region of the buffer in a table of known names
+	 * 
+	 * @param table names to look in (lowercase, if ignoring case)
+	 * @return index in the table, or -1 if it isn't there
+	 */
+	private int findKnown(byte[][] table, int start, int end, boolean ignoreCase) {
+		int length = end - start;
+		outer:
+		for (int k = 0; k < table.length; k++) {
+			byte[] name = table[k];
+			if (name.length != length) continue;
+			for (int i = 0; i < length; i++) {
+				byte b = buf[start + i];
+				if ((ignoreCase ? toLower(b) : b) != name[i]) continue outer;
+			}
+			return k;
+		}
+		return -1;
+	}
+	
+	private static byte toLower(byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+	}
+	
+	/**
+	 * Can this byte be part of a token (a method or header name)? (RFC 7230 section 3.2.6)
+	 */
+	private static boolean isTokenChar(byte b) {
+		if (b <= 32 || b >= 127) return false;
+		switch (b) {
+		case '(': case ')': case ',': case '/': case ':': case ';': case '<': case '=':
+		case '>': case '?': case '@': case '[': case '\\': case ']': case '{': case '}': case '"':
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	private static byte[][] toBytes(String[] strings) {
+		byte[][] bytes = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++) {
+			bytes[i] = strings[i].getBytes(StandardCharsets.ISO_8859_1);
+		}
+		return bytes;
+	}
+}
@@ -47,6 +47,8 @@ public enum HttpStatus {
 	EXPECTATION_FAILED		(417, "Expectation Failed"),
 	IM_A_TEAPOT				(418, "I'm a teapot",
 			"I'm a little teapot, short and stout. Here is my handle, here is my spout."),
+	REQ_HEADER_TOO_LARGE	(431, "Request Header Fields Too Large",
+			"The headers of your request were too large for the server to process."),
 	
 	INTERNAL_SERVER_ERROR	(500, "Internal Server Error",
 			"An unknown error occurred."),
@@ -64,6 +66,7 @@ public enum HttpStatus {
 	public final int code;
 	public final String name;
 	public final String description;
+	public final String statusLine; // the whole status line, like "HTTP/1.1 200 OK"
 	
 	HttpStatus(int code, String name) {
 		this(code, name, "See <a href=\"http://httpstatus.es/" 
@@ -74,6 +77,7 @@ public enum HttpStatus {
         this.code = code;
         this.name = name;
         this.description = description;
+        this.statusLine = Utils.HTTP_VERSION + " " + code + " " + name;
     }
 	
 	public String getFullName() {
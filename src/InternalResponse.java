@@ -0,0 +1,110 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+
+
+/**
+ * A response generated by the proxy itself (internal server pages, static
+ * files, and error messages), independent of which engine ends up sending it
+ */
+public class InternalResponse {
+	
+	final HttpStatus status;
+	final LinkedHashMap<String,String> headers = new LinkedHashMap<String,String>();
+	
+	byte[] body = new byte[0]; // body to send, if not sending a file
+	File file; // file whose contents make up the body, or null
+	
+	public InternalResponse(HttpStatus status) {
+		this.status = status;
+	}
+	
+	/**
+	 * Adds a header to be sent with this response (besides Content-Length,
+	 * which is always worked out when the response gets sent)
+	 */
+	public void setHeader(String key, String value) {
+		headers.put(key, value);
+	}
+	
+	/**
+	 * Sets the body to some text of the given content type
+	 */
+	public void setBody(String body, String contentType) {
+		this.body = body.getBytes(StandardCharsets.UTF_8);
+		this.file = null;
+		setHeader("Content-Type", contentType);
+	}
+	
+	/**
+	 * Sets the body to some bytes of the given content type
+	 */
+	public void setBody(byte[] body, String contentType) {
+		this.body = body;
+		this.file = null;
+		if (contentType != null) setHeader("Content-Type", contentType);
+	}
+	
+	/**
+	 * Sets the body to the contents of a file
+	 */
+	public void setFile(File file) {
+		this.body = new byte[0];
+		this.file = file;
+	}
+	
+	/**
+	 * Can this response have a body (and a Content-Length) at all?
+	 */
+	public boolean hasBody() {
+		return status != HttpStatus.NOT_MODIFIED && status != HttpStatus.NO_CONTENT;
+	}
+	
+	/**
+	 * Gets the number of bytes in the body
+	 */
+	public long getContentLength() {
+		return (file != null) ? file.length() : body.length;
+	}
+	
+	/**
+	 * Creates a response with some html text
+	 */
+	public static InternalResponse html(HttpStatus status, String body) {
+		InternalResponse response = new InternalResponse(status);
+		response.setBody(body, "text/html");
+		return response;
+	}
+	
+	/**
+	 * Creates a simple HTML page with a title and a message
+	 */
+	public static InternalResponse message(HttpStatus status, String title, String message) {
+		return html(status, Utils.getSimpleHtmlMessage(title, message));
+	}
+	
+	/**
+	 * Creates a generic message for the given HTTP status
+	 */
+	public static InternalResponse forStatus(HttpStatus status) {
+		return message(status, status.getFullName(), status.description);
+	}
+	
+	/**
+	 * Creates a response for a client that tried to use a method that isn't allowed
+	 */
+	public static InternalResponse methodNotAllowed(String allowedMethods) {
+		InternalResponse response = forStatus(HttpStatus.METHOD_NOT_ALLOWED);
+		response.setHeader("Allow", allowedMethods);
+		return response;
+	}
+	
+	/**
+	 * Creates a response telling the client to look somewhere else for the resource they requested
+	 */
+	public static InternalResponse redirect(String location) {
+		InternalResponse response = forStatus(HttpStatus.MOVED_PERMANENTLY);
+		response.setHeader("Location", location);
+		return response;
+	}
+}
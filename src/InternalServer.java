@@ -0,0 +1,221 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Hashtable;
+
+
+/**
+ * Serves requests for the proxy's own pages (anything requested with a
+ * path rather than an absolute URL): the homepage, server actions, the
+ * proxy auto-config file, and static files from Utils.DOCUMENT_ROOT
+ */
+public class InternalServer {
+	
+	/**
+	 * Works out the response to a request to the internal server
+	 * 
+	 * @param id number identifying the connection the request came in on; used for logging
+	 * @param method HTTP method being used
+	 * @param requestUrl the path that was requested
+	 * @param host hostname that our client is connecting to us at
+	 * @param requestHeaders headers of the request, keyed by lowercase name
+	 */
+	public static InternalResponse handle(int id, String method, String requestUrl, String host,
+			Hashtable<String,String> requestHeaders) throws IOException {
+		
+		requestUrl = URLDecoder.decode(requestUrl, "UTF-8");
+		
+		if (!Utils.ENABLE_INTERNAL_SERVER) {
+			Utils.logRequestError(id, "Tried to access internal server while disabled");
+			return InternalResponse.forStatus(HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		
+		if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("HEAD")) {
+			return InternalResponse.methodNotAllowed("GET, HEAD");
+		}
+		
+		String[] requestParams = requestUrl.split("/");
+		
+		
+		if (requestParams.length <= 1) {
+			// a simple homepage
+			
+			String body = "<div class=\"col-md-12\">"
+					+ "<p class=\"text-center\">Made by Hayden Schiff and Shir Maimon</p>"
+					+ "</div>";
+			body += "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
+					+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/proxy.pac\">Download proxy auto-config file</a>"
+					+ "</p></div>";
+			if (Utils.ENABLE_INTERNAL_ACTIONS) {
+				body += "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
+						+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/action/proxyon\">Enable proxy service</a>"
+						+ "</p></div>"
+						+ "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
+						+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/action/proxyoff\">Disable proxy service</a>"
+						+ "</p></div>"
+						+ "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
+						+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/action/exit\">Shut down the server</a>"
+						+ "</p></div>";
+			}
+
+			if (Utils.ENABLE_STATIC_FILES && Utils.ENABLE_DIRECTORY_INDEXING) {
+				body += "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
+						+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/index\">View file index</a>"
+						+ "</p></div>";
+			}
+			if (Utils.ENABLE_METRICS) {
+				body += "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
+						+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/metrics\">View metrics</a>"
+						+ "</p></div>";
+			}
+			body += "<div class=\"clearfix\"></div>";
+			
+			return InternalResponse.html(HttpStatus.OK, Utils.getSimpleHtml(
+					"Welcome to " + Utils.SERVER_NAME + "!",
+					body,
+					".page-header h1, footer { text-align:center; }"
+			));
+			
+		} else if (requestParams[1].equals("action") && requestParams.length > 2) {
+			// actions for controlling the server
+			
+			if (!Utils.ENABLE_INTERNAL_ACTIONS) {
+				return InternalResponse.forStatus(HttpStatus.FORBIDDEN);
+			}
+			
+			if (requestParams.length == 3 && requestParams[2].equals("exit")) { // shut down the server
+				ProxyServer.isAlive = false;
+				return InternalResponse.message(
+						HttpStatus.ACCEPTED,
+						"Exit command received",
+						"The server is no longer accepting new connections, and "
+						+ "will shutdown after all active connections are closed."
+				);
+				
+			} else if (requestParams.length == 3 && requestParams[2].equals("proxyon")) { // enable proxy
+				ProxyServer.isProxyActive = true;
+				return InternalResponse.message(
+						HttpStatus.ACCEPTED,
+						"Proxy enabled",
+						"The server will now accept proxy requests."
+				);
+				
+			} else if (requestParams.length == 3 && requestParams[2].equals("proxyoff")) { // disable proxy
+				ProxyServer.isProxyActive = false;
+				return InternalResponse.message(
+						HttpStatus.ACCEPTED,
+						"Proxy disabled",
+						"The server will stop accepting proxy requests."
+				);
+				
+			}
+			
+		} else if (requestParams.length == 2 && requestParams[1].equals("teapot")) { // i couldn't resist
+			
+			return InternalResponse.forStatus(HttpStatus.IM_A_TEAPOT);
+			
+			
+		} else if (requestParams.length == 2 && requestParams[1].equals("metrics") && Utils.ENABLE_METRICS) {
+			// how the proxy is performing; browsers get a page, and anything else
+			// (like Prometheus) gets the plain text exposition format
+			
+			InternalResponse response;
+			String accept = requestHeaders.get("accept");
+			if (accept != null && accept.contains("text/html")) {
+				response = InternalResponse.html(HttpStatus.OK, Metrics.shared.toHtml());
+			} else {
+				response = new InternalResponse(HttpStatus.OK);
+				response.setBody(Metrics.shared.toPrometheus(), "text/plain; version=0.0.4; charset=utf-8");
+			}
+			response.setHeader("Cache-Control", "no-store");
+			return response;
+			
+			
+		} else if (requestParams.length == 2 && requestParams[1].equals("proxy.pac")) { // auto config file for proxy
+			
+			// many browsers and OSes let you specify the URL of an auto-config
+			// file like this, to simplify the configuration of the proxy
+			
+			String body = "function FindProxyForURL(url, host)"
+					+ "{"
+					+ "return \"PROXY " + host + "; DIRECT\";"
+					+ "}";
+			
+			InternalResponse response = new InternalResponse(HttpStatus.OK);
+			response.setBody(body, "application/x-ns-proxy-autoconfig");
+			return response;
+			
+			
+		} else { // get file from local filesystem
+			
+			if (!Utils.ENABLE_STATIC_FILES) {
+				return InternalResponse.forStatus(HttpStatus.FORBIDDEN);
+			}
+			
+			if (requestUrl.equals("/index")) requestUrl = "/";
+			
+			File file = new File(Utils.DOCUMENT_ROOT + requestUrl);
+			
+			// return a folder index if it's a directory
+			if (file.isDirectory()) {
+				
+				if (!Utils.ENABLE_DIRECTORY_INDEXING) {
+					return InternalResponse.forStatus(HttpStatus.FORBIDDEN);
+				}
+				
+				if (!requestUrl.endsWith("/")) {
+					return InternalResponse.redirect(requestUrl +"/");
+				}
+				
+				// listings only need rendering again after something in the directory changes
+				StaticFileCache.Entry listing = StaticFileCache.shared.getListing(file);
+				if (listing == null) {
+					long generation = StaticFileCache.shared.getGeneration();
+					listing = StaticFileCache.shared.putListing(file, renderIndex(file, requestUrl), generation);
+				}
+				return listing.toResponse(requestHeaders);
+			}
+			// not found if file doesn't exist
+			if (!file.exists()) {
+				return InternalResponse.forStatus(HttpStatus.NOT_FOUND);
+			}
+			
+			// try to get the content type
+			String fileName = file.getName();
+			String fileExt = fileName.substring(fileName.lastIndexOf(".")+1);
+			String fileContentType = Utils.getMimetypeForExtension(fileExt);//Files.probeContentType(requestedFile.toPath());
+			
+			return StaticFileCache.shared.getFile(file, fileContentType).toResponse(requestHeaders);
+		}
+		
+		return InternalResponse.forStatus(HttpStatus.NOT_FOUND);
+	}
+	
+	/**
+	 * Renders the HTML listing of a directory's contents
+	 */
+	static String renderIndex(File directory, String requestUrl) {
+		File[] contents = directory.listFiles();
+		
+		String body = "<div class=\"col-md-12\">"
+				+ "<p><a href=\"../\">&laquo; Go up a level</a></p>";
+		
+		if (contents.length > 0) {
+			body += "<ul>";
+			for (File f : contents) {
+				String path = f.getName();
+				if (f.isDirectory()) path += "/";
+				body += "<li>"
+						+ "<a href=\"" + path + "\">" + path + "</a>"
+						+ "</li>";
+			}
+			body += "</ul>";
+		} else {
+			body += "<p>This directory is empty.</p>";
+		}
+		
+		body += "</div>";
+
+		return Utils.getSimpleHtml("Index of " + requestUrl, body, "");
+	}
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Accepts connections for either engine, on one or more acceptor threads.
+ * With more than one, each acceptor gets its own listening socket bound to
+ * the same port with SO_REUSEPORT where the OS supports it (Linux 3.9+),
+ * so the kernel spreads incoming connections across them and they never
+ * contend with each other; elsewhere they all take turns accepting on one
+ * shared socket. Each acceptor hands what it accepts to its own group of
+ * workers or event loops.
+ */
+public class Listener {
+	
+	/**
+	 * What gets done with each accepted connection (called on the acceptor's thread)
+	 */
+	public interface Handler {
+		
+		/**
+		 * @param id a unique number for the connection
+		 * @param acceptor which acceptor took it, from 0 to getAcceptorCount() - 1
+		 */
+		void accepted(SocketChannel channel, int id, int acceptor) throws IOException;
+	}
+	
+	// SO_REUSEPORT only exists on Java 9+, so it's looked up reflectively (null if it doesn't)
+	static final SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
+	
+	private final ServerSocketChannel[] channels; // one per acceptor, or just one that they all share
+	private final int acceptorCount;
+	private final AtomicInteger nextId = new AtomicInteger();
+	
+	// statistics
+	private final AtomicLongArray accepted; // connections taken by each acceptor
+	
+	/**
+	 * Binds to a port
+	 * 
+	 * @param acceptors number of acceptor threads, or 0 for one per CPU core
+	 * @param backlog most connections the OS queues up for each listening socket before they're accepted
+	 * @param reusePort should each acceptor get its own socket, if the OS supports it?
+	 */
+	public Listener(int port, int acceptors, int backlog, boolean reusePort) throws IOException {
+		if (acceptors <= 0) acceptors = Runtime.getRuntime().availableProcessors();
+		acceptorCount = acceptors;
+		accepted = new AtomicLongArray(acceptors);
+		
+		ServerSocketChannel first = ServerSocketChannel.open();
+		boolean separate = reusePort && acceptors > 1 && SO_REUSEPORT != null
+				&& first.supportedOptions().contains(SO_REUSEPORT);
+		channels = new ServerSocketChannel[separate ? acceptors : 1];
+		channels[0] = first;
+		try {
+			if (separate) first.setOption(SO_REUSEPORT, true);
+			first.bind(new InetSocketAddress(port), backlog);
+			
+			// (port 0 picks a free port, which the rest then have to share)
+			port = first.socket().getLocalPort();
+			for (int i = 1; i < channels.length; i++) {
+				channels[i] = ServerSocketChannel.open();
+				channels[i].setOption(SO_REUSEPORT, true);
+				channels[i].bind(new InetSocketAddress(port), backlog);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		
+		if (reusePort && acceptors > 1 && !separate) {
+			Utils.logError("SO_REUSEPORT isn't supported here; acceptors will share one listening socket");
+		}
+	}
+	
+	public int getPort() {
+		return channels[0].socket().getLocalPort();
+	}
+	
+	public int getAcceptorCount() {
+		return acceptorCount;
+	}
+	
+	/**
+	 * Does each acceptor have a listening socket of its own?
+	 */
+	public boolean isReusingPort() {
+		return channels.length > 1;
+	}
+	
+	/**
+	 * Accepts connections on every acceptor until the server is told to shut
+	 * down, and then closes the listening sockets
+	 */
+	public void serve(final Handler handler) {
+		Thread[] threads = new Thread[acceptorCount];
+		for (int i = 0; i < acceptorCount; i++) {
+			final int acceptor = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					accept(handler, acceptor);
+				}
+			}, "Acceptor-" + i);
+			threads[i].start();
+		}
+		
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+	
+	private void accept(Handler handler, int acceptor) {
+		ServerSocketChannel channel = channels[acceptor % channels.length];
+		while (ProxyServer.isAlive) {
+			try {
+				SocketChannel client = channel.accept();
+				if (!ProxyServer.isAlive) {
+					client.close();
+					break;
+				}
+				
+				accepted.incrementAndGet(acceptor);
+				handler.accepted(client, nextId.getAndIncrement(), acceptor);
+			} catch (IOException e) {
+				if (!channel.isOpen()) break;
+				Utils.logError("Failed to accept request");
+			}
+		}
+		
+		// whoever notices the shutdown first wakes the rest by closing their sockets
+		close();
+	}
+	
+	/**
+	 * Closes every listening socket (acceptors blocked on them give up)
+	 */
+	public void close() {
+		for (ServerSocketChannel channel : channels) {
+			if (channel == null) continue;
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Summarizes how many connections each acceptor took, for logging
+	 */
+	public String getStats() {
+		StringBuilder stats = new StringBuilder("accepted=[");
+		for (int i = 0; i < acceptorCount; i++) {
+			if (i > 0) stats.append(' ');
+			stats.append(accepted.get(i));
+		}
+		return stats.append(']').toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
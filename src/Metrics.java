@@ -0,0 +1,533 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Keeps track of how the proxy is performing: requests by method and
+ * status, bytes in and out, and how long requests take. The counters are
+ * split into a fixed set of stripes, and each thread records into the
+ * stripe its id hashes to, so threads rarely contend over the same
+ * counters however many of them there are (with a virtual thread per
+ * connection, that's a lot); the stripes are added up when someone asks
+ * for them (see the internal server's /metrics page).
+ * 
+ * Latencies go into log-linear histograms (8 buckets per power of two
+ * microseconds, so within about 12%), which are cheap to update and merge.
+ * Requests fetched from a remote server also add each of their phases
+ * (see RequestTiming) to a histogram per phase.
+ */
+public class Metrics {
+	
+	// methods that get their own counters; everything else counts as "OTHER"
+	static final String[] METHODS = { "GET", "HEAD", "POST", "PUT", "PATCH", "CONNECT", "OTHER" };
+	
+	// status codes that get counted
+	static final int MIN_STATUS = 100;
+	static final int MAX_STATUS = 599;
+	
+	// latency histogram layout
+	static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	// most stripes of counters kept, however many cores there are
+	static final int MAX_STRIPES = 64;
+	
+	// latency percentiles that get reported
+	static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	
+	// indexes into each recorder's totals
+	private static final int LATENCY_SUM = 0; // in microseconds
+	private static final int BYTES_IN = 1;
+	private static final int BYTES_OUT = 2;
+	
+	// the metrics everything records into (after the constants it needs)
+	static final Metrics shared = new Metrics();
+	
+	// connections currently being served
+	final AtomicInteger activeConnections = new AtomicInteger();
+	
+	// the stripes (a power of 2 of them, about two per core)
+	private final Recorder[] stripes;
+	
+	public Metrics() {
+		int count = 1;
+		while (count < Runtime.getRuntime().availableProcessors() * 2 && count < MAX_STRIPES) {
+			count <<= 1;
+		}
+		stripes = new Recorder[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Recorder();
+		}
+	}
+	
+	/**
+	 * Records a request that's been answered
+	 * 
+	 * @param status status code sent to the client, or 0 if none was
+	 * @param nanos how long it took, from when its head arrived to when the response was done
+	 * @param timing how long each phase of fetching it took; may be null
+	 */
+	public void recordRequest(String method, int status, long nanos, long bytesIn, long bytesOut, RequestTiming timing) {
+		if (!Utils.ENABLE_METRICS) return;
+		Recorder recorder = getStripe();
+		
+		recorder.increment(recorder.methods, getMethodIndex(method), 1);
+		if (status >= MIN_STATUS && status <= MAX_STATUS) {
+			recorder.increment(recorder.statuses, status - MIN_STATUS, 1);
+		}
+		
+		long micros = nanos / 1000;
+		recorder.increment(recorder.latencies, getBucket(micros), 1);
+		recorder.increment(recorder.totals, LATENCY_SUM, micros);
+		recorder.increment(recorder.totals, BYTES_IN, bytesIn);
+		recorder.increment(recorder.totals, BYTES_OUT, bytesOut);
+		
+		if (timing == null) return;
+		for (int phase = 0; phase < RequestTiming.PHASES.length; phase++) {
+			long phaseNanos = timing.get(phase);
+			if (phaseNanos < 0) continue;
+			long phaseMicros = phaseNanos / 1000;
+			recorder.increment(recorder.phases, phase * BUCKET_COUNT + getBucket(phaseMicros), 1);
+			recorder.increment(recorder.phaseTotals, phase * 2, 1);
+			recorder.increment(recorder.phaseTotals, phase * 2 + 1, phaseMicros);
+		}
+	}
+	
+	/**
+	 * Picks the current thread's stripe, by scrambling its id (ids are
+	 * handed out in order, so neighbouring threads land far apart)
+	 */
+	private Recorder getStripe() {
+		long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+	}
+	
+	/**
+	 * Adds up every stripe's counters
+	 */
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		for (Recorder recorder : stripes) {
+			snapshot.add(recorder);
+		}
+		return snapshot;
+	}
+	
+	static int getMethodIndex(String method) {
+		for (int i = 0; i < METHODS.length - 1; i++) {
+			if (METHODS[i].equalsIgnoreCase(method)) return i;
+		}
+		return METHODS.length - 1;
+	}
+	
+	/**
+	 * Works out which histogram bucket a latency goes in
+	 */
+	static int getBucket(long micros) {
+		if (micros < SUB_BUCKETS) return (int) Math.max(micros, 0);
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * Gets the latency in the middle of a histogram bucket, in microseconds
+	 */
+	static double getBucketValue(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+		return lower + width / 2.0;
+	}
+	
+	
+	/**
+	 * Renders every metric in the Prometheus text format
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		for (Family family : collect()) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (int i = 0; i < family.values.size(); i++) {
+				out.append(family.getSampleName(i)).append(family.labels.get(i))
+						.append(' ').append(family.values.get(i)).append('\n');
+			}
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Renders every metric as a human-readable page
+	 */
+	public String toHtml() {
+		StringBuilder body = new StringBuilder("<div class=\"col-md-12\">");
+		body.append("<p>These are also available to Prometheus at this address.</p>");
+		body.append("<table class=\"table table-condensed\">");
+		for (Family family : collect()) {
+			body.append("<tr class=\"active\"><th colspan=\"2\">").append(family.help)
+					.append(" <small><code>").append(family.name).append("</code></small></th></tr>");
+			for (int i = 0; i < family.values.size(); i++) {
+				String sample = family.suffixes.get(i) + family.labels.get(i).replace("\"", "");
+				body.append("<tr><td>").append(sample.isEmpty() ? "value" : sample)
+						.append("</td><td>").append(family.values.get(i)).append("</td></tr>");
+			}
+		}
+		body.append("</table></div>");
+		return Utils.getSimpleHtml("Metrics", body.toString(), "td:last-child { text-align: right; }");
+	}
+	
+	/**
+	 * Gathers up every metric, from the request counters and the proxy's caches and pools
+	 */
+	private ArrayList<Family> collect() {
+		ArrayList<Family> families = new ArrayList<Family>();
+		Snapshot snapshot = snapshot();
+		
+		Family requests = new Family("awesomeproxy_requests_total", "counter", "Requests served, by method");
+		for (int i = 0; i < METHODS.length; i++) {
+			requests.add("{method=\"" + METHODS[i] + "\"}", snapshot.methods[i]);
+		}
+		families.add(requests);
+		
+		Family responses = new Family("awesomeproxy_responses_total", "counter", "Responses sent, by status code");
+		for (int i = 0; i < snapshot.statuses.length; i++) {
+			if (snapshot.statuses[i] > 0) responses.add("{code=\"" + (i + MIN_STATUS) + "\"}", snapshot.statuses[i]);
+		}
+		families.add(responses);
+		
+		Family latency = new Family("awesomeproxy_request_duration_seconds", "summary", "Time taken to answer requests");
+		for (double quantile : QUANTILES) {
+			latency.add("{quantile=\"" + quantile + "\"}", snapshot.getPercentile(quantile) / 1e6);
+		}
+		latency.add("_sum", "", snapshot.totals[LATENCY_SUM] / 1e6);
+		latency.add("_count", "", snapshot.count);
+		families.add(latency);
+		
+		Family phases = new Family("awesomeproxy_phase_duration_seconds", "summary",
+				"Time taken by each phase of fetching responses from remote servers");
+		for (int phase = 0; phase < RequestTiming.PHASES.length; phase++) {
+			String label = "phase=\"" + RequestTiming.PHASES[phase] + "\"";
+			for (double quantile : QUANTILES) {
+				phases.add("{" + label + ",quantile=\"" + quantile + "\"}", snapshot.getPhasePercentile(phase, quantile) / 1e6);
+			}
+			phases.add("_sum", "{" + label + "}", snapshot.phaseTotals[phase * 2 + 1] / 1e6);
+			phases.add("_count", "{" + label + "}", snapshot.phaseTotals[phase * 2]);
+		}
+		families.add(phases);
+		
+		families.add(new Family("awesomeproxy_client_received_bytes_total", "counter", "Bytes received from clients")
+				.add("", snapshot.totals[BYTES_IN]));
+		families.add(new Family("awesomeproxy_client_sent_bytes_total", "counter", "Bytes sent to clients")
+				.add("", snapshot.totals[BYTES_OUT]));
+		families.add(new Family("awesomeproxy_active_connections", "gauge", "Client connections being served")
+				.add("", activeConnections.get()));
+		
+		ResponseCache cache = ResponseCache.shared;
+		families.add(new Family("awesomeproxy_cache_lookups_total", "counter", "Response cache lookups, by result")
+				.add("{result=\"hit\"}", cache.hits.get())
+				.add("{result=\"miss\"}", cache.misses.get()));
+		families.add(new Family("awesomeproxy_cache_stores_total", "counter", "Responses stored in the response cache")
+				.add("", cache.stores.get()));
+		families.add(new Family("awesomeproxy_cache_evictions_total", "counter", "Responses evicted from the memory cache")
+				.add("", cache.evictions.get()));
+		families.add(new Family("awesomeproxy_cache_stale_total", "counter", "Stale responses revalidated with a 304, or served stale")
+				.add("{result=\"revalidated\"}", cache.revalidated.get())
+				.add("{result=\"served_stale\"}", cache.staleHits.get()));
+		families.add(new Family("awesomeproxy_cache_invalidations_total", "counter", "URLs dropped from the response cache after unsafe requests")
+				.add("", cache.invalidations.get()));
+		families.add(new Family("awesomeproxy_background_revalidations_total", "counter", "Background revalidations, by outcome")
+				.add("{result=\"started\"}", CacheRevalidator.shared.started.get())
+				.add("{result=\"skipped\"}", CacheRevalidator.shared.skipped.get()));
+		TunnelRelay tunnels = TunnelRelay.shared;
+		families.add(new Family("awesomeproxy_tunnels_total", "counter", "CONNECT tunnels, by outcome")
+				.add("{result=\"opened\"}", tunnels.opened.get())
+				.add("{result=\"failed\"}", tunnels.failed.get())
+				.add("{result=\"idle_timeout\"}", tunnels.idleTimeouts.get()));
+		families.add(new Family("awesomeproxy_tunnels_active", "gauge", "CONNECT tunnels open right now")
+				.add("", tunnels.active.get()));
+		families.add(new Family("awesomeproxy_tunnel_bytes_total", "counter", "Bytes relayed through CONNECT tunnels, by direction")
+				.add("{direction=\"up\"}", tunnels.bytesUp.get())
+				.add("{direction=\"down\"}", tunnels.bytesDown.get()));
+		RequestCoalescer coalescer = RequestCoalescer.shared;
+		families.add(new Family("awesomeproxy_collapsed_requests_total", "counter", "Requests that took part in collapsed forwarding, by role")
+				.add("{role=\"leader\"}", coalescer.leaders.get())
+				.add("{role=\"follower_hit\"}", coalescer.hits.get())
+				.add("{role=\"follower_fallback\"}", coalescer.fallbacks.get()));
+		if (ReverseProxy.shared.enabled) {
+			Family backendRequests = new Family("awesomeproxy_backend_requests_total", "counter", "Requests sent to each backend");
+			Family backendFailures = new Family("awesomeproxy_backend_failures_total", "counter", "Requests each backend failed");
+			Family backendEjections = new Family("awesomeproxy_backend_ejections_total", "counter", "Times each backend was ejected for failing");
+			Family backendOutstanding = new Family("awesomeproxy_backend_outstanding_requests", "gauge", "Requests in progress on each backend");
+			long now = System.currentTimeMillis();
+			Family backendEjected = new Family("awesomeproxy_backend_ejected", "gauge", "Whether each backend is ejected right now");
+			for (ReverseProxy.Group group : ReverseProxy.shared.getGroups()) {
+				for (ReverseProxy.Backend backend : group.backends) {
+					String labels = "{route=\"" + group.name + "\",backend=\"" + backend + "\"}";
+					backendRequests.add(labels, backend.requests.get());
+					backendFailures.add(labels, backend.failures.get());
+					backendEjections.add(labels, backend.ejections.get());
+					backendOutstanding.add(labels, backend.outstanding.get());
+					backendEjected.add(labels, backend.isEjected(now) ? 1 : 0);
+				}
+			}
+			families.add(backendRequests);
+			families.add(backendFailures);
+			families.add(backendEjections);
+			families.add(backendOutstanding);
+			families.add(backendEjected);
+		}
+		Family cacheBytes = new Family("awesomeproxy_cache_bytes", "gauge", "Bytes held by the response cache, by tier")
+				.add("{tier=\"memory\"}", cache.getSize());
+		families.add(cacheBytes);
+		if (cache.disk != null) {
+			cacheBytes.add("{tier=\"disk\"}", cache.disk.getSize());
+			families.add(new Family("awesomeproxy_disk_cache_hits_total", "counter", "Lookups answered by the disk cache")
+					.add("", cache.disk.hits.get()));
+		}
+		
+		ConnectionPool pool = ConnectionPool.shared;
+		families.add(new Family("awesomeproxy_pool_checkouts_total", "counter", "Remote connections handed out, by whether they were reused")
+				.add("{reused=\"true\"}", pool.reuses.get())
+				.add("{reused=\"false\"}", pool.checkouts.get() - pool.reuses.get()));
+		families.add(new Family("awesomeproxy_pool_idle_connections", "gauge", "Idle remote connections held open")
+				.add("", pool.getIdleCount()));
+		families.add(new Family("awesomeproxy_pool_discards_total", "counter", "Idle remote connections closed, by reason")
+				.add("{reason=\"stale\"}", pool.staleDiscards.get())
+				.add("{reason=\"timeout\"}", pool.evictions.get()));
+		
+		DnsCache dns = DnsCache.shared;
+		families.add(new Family("awesomeproxy_dns_lookups_total", "counter", "Hostname lookups, by result")
+				.add("{result=\"hit\"}", dns.hits.get())
+				.add("{result=\"negative_hit\"}", dns.negativeHits.get())
+				.add("{result=\"miss\"}", dns.misses.get())
+				.add("{result=\"joined\"}", dns.joined.get())
+				.add("{result=\"refresh\"}", dns.refreshes.get())
+				.add("{result=\"refresh_failed\"}", dns.refreshFailures.get()));
+		
+		families.add(new Family("awesomeproxy_timers_pending", "gauge", "Connection deadlines waiting on the timer wheel")
+				.add("", TimerWheel.shared.getPendingCount()));
+		
+		AdmissionControl admission = AdmissionControl.shared;
+		if (admission.enabled) {
+			families.add(new Family("awesomeproxy_admission_limit", "gauge", "Requests to remote servers allowed in progress at once")
+					.add("", admission.getLimit()));
+			families.add(new Family("awesomeproxy_admission_in_flight", "gauge", "Requests to remote servers holding a slot")
+					.add("", admission.getInFlight()));
+			families.add(new Family("awesomeproxy_admission_queued", "gauge", "Requests waiting for a slot")
+					.add("", admission.getQueueLength()));
+			families.add(new Family("awesomeproxy_admission_total", "counter", "Requests to remote servers, by what admission control did with them")
+					.add("{outcome=\"admitted\"}", admission.admitted.get())
+					.add("{outcome=\"queued\"}", admission.queued.get())
+					.add("{outcome=\"rejected\"}", admission.rejected.get())
+					.add("{outcome=\"timed_out\"}", admission.timedOut.get()));
+		}
+		families.add(new Family("awesomeproxy_connections_turned_away_total", "counter", "Connections shed before being served, for lack of a free worker")
+				.add("", admission.turnedAway.get()));
+		
+		StaticFileCache files = StaticFileCache.shared;
+		families.add(new Family("awesomeproxy_static_lookups_total", "counter", "Static file and listing lookups, by result")
+				.add("{result=\"hit\"}", files.hits.get())
+				.add("{result=\"miss\"}", files.misses.get())
+				.add("{result=\"not_modified\"}", files.notModified.get()));
+		
+		if (Utils.LOG_ASYNC) {
+			families.add(new Family("awesomeproxy_log_events_total", "counter", "Log events, by what happened to them")
+					.add("{outcome=\"published\"}", AsyncLogger.shared.published.get())
+					.add("{outcome=\"dropped\"}", AsyncLogger.shared.dropped.get()));
+		}
+		return families;
+	}
+	
+	
+	/**
+	 * Counts bytes read from a stream (see Metrics.recordRequest)
+	 */
+	static class CountingInputStream extends FilterInputStream {
+		long count;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+	
+	/**
+	 * Counts bytes written to a stream (see Metrics.recordRequest)
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+		long count;
+		
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+	
+	
+	/**
+	 * One stripe's counters. The threads that share a stripe each add to
+	 * them atomically, without locking.
+	 */
+	private static class Recorder {
+		final AtomicLongArray methods = new AtomicLongArray(METHODS.length);
+		final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS - MIN_STATUS + 1);
+		final AtomicLongArray latencies = new AtomicLongArray(BUCKET_COUNT);
+		final AtomicLongArray totals = new AtomicLongArray(3);
+		final AtomicLongArray phases = new AtomicLongArray(RequestTiming.PHASES.length * BUCKET_COUNT); // a histogram per phase
+		final AtomicLongArray phaseTotals = new AtomicLongArray(RequestTiming.PHASES.length * 2); // count and sum per phase
+		
+		void increment(AtomicLongArray counters, int i, long delta) {
+			counters.addAndGet(i, delta);
+		}
+	}
+	
+	/**
+	 * Every stripe's counters, added up at one point in time
+	 */
+	static class Snapshot {
+		final long[] methods = new long[METHODS.length];
+		final long[] statuses = new long[MAX_STATUS - MIN_STATUS + 1];
+		final long[] latencies = new long[BUCKET_COUNT];
+		final long[] totals = new long[3];
+		final long[] phases = new long[RequestTiming.PHASES.length * BUCKET_COUNT];
+		final long[] phaseTotals = new long[RequestTiming.PHASES.length * 2];
+		long count; // requests in the latency histogram
+		
+		void add(Recorder recorder) {
+			add(methods, recorder.methods);
+			add(statuses, recorder.statuses);
+			add(latencies, recorder.latencies);
+			add(totals, recorder.totals);
+			add(phases, recorder.phases);
+			add(phaseTotals, recorder.phaseTotals);
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				count += recorder.latencies.get(i);
+			}
+		}
+		
+		private static void add(long[] to, AtomicLongArray from) {
+			for (int i = 0; i < to.length; i++) {
+				to[i] += from.get(i);
+			}
+		}
+		
+		/**
+		 * Gets the latency that a fraction of requests took no longer than, in microseconds
+		 */
+		double getPercentile(double quantile) {
+			return getPercentile(latencies, 0, count, quantile);
+		}
+		
+		/**
+		 * Gets the time that a fraction of one phase took no longer than, in microseconds
+		 */
+		double getPhasePercentile(int phase, double quantile) {
+			return getPercentile(phases, phase * BUCKET_COUNT, phaseTotals[phase * 2], quantile);
+		}
+		
+		/**
+		 * Finds a percentile in the histogram starting at offset
+		 */
+		private static double getPercentile(long[] histogram, int offset, long count, double quantile) {
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				seen += histogram[offset + i];
+				if (seen >= rank) return getBucketValue(i);
+			}
+			return getBucketValue(BUCKET_COUNT - 1);
+		}
+	}
+	
+	/**
+	 * A metric and its samples, ready to be rendered
+	 */
+	private static class Family {
+		final String name;
+		final String type;
+		final String help;
+		final ArrayList<String> suffixes = new ArrayList<String>(); // like "_sum", or ""
+		final ArrayList<String> labels = new ArrayList<String>(); // like {method="GET"}, or ""
+		final ArrayList<String> values = new ArrayList<String>();
+		
+		Family(String name, String type, String help) {
+			this.name = name;
+			this.type = type;
+			this.help = help;
+		}
+		
+		/**
+		 * Adds a sample
+		 * 
+		 * @param labels like {method="GET"}, or "" for none
+		 */
+		Family add(String labels, long value) {
+			return add("", labels, String.valueOf(value));
+		}
+		
+		Family add(String labels, double value) {
+			return add("", labels, String.format(Locale.US, "%.6f", value));
+		}
+		
+		Family add(String suffix, String labels, long value) {
+			return add(suffix, labels, String.valueOf(value));
+		}
+		
+		Family add(String suffix, String labels, double value) {
+			return add(suffix, labels, String.format(Locale.US, "%.6f", value));
+		}
+		
+		private Family add(String suffix, String labels, String value) {
+			suffixes.add(suffix);
+			this.labels.add(labels);
+			values.add(value);
+			return this;
+		}
+		
+		String getSampleName(int i) {
+			return name + suffixes.get(i);
+		}
+	}
+}
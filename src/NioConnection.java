@@ -0,0 +1,1219 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.Map;
+
+
+/**
+ * A client connection being served by the non-blocking engine. Each request
+ * on the connection steps through a small state machine as it's read,
+ * answered (either by the internal server or by a remote server), and
+ * written back, without ever blocking the event loop it belongs to.
+ */
+public class NioConnection {
+
+	enum State {
+		READING_REQUEST, // waiting for a full request header block from the client
+		QUEUED, // waiting for AdmissionControl to give the request a slot
+		RESOLVING, // looking up the remote hostname
+		CONNECTING, // waiting for the connection to the remote server to open
+		SENDING_REQUEST, // writing the request (and any body) to the remote server
+		READING_RESPONSE, // waiting for a full response header block from the remote server
+		RELAYING_RESPONSE, // passing the remote server's response along to the client
+		WRITING_RESPONSE, // writing a response generated by the proxy itself
+		TUNNELING, // relaying bytes both ways for a CONNECT tunnel
+		CLOSED
+	}
+
+	final NioEventLoop loop;
+	final int id; // a unique number identifying this connection; used for logging
+
+	State state;
+	long lastActivity; // when data last moved on this connection
+	long headStart; // when the first bytes of the request head being read arrived
+	long phaseStart; // when we started queueing for a slot, connecting to, or waiting on, the remote server
+	TimerWheel.Timeout timeout; // goes off when the current state's deadline might have passed
+	long timeoutAt; // when it goes off
+
+	String method; // HTTP method being used
+	String requestUrl; // absolute URL being requested from the remote server
+	int requestCount; // number of requests already served on this connection
+	boolean keepAlive; // should the client connection stay open after this response?
+
+	// for the metrics
+	boolean requestStarted; // has a request's head arrived since the last one was recorded?
+	long requestStart; // System.nanoTime() when it arrived
+	long admittedAt; // System.nanoTime() when it got a slot from AdmissionControl, or 0 if it doesn't hold one
+	int responseStatus; // status code sent to the client, or 0 if none was yet
+	long bytesIn, bytesOut; // bytes read from and written to the client since the last request was recorded
+	RequestTiming timing = new RequestTiming(); // how long each phase of fetching the response took
+
+	SocketChannel clientChannel; // connection to client
+	SelectionKey clientKey;
+	ByteBuffer clientBuffer; // bytes read from the client but not dealt with yet (null while idle)
+	HttpParser requestParser = new HttpParser(true); // parses the head of the request in clientBuffer
+	Hashtable<String,String> clientHeaders; // headers received from client
+	BodyFramer requestFramer; // finds the end of the client's request body
+	boolean expectContinue; // is the client waiting on a 100 Continue before it sends its body?
+	boolean tunneling; // is the request a CONNECT whose tunnel is being opened?
+	boolean clientDone, remoteDone; // has each side of the tunnel finished sending?
+
+	SocketChannel remoteChannel; // connection to remote
+	SelectionKey remoteKey;
+	ByteBuffer remoteBuffer; // bytes read from the remote server
+	String remoteHostname;
+	int remotePort;
+	ReverseProxy.Group backends; // our backends the request is routed to (null when forward proxying)
+	ReverseProxy.Backend backend; // the one picked to serve it (null until then)
+	HttpParser responseParser = new HttpParser(false); // parses the head of the response in remoteBuffer
+	Hashtable<String,String> remoteHeaders; // headers received from remote
+	BodyFramer responseFramer; // finds the end of the remote server's response body
+
+	ByteBuffer[] outgoing; // bytes waiting to be written to whichever side we're writing to
+	ByteBuffer headBuffer; // pooled buffer holding the head being written (outgoing[0])
+	FileChannel file; // static file being sent to the client
+	long filePosition;
+	long fileRemaining;
+
+	public NioConnection(NioEventLoop loop, SocketChannel clientChannel, int id) {
+		this.loop = loop;
+		this.clientChannel = clientChannel;
+		this.id = id;
+	}
+
+	/**
+	 * Starts waiting for the client's first request
+	 */
+	public void start() throws IOException {
+		clientKey = clientChannel.register(loop.selector, SelectionKey.OP_READ, this);
+		Metrics.shared.activeConnections.incrementAndGet();
+		state = State.READING_REQUEST;
+		lastActivity = System.currentTimeMillis();
+		updateTimeout();
+	}
+
+	/**
+	 * Deals with one of this connection's channels being ready
+	 */
+	public void handle(SelectionKey key) throws IOException {
+		if (key == clientKey) {
+			if (key.isReadable()) onClientReadable();
+			if (state != State.CLOSED && key.isValid() && key.isWritable()) onClientWritable();
+
+		} else if (key == remoteKey) {
+			if (key.isConnectable()) onRemoteConnectable();
+			if (state != State.CLOSED && key.isValid() && key.isReadable()) onRemoteReadable();
+			if (state != State.CLOSED && key.isValid() && key.isWritable()) onRemoteWritable();
+		}
+	}
+
+	private void onClientReadable() throws IOException {
+		if (state == State.READING_REQUEST) {
+			if (clientBuffer == null) clientBuffer = loop.acquireBuffer();
+			if (!clientBuffer.hasRemaining()) clientBuffer = grow(clientBuffer);
+			if (clientBuffer == null) {
+				logError("Request header block too large");
+				keepAlive = false;
+				respond(InternalResponse.forStatus(HttpStatus.REQ_HEADER_TOO_LARGE));
+				return;
+			}
+
+			boolean started = clientBuffer.position() > 0;
+			int n = clientChannel.read(clientBuffer);
+			if (n < 0) {
+				close();
+				return;
+			}
+			bytesIn += n;
+			lastActivity = System.currentTimeMillis();
+			if (!started) headStart = lastActivity;
+			readRequest();
+
+		} else if (state == State.SENDING_REQUEST) {
+			pumpRequest();
+		} else if (state == State.TUNNELING) {
+			pumpTunnel();
+		}
+	}
+
+	private void onClientWritable() throws IOException {
+		if (state == State.WRITING_RESPONSE) {
+			pumpInternalResponse();
+		} else if (state == State.RELAYING_RESPONSE) {
+			pumpResponse();
+		} else if (state == State.TUNNELING) {
+			pumpTunnel();
+		}
+	}
+
+	private void onRemoteConnectable() throws IOException {
+		if (state != State.CONNECTING) return;
+		try {
+			remoteChannel.finishConnect();
+		} catch (IOException e) {
+			logError("Failed to connect to remote server");
+			keepAlive = false;
+			respond(InternalResponse.forStatus(HttpStatus.BAD_GATEWAY));
+			return;
+		}
+		timing.end(RequestTiming.CONNECT);
+		startSending();
+	}
+
+	private void onRemoteReadable() throws IOException {
+		if (state == State.READING_RESPONSE) {
+			if (!remoteBuffer.hasRemaining()) remoteBuffer = grow(remoteBuffer);
+			if (remoteBuffer == null) {
+				logError("Response header block too large");
+				keepAlive = false;
+				respond(InternalResponse.forStatus(HttpStatus.BAD_GATEWAY));
+				return;
+			}
+
+			int n = remoteChannel.read(remoteBuffer);
+			if (n < 0) {
+				logError("Remote server closed the connection without responding");
+				keepAlive = false;
+				respond(InternalResponse.forStatus(HttpStatus.BAD_GATEWAY));
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			readResponse();
+
+		} else if (state == State.RELAYING_RESPONSE) {
+			pumpResponse();
+		} else if (state == State.TUNNELING) {
+			pumpTunnel();
+		}
+	}
+
+	private void onRemoteWritable() throws IOException {
+		if (state == State.SENDING_REQUEST) {
+			pumpRequest();
+		} else if (state == State.TUNNELING) {
+			pumpTunnel();
+		}
+	}
+
+
+	/**
+	 * Parses the client's request once its whole header block has arrived,
+	 * and decides how to answer it
+	 */
+	private void readRequest() throws IOException {
+		int headEnd = requestParser.parse(clientBuffer.array(), clientBuffer.position());
+		method = "";
+		tunneling = false;
+		if (headEnd >= 0 || requestParser.getError() != null) {
+			requestStarted = true;
+			requestStart = System.nanoTime();
+			responseStatus = 0;
+			timing.reset();
+		}
+		if (requestParser.getError() != null) {
+			logError(requestParser.getError());
+			keepAlive = false;
+			respond(InternalResponse.forStatus(requestParser.isTooLarge() ?
+					HttpStatus.REQ_HEADER_TOO_LARGE : HttpStatus.BAD_REQUEST));
+			return;
+		}
+		if (headEnd < 0) return; // wait for more
+
+		logConnection(Node.CLIENT, Node.PROXY, requestParser.getStartLine());
+		keepAlive = false; // until we've decided the request is sane
+
+		clientHeaders = requestParser.copyHeadersTo(new Hashtable<String,String>());
+		method = requestParser.getMethod();
+		String requestUrl = requestParser.getTarget(); // the URI that our client wants to access
+		boolean isHttp11 = requestParser.isVersion(Utils.HTTP_VERSION);
+		int connection = requestParser.indexOf("connection");
+		boolean clientWantsClose = connection >= 0 && requestParser.valueHasToken(connection, "close");
+
+		// skip past the header block; anything after it is a body or the next request
+		clientBuffer.flip();
+		clientBuffer.position(headEnd);
+		clientBuffer.compact();
+		requestParser.reset();
+
+		// reject methods we don't support
+		if (!(method.equalsIgnoreCase("GET")
+				|| (method.equalsIgnoreCase("HEAD") && !Utils.STICK_TO_THE_SCRIPT)
+				|| (RequestWorker.hasRequestBody(method) && !Utils.STICK_TO_THE_SCRIPT)
+				|| (method.equalsIgnoreCase("CONNECT") && !Utils.STICK_TO_THE_SCRIPT))) {
+			logError("Invalid or unimplemented HTTP method");
+			respond(InternalResponse.forStatus((Utils.STICK_TO_THE_SCRIPT) ?
+					(HttpStatus.METHOD_NOT_ALLOWED) : (HttpStatus.NOT_IMPLEMENTED)));
+			return;
+		}
+		// force http/1.1
+		if (!isHttp11) {
+			logError("Invalid HTTP version");
+			respond(InternalResponse.forStatus(HttpStatus.HTTP_VER_NOT_SUPPORTED));
+			return;
+		}
+
+		// http/1.1 requires the host header be set
+		String host = clientHeaders.get("host");
+		if (host == null) {
+			logError("No host specified in request");
+			respond(InternalResponse.forStatus(HttpStatus.BAD_REQUEST));
+			return;
+		}
+
+		requestFramer = BodyFramer.forHeaders(clientHeaders, false);
+		if (requestFramer == null) {
+			logError("Couldn't work out the length of the client's body");
+			respond(InternalResponse.forStatus(HttpStatus.BAD_REQUEST));
+			return;
+		}
+
+		// 100-continue is the only expectation there is
+		String expect = clientHeaders.get("expect");
+		if (expect != null && !expect.trim().equalsIgnoreCase("100-continue")) {
+			logError("Unknown expectation: " + expect);
+			respond(InternalResponse.forStatus(HttpStatus.EXPECTATION_FAILED));
+			return;
+		}
+		expectContinue = (expect != null && requestFramer.framing != BodyFramer.Framing.NONE);
+
+		// http/1.1 connections stay open unless the client says otherwise
+		keepAlive = !clientWantsClose && requestCount + 1 < Utils.MAX_KEEP_ALIVE_REQUESTS;
+
+		// CONNECT asks for a tunnel to a host and port, rather than a url
+		if (method.equalsIgnoreCase("CONNECT")) {
+			openTunnel(requestUrl);
+			return;
+		}
+
+
+		// handle internal local addresses, unless they're routed to our backends
+		backends = null;
+		if (requestUrl.startsWith("/")) {
+			backends = ReverseProxy.shared.enabled ? ReverseProxy.shared.route(host, requestUrl) : null;
+			if (backends == null) {
+				respond(InternalServer.handle(id, method, requestUrl, host, clientHeaders));
+				return;
+			}
+			requestUrl = "http://" + host + requestUrl;
+		}
+
+		// forbid unfamiliar protocols and local files
+		if (!requestUrl.startsWith("http://")) {
+			respond(InternalResponse.forStatus(HttpStatus.FORBIDDEN));
+			return;
+		}
+		this.requestUrl = requestUrl;
+		if (!ProxyServer.isProxyActive) {
+			respond(InternalResponse.forStatus(HttpStatus.SERVICE_UNAVAILABLE));
+			return;
+		}
+
+		String urlMinusProtocol = requestUrl.substring("http://".length());
+		remoteHostname = urlMinusProtocol.split("/")[0];
+		String remotePath = urlMinusProtocol.substring(remoteHostname.length());
+		remotePort = 80;
+
+		// pull the port out of the url, if necessary (which backend gets it is picked later)
+		String[] hostnameExplode = remoteHostname.split(":");
+		if (hostnameExplode.length > 1 && backends == null) {
+			remoteHostname = hostnameExplode[0];
+			try {
+				remotePort = Integer.parseInt(hostnameExplode[1]);
+			} catch (NumberFormatException e) {
+				logError("Invalid remote port");
+				respond(InternalResponse.forStatus(HttpStatus.BAD_REQUEST));
+				return;
+			}
+		}
+
+		String remoteRequestLine = method + " " + remotePath + " " + Utils.HTTP_VERSION;
+		logConnection(Node.PROXY, Node.REMOTE, remoteRequestLine);
+
+		HeadWriter remoteReq = HeadWriter.get().append(remoteRequestLine);
+		RequestWorker.writeRemoteHeaders(remoteReq, (backends != null) ? host : remoteHostname, clientHeaders);
+		if (backends != null) {
+			RequestWorker.writeForwardedFor(remoteReq, clientChannel.socket().getInetAddress(), clientHeaders);
+		}
+		if (requestFramer.framing == BodyFramer.Framing.CHUNKED) {
+			remoteReq.header("Transfer-Encoding", "chunked");
+		} else if (requestFramer.framing == BodyFramer.Framing.FIXED) {
+			remoteReq.header("Content-Length", clientHeaders.get("content-length").trim());
+		}
+		// we don't reuse remote connections, so let the remote know it can close
+		remoteReq.connection(false);
+		remoteReq.end();
+
+		outgoing = new ByteBuffer[] { setHead(remoteReq), null };
+
+		// past the concurrency limit, wait for a slot or shed the request
+		if (AdmissionControl.shared.enabled) {
+			int admission = AdmissionControl.shared.acquire(waiter);
+			if (admission == AdmissionControl.REJECTED) {
+				logError("Too many requests in progress; shedding request");
+				respondOverloaded();
+				return;
+			}
+			if (admission == AdmissionControl.QUEUED) {
+				state = State.QUEUED;
+				phaseStart = System.currentTimeMillis();
+				clientKey.interestOps(0);
+				return;
+			}
+			admittedAt = System.nanoTime();
+		}
+
+		resolve();
+	}
+
+	// waits in AdmissionControl's queue for this connection's requests
+	private final AdmissionControl.Waiter waiter = new AdmissionControl.Waiter() {
+		void admit() {
+			loop.execute(onAdmitted);
+		}
+	};
+
+	private final Runnable onAdmitted = new Runnable() {
+		public void run() {
+			// the connection may have closed while the slot was on its way
+			if (state != State.QUEUED) {
+				AdmissionControl.shared.release();
+				return;
+			}
+			admittedAt = System.nanoTime();
+			try {
+				resolve();
+				updateTimeout();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	};
+
+	/**
+	 * Looks up the remote hostname off of the event loop, then connects to it
+	 */
+	private void resolve() throws IOException {
+		state = State.RESOLVING;
+		phaseStart = System.currentTimeMillis();
+		timing.start();
+		clientKey.interestOps(0);
+
+		// only now that it's going, pick which of our backends gets it
+		if (backends != null) {
+			backend = backends.pick();
+			remoteHostname = backend.hostname;
+			remotePort = backend.port;
+		}
+
+		// hostnames we've looked up recently don't need to leave the event loop
+		final String hostname = remoteHostname;
+		try {
+			InetAddress[] addresses = DnsCache.shared.getIfCached(hostname);
+			if (addresses != null) {
+				connect(addresses[0]);
+				return;
+			}
+		} catch (UnknownHostException e) {
+			connect(null);
+			return;
+		}
+
+		NioServer.blockingTasks.execute(new Runnable() {
+			public void run() {
+				InetAddress address = null;
+				try {
+					address = DnsCache.shared.resolve(hostname)[0];
+				} catch (UnknownHostException e) {}
+
+				final InetAddress resolved = address;
+				loop.execute(new Runnable() {
+					public void run() {
+						try {
+							connect(resolved);
+							updateTimeout();
+						} catch (IOException e) {
+							fail(e);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Starts opening the connection to the remote server
+	 *
+	 * @param address remote server's address, or null if it couldn't be found
+	 */
+	private void connect(InetAddress address) throws IOException {
+		if (state != State.RESOLVING) return;
+
+		if (address == null) {
+			logError("Unknown remote hostname");
+			keepAlive = false;
+			respond(InternalResponse.forStatus(HttpStatus.BAD_REQUEST));
+			return;
+		}
+		timing.end(RequestTiming.DNS);
+
+		try {
+			remoteChannel = SocketChannel.open();
+			remoteChannel.configureBlocking(false);
+			remoteKey = remoteChannel.register(loop.selector, 0, this);
+
+			if (remoteChannel.connect(new InetSocketAddress(address, remotePort))) {
+				timing.end(RequestTiming.CONNECT);
+				startSending();
+			} else {
+				state = State.CONNECTING;
+				remoteKey.interestOps(SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException e) {
+			logError("Failed to connect to remote server");
+			keepAlive = false;
+			respond(InternalResponse.forStatus(HttpStatus.BAD_GATEWAY));
+		}
+	}
+
+	/**
+	 * Starts on the remote server once we're connected to it: sends it the
+	 * request, or opens the client's tunnel to it
+	 */
+	private void startSending() throws IOException {
+		if (tunneling) {
+			startTunnel();
+		} else {
+			state = State.SENDING_REQUEST;
+			pumpRequest();
+		}
+	}
+
+	/**
+	 * Writes the request to the remote server, followed by any body the client
+	 * sends, going only as fast as the remote server will take it
+	 */
+	private void pumpRequest() throws IOException {
+		while (true) {
+			if (outgoing[0].hasRemaining()) {
+				if (remoteChannel.write(outgoing[0]) > 0) lastActivity = System.currentTimeMillis();
+				if (outgoing[0].hasRemaining()) {
+					waitFor(SelectionKey.OP_WRITE, 0);
+					return;
+				}
+
+				// without a body, anything left in the client buffer is the next request
+				if (requestFramer.isComplete()) {
+					startReadingResponse();
+					return;
+				}
+
+				// the remote server has the head, so a client that's waiting can send its body
+				// (rejected requests never get this far, so their bodies are never sent)
+				if (expectContinue) sendContinue();
+
+				// the head's gone, so start on whatever body bytes we already have
+				clientBuffer.flip();
+				clientBuffer.limit(clientBuffer.position() + scanBody(requestFramer, clientBuffer, true));
+				outgoing[1] = clientBuffer;
+			}
+
+			ByteBuffer body = outgoing[1];
+			if (body.hasRemaining()) {
+				if (remoteChannel.write(body) > 0) lastActivity = System.currentTimeMillis();
+				if (body.hasRemaining()) {
+					waitFor(SelectionKey.OP_WRITE, 0);
+					return;
+				}
+			}
+
+			if (requestFramer.isComplete()) {
+				clientBuffer.clear();
+				startReadingResponse();
+				return;
+			}
+
+			// need more of the body from the client
+			clientBuffer.clear();
+			int n = clientChannel.read(clientBuffer);
+			if (n < 0) {
+				logError("Client closed the connection before sending its whole body");
+				close();
+				return;
+			}
+			if (n == 0) {
+				clientBuffer.flip();
+				waitFor(0, SelectionKey.OP_READ);
+				return;
+			}
+			bytesIn += n;
+			lastActivity = System.currentTimeMillis();
+			clientBuffer.flip();
+			clientBuffer.limit(clientBuffer.position() + scanBody(requestFramer, clientBuffer, true));
+		}
+	}
+
+	/**
+	 * Tells a client that asked with "Expect: 100-continue" to go ahead and
+	 * send its body. It's been waiting on us, so the little interim response
+	 * goes out in one write.
+	 */
+	private void sendContinue() throws IOException {
+		expectContinue = false;
+		logConnection(Node.PROXY, Node.CLIENT, HttpStatus.CONTINUE.statusLine);
+		ByteBuffer interim = ByteBuffer.wrap((HttpStatus.CONTINUE.statusLine + "\r\n\r\n").getBytes("US-ASCII"));
+		bytesOut += clientChannel.write(interim);
+		if (interim.hasRemaining()) throw new IOException("Couldn't send 100 Continue to the client");
+	}
+
+	/**
+	 * Checks the host and port a CONNECT request asked for, and starts
+	 * connecting to it (tunnels don't wait on AdmissionControl, since they
+	 * can stay open far longer than any request)
+	 */
+	private void openTunnel(String target) throws IOException {
+		String host = TunnelRelay.parseHost(target);
+		int port = TunnelRelay.parsePort(target);
+		if (host == null) {
+			logError("Invalid tunnel target");
+			respond(InternalResponse.forStatus(HttpStatus.BAD_REQUEST));
+			return;
+		}
+		if (!TunnelRelay.shared.isAllowedPort(port)) {
+			logError("Tunnels to port " + port + " aren't allowed");
+			respond(InternalResponse.forStatus(HttpStatus.FORBIDDEN));
+			return;
+		}
+		if (!ProxyServer.isProxyActive) {
+			respond(InternalResponse.forStatus(HttpStatus.SERVICE_UNAVAILABLE));
+			return;
+		}
+
+		logConnection(Node.PROXY, Node.REMOTE, "CONNECT " + target);
+		tunneling = true;
+		backends = null;
+		remoteHostname = host;
+		remotePort = port;
+		resolve();
+	}
+
+	/**
+	 * Tells the client its tunnel is open, and starts relaying bytes both ways
+	 */
+	private void startTunnel() throws IOException {
+		keepAlive = false;
+		responseStatus = HttpStatus.OK.code;
+		logConnection(Node.PROXY, Node.CLIENT, TunnelRelay.ESTABLISHED_LINE);
+		TunnelRelay.shared.tunnelOpened();
+		state = State.TUNNELING;
+		lastActivity = System.currentTimeMillis();
+		clientDone = false;
+		remoteDone = false;
+
+		// whatever the client sent after its CONNECT is already in clientBuffer, and
+		// the status line goes out to it ahead of the first bytes from the server
+		if (clientBuffer == null) clientBuffer = loop.acquireBuffer();
+		TunnelRelay.shared.bytesUp.addAndGet(clientBuffer.position());
+		remoteBuffer = loop.acquireBuffer();
+		remoteBuffer.put((TunnelRelay.ESTABLISHED_LINE + "\r\n\r\n").getBytes("US-ASCII"));
+		pumpTunnel();
+	}
+
+	/**
+	 * Moves whatever it can through the tunnel each way without blocking, and
+	 * passes a side's half-close along once everything it sent has been delivered.
+	 * Each way goes through one pooled buffer for the whole tunnel: clientBuffer
+	 * up to the server, remoteBuffer down to the client.
+	 */
+	private void pumpTunnel() throws IOException {
+		while (relayTunnel(true) | relayTunnel(false)) {
+			lastActivity = System.currentTimeMillis();
+		}
+
+		if (clientDone && clientBuffer.position() == 0 && !remoteChannel.socket().isOutputShutdown()) {
+			remoteChannel.shutdownOutput();
+		}
+		if (remoteDone && remoteBuffer.position() == 0 && !clientChannel.socket().isOutputShutdown()) {
+			clientChannel.shutdownOutput();
+		}
+		if (clientDone && remoteDone && clientBuffer.position() == 0 && remoteBuffer.position() == 0) {
+			timing.end(RequestTiming.TRANSFER);
+			close();
+			return;
+		}
+
+		// read from a side while there's room to, and write to one while there's something for it
+		int clientOps = 0;
+		int remoteOps = 0;
+		if (!clientDone && clientBuffer.hasRemaining()) clientOps |= SelectionKey.OP_READ;
+		if (clientBuffer.position() > 0) remoteOps |= SelectionKey.OP_WRITE;
+		if (!remoteDone && remoteBuffer.hasRemaining()) remoteOps |= SelectionKey.OP_READ;
+		if (remoteBuffer.position() > 0) clientOps |= SelectionKey.OP_WRITE;
+		waitFor(remoteOps, clientOps);
+	}
+
+	/**
+	 * Moves one way through the tunnel: delivers what's buffered, then reads
+	 * more while there's room
+	 *
+	 * @param up client to server, rather than server to client
+	 * @return true if any bytes moved
+	 */
+	private boolean relayTunnel(boolean up) throws IOException {
+		SocketChannel from = up ? clientChannel : remoteChannel;
+		SocketChannel to = up ? remoteChannel : clientChannel;
+		ByteBuffer buf = up ? clientBuffer : remoteBuffer;
+		boolean moved = false;
+
+		if (buf.position() > 0) {
+			buf.flip();
+			int n = to.write(buf);
+			buf.compact();
+			if (!up) bytesOut += n;
+			moved = n > 0;
+		}
+
+		if (!(up ? clientDone : remoteDone) && buf.hasRemaining()) {
+			int n = from.read(buf);
+			if (n < 0) {
+				if (up) clientDone = true;
+				else remoteDone = true;
+			} else if (n > 0) {
+				if (up) {
+					bytesIn += n;
+					TunnelRelay.shared.bytesUp.addAndGet(n);
+				} else {
+					TunnelRelay.shared.bytesDown.addAndGet(n);
+				}
+				moved = true;
+			}
+		}
+		return moved;
+	}
+
+	private void startReadingResponse() {
+		state = State.READING_RESPONSE;
+		phaseStart = System.currentTimeMillis();
+		remoteBuffer = loop.acquireBuffer();
+		responseParser.reset();
+		waitFor(SelectionKey.OP_READ, 0);
+	}
+
+	/**
+	 * Parses the remote server's response once its whole header block has
+	 * arrived, and starts relaying it to the client
+	 */
+	private void readResponse() throws IOException {
+		int headEnd = responseParser.parse(remoteBuffer.array(), remoteBuffer.position());
+		if (responseParser.getError() != null) {
+			logError("Invalid response from remote server: " + responseParser.getError());
+			keepAlive = false;
+			respond(InternalResponse.forStatus(HttpStatus.BAD_GATEWAY));
+			return;
+		}
+		if (headEnd < 0) return; // wait for more
+
+		String remoteResponseLine = responseParser.getStartLine();
+		logConnection(Node.REMOTE, Node.PROXY, remoteResponseLine);
+
+		int statusCode = responseParser.getStatusCode();
+		responseStatus = statusCode;
+		remoteHeaders = responseParser.copyHeadersTo(new Hashtable<String,String>());
+
+		// skip past the header block
+		remoteBuffer.flip();
+		remoteBuffer.position(headEnd);
+		remoteBuffer.compact();
+		responseParser.reset();
+
+		// interim responses just get dropped; the real one follows them
+		if (statusCode < 200) {
+			readResponse();
+			return;
+		}
+		timing.end(RequestTiming.TTFB);
+
+		// whatever a successful unsafe request changed shouldn't be served from the cache
+		if (Utils.ENABLE_CACHE) ResponseCache.shared.invalidateAfter(method, requestUrl, statusCode, remoteHeaders);
+
+		responseFramer = BodyFramer.forResponse(method, statusCode, remoteHeaders);
+		if (responseFramer == null) {
+			logError("Couldn't work out the length of the remote server's body");
+			keepAlive = false;
+			respond(InternalResponse.forStatus(HttpStatus.BAD_GATEWAY));
+			return;
+		}
+		// without framing, only closing the connection tells the client the body is over
+		if (responseFramer.framing == BodyFramer.Framing.UNTIL_CLOSE) keepAlive = false;
+		if (!ProxyServer.isAlive) keepAlive = false;
+
+		// we speak http/1.1 to the client, whatever the remote server speaks to us
+		String responseLine = Utils.HTTP_VERSION + remoteResponseLine.substring(remoteResponseLine.indexOf(' '));
+
+		HeadWriter head = HeadWriter.get().append(responseLine).headers(remoteHeaders).connection(keepAlive);
+		if (Utils.SERVER_TIMING) {
+			head.header("Server-Timing", timing.toServerTiming(System.nanoTime() - requestStart));
+		}
+		head.end();
+
+		logConnection(Node.PROXY, Node.CLIENT, responseLine);
+
+		remoteBuffer.flip();
+		remoteBuffer.limit(remoteBuffer.position() + scanBody(responseFramer, remoteBuffer, false));
+		outgoing = new ByteBuffer[] {
+				setHead(head),
+				remoteBuffer
+		};
+
+		state = State.RELAYING_RESPONSE;
+		pumpResponse();
+	}
+
+	/**
+	 * Passes the response along to the client, going only as fast as the
+	 * client will take it
+	 */
+	private void pumpResponse() throws IOException {
+		while (true) {
+			if (outgoing[0].hasRemaining() || outgoing[1].hasRemaining()) {
+				bytesOut += clientChannel.write(outgoing);
+				if (outgoing[0].hasRemaining() || outgoing[1].hasRemaining()) {
+					waitFor(0, SelectionKey.OP_WRITE);
+					return;
+				}
+				lastActivity = System.currentTimeMillis();
+			}
+
+			if (responseFramer.isComplete()) {
+				timing.end(RequestTiming.TRANSFER);
+				finishResponse();
+				return;
+			}
+
+			remoteBuffer.clear();
+			int n = remoteChannel.read(remoteBuffer);
+			if (n < 0) {
+				if (!responseFramer.close()) {
+					// too late for an error page; just cut the client off too
+					logError("Remote server closed the connection before sending its whole body");
+					keepAlive = false;
+				}
+				timing.end(RequestTiming.TRANSFER);
+				finishResponse();
+				return;
+			}
+			remoteBuffer.flip();
+			if (n == 0) {
+				waitFor(SelectionKey.OP_READ, 0);
+				return;
+			}
+			remoteBuffer.limit(remoteBuffer.position() + scanBody(responseFramer, remoteBuffer, false));
+		}
+	}
+
+	/**
+	 * Sends a response generated by the proxy itself to the client
+	 */
+	private void respond(InternalResponse response) throws IOException {
+		closeRemote();
+		if (!ProxyServer.isAlive) keepAlive = false;
+
+		// with the client's body unread, we won't know where the next request starts
+		if (requestFramer != null && !requestFramer.isComplete()) keepAlive = false;
+
+		// the only answer a tunnel that's being opened gets from us is that it couldn't be
+		if (tunneling) {
+			TunnelRelay.shared.failed.incrementAndGet();
+			tunneling = false;
+		}
+		lastActivity = System.currentTimeMillis();
+
+		logConnection(Node.PROXY, Node.CLIENT, response.status.statusLine);
+		responseStatus = response.status.code;
+
+		HeadWriter head = HeadWriter.get().beginResponse(response.status, keepAlive);
+		for (Map.Entry<String,String> header : response.headers.entrySet()) {
+			head.header(header.getKey(), header.getValue());
+		}
+		if (response.hasBody()) {
+			head.header("Content-Length", response.getContentLength());
+		}
+		head.end();
+
+		// the head and body go out together in one gathering write
+		boolean hasBody = response.hasBody() && !method.equalsIgnoreCase("HEAD");
+		outgoing = new ByteBuffer[] {
+				setHead(head),
+				ByteBuffer.wrap(hasBody ? response.body : new byte[0])
+		};
+		if (hasBody && response.file != null) {
+			file = new FileInputStream(response.file).getChannel();
+			filePosition = 0;
+			fileRemaining = file.size();
+		}
+
+		state = State.WRITING_RESPONSE;
+		pumpInternalResponse();
+	}
+
+	private void pumpInternalResponse() throws IOException {
+		if (outgoing[0].hasRemaining() || outgoing[1].hasRemaining()) {
+			long n = clientChannel.write(outgoing);
+			bytesOut += n;
+			if (n > 0) lastActivity = System.currentTimeMillis();
+			if (outgoing[0].hasRemaining() || outgoing[1].hasRemaining()) {
+				waitFor(0, SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+
+		while (file != null && fileRemaining > 0) {
+			long n = file.transferTo(filePosition, fileRemaining, clientChannel);
+			if (n == 0) {
+				waitFor(0, SelectionKey.OP_WRITE);
+				return;
+			}
+			filePosition += n;
+			fileRemaining -= n;
+			bytesOut += n;
+			lastActivity = System.currentTimeMillis();
+		}
+
+		lastActivity = System.currentTimeMillis();
+		finishResponse();
+	}
+
+	/**
+	 * Wraps up the current request, and either waits for the next one or closes the connection
+	 */
+	private void finishResponse() throws IOException {
+		recordRequest();
+		closeRemote();
+		closeFile();
+		releaseHead();
+		outgoing = null;
+
+		if (!keepAlive) {
+			close();
+			return;
+		}
+
+		requestCount++;
+		state = State.READING_REQUEST;
+		lastActivity = System.currentTimeMillis();
+		waitFor(0, SelectionKey.OP_READ);
+
+		// the client may have already sent its next request
+		if (clientBuffer != null && clientBuffer.position() > 0) {
+			headStart = lastActivity;
+			readRequest();
+		} else {
+			loop.releaseBuffer(clientBuffer);
+			clientBuffer = null;
+		}
+	}
+
+	/**
+	 * Is the connection waiting for a request that hasn't started arriving?
+	 */
+	public boolean isIdle() {
+		return state == State.READING_REQUEST && (clientBuffer == null || clientBuffer.position() == 0);
+	}
+
+	/**
+	 * Gets the time (in the same terms as System.currentTimeMillis()) by which
+	 * whatever we're waiting on in the current state has to happen
+	 */
+	long getDeadline() {
+		switch (state) {
+		case READING_REQUEST:
+			if (isIdle()) return lastActivity + Utils.KEEP_ALIVE_TIMEOUT;
+			return headStart + Utils.HEADER_TIMEOUT;
+		case QUEUED:
+			return phaseStart + Utils.QUEUE_TIMEOUT;
+		case RESOLVING:
+		case CONNECTING:
+			return phaseStart + Utils.CONNECT_TIMEOUT;
+		case READING_RESPONSE:
+			return Math.max(phaseStart, lastActivity) + Utils.RESPONSE_TIMEOUT;
+		case SENDING_REQUEST:
+		case RELAYING_RESPONSE:
+		case WRITING_RESPONSE:
+			return lastActivity + Utils.BODY_TIMEOUT;
+		case TUNNELING:
+			return lastActivity + Utils.TUNNEL_IDLE_TIMEOUT;
+		default:
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Makes sure a timeout will go off by the current state's deadline. It's
+	 * called after every event, so it only touches the timer wheel when the
+	 * deadline has moved earlier; a timeout that goes off early just checks
+	 * the deadline again and goes back on the wheel for the time that's left.
+	 */
+	public void updateTimeout() {
+		if (state == State.CLOSED) return;
+		long deadline = getDeadline();
+		if (timeout != null) {
+			if (deadline >= timeoutAt) return;
+			if (!timeout.cancel()) return; // it's already gone off, and will check the new deadline
+		}
+		timeoutAt = deadline;
+		timeout = TimerWheel.shared.schedule(onTimeout, deadline - System.currentTimeMillis());
+	}
+
+	// runs on the wheel's thread, so it hands the real work to the event loop
+	private final Runnable onTimeout = new Runnable() {
+		public void run() {
+			loop.execute(checkTimeout);
+		}
+	};
+
+	private final Runnable checkTimeout = new Runnable() {
+		public void run() {
+			timeout = null;
+			if (state == State.CLOSED) return;
+			try {
+				if (System.currentTimeMillis() >= getDeadline()) expire();
+				updateTimeout();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	};
+
+	/**
+	 * Gives up on whatever the current state was waiting for, telling the
+	 * client why if it's not too late to
+	 */
+	private void expire() throws IOException {
+		keepAlive = false;
+		switch (state) {
+		case READING_REQUEST:
+			// idle connections just get closed
+			if (isIdle()) break;
+			logError("Client took too long to send its request head");
+			requestStarted = true;
+			requestStart = System.nanoTime();
+			responseStatus = 0;
+			timing.reset();
+			respond(InternalResponse.forStatus(HttpStatus.REQUEST_TIMEOUT));
+			return;
+		case QUEUED:
+			// if it's not in the queue anymore, it's just been given a slot
+			if (!AdmissionControl.shared.giveUp(waiter)) return;
+			logError("Waited too long for a slot; shedding request");
+			respondOverloaded();
+			return;
+		case RESOLVING:
+		case CONNECTING:
+			logError("Timed out connecting to remote server");
+			respond(InternalResponse.forStatus(HttpStatus.GATEWAY_TIMEOUT));
+			return;
+		case SENDING_REQUEST:
+			// either the client stopped sending its body, or the remote server stopped taking it
+			if ((clientKey.interestOps() & SelectionKey.OP_READ) != 0) {
+				logError("Client took too long to send its request body");
+				respond(InternalResponse.forStatus(HttpStatus.REQUEST_TIMEOUT));
+			} else {
+				logError("Timed out sending request to remote server");
+				respond(InternalResponse.forStatus(HttpStatus.GATEWAY_TIMEOUT));
+			}
+			return;
+		case READING_RESPONSE:
+			logError("Remote server took too long to respond");
+			respond(InternalResponse.forStatus(HttpStatus.GATEWAY_TIMEOUT));
+			return;
+		case TUNNELING:
+			logError("Tunnel sat idle too long");
+			TunnelRelay.shared.idleTimeouts.incrementAndGet();
+			break;
+		default:
+			// too late for an error page; just cut the client off
+			logError("Timed out sending the response");
+			break;
+		}
+		close();
+	}
+
+	/**
+	 * Gives up on the connection after an I/O error
+	 */
+	public void fail(IOException e) {
+		logError("Connection failed: " + e.getMessage());
+		if (Utils.LOG_REQUEST_ERRORS) e.printStackTrace();
+		close();
+	}
+
+	/**
+	 * Closes up all open connections for this client
+	 */
+	public void close() {
+		if (state == State.CLOSED) return;
+		if (state == State.QUEUED) AdmissionControl.shared.giveUp(waiter);
+		if (state == State.TUNNELING) TunnelRelay.shared.tunnelClosed();
+		state = State.CLOSED;
+		if (timeout != null) timeout.cancel();
+		timeout = null;
+		recordRequest();
+		Metrics.shared.activeConnections.decrementAndGet();
+
+		closeRemote();
+		closeFile();
+		releaseHead();
+		try {
+			clientChannel.close();
+		} catch (IOException e) {}
+		loop.releaseBuffer(clientBuffer);
+		clientBuffer = null;
+	}
+
+	private void closeRemote() {
+		if (remoteChannel != null) {
+			try {
+				remoteChannel.close();
+			} catch (IOException e) {}
+			remoteChannel = null;
+			remoteKey = null;
+		}
+		loop.releaseBuffer(remoteBuffer);
+		remoteBuffer = null;
+	}
+
+	/**
+	 * Adds the request that was just served (if one was) to the metrics
+	 */
+	private void recordRequest() {
+		// let the backend's balancer know it's done, and whether it went well
+		if (backend != null) {
+			backend.finish(responseStatus == 0 || responseStatus >= 500);
+			backend = null;
+		}
+
+		// give back the request's slot, letting the limiter know how it went
+		if (admittedAt != 0) {
+			AdmissionControl.shared.release(System.nanoTime() - admittedAt, responseStatus == 0 || responseStatus >= 500);
+			admittedAt = 0;
+		}
+
+		if (!requestStarted) return;
+		requestStarted = false;
+
+		long nanos = System.nanoTime() - requestStart;
+		Metrics.shared.recordRequest(method, responseStatus, nanos, bytesIn, bytesOut, timing);
+		bytesIn = 0;
+		bytesOut = 0;
+
+		if (Utils.LOG_TIMINGS && !timing.isEmpty()) {
+			log("Timing: status=" + responseStatus + " " + timing.toLogField(nanos));
+		}
+	}
+
+	/**
+	 * Sends the ready-made 503 for requests shed by AdmissionControl, and closes the connection
+	 */
+	private void respondOverloaded() throws IOException {
+		closeRemote();
+		keepAlive = false;
+		lastActivity = System.currentTimeMillis();
+
+		HttpStatus status = HttpStatus.SERVICE_UNAVAILABLE;
+		logConnection(Node.PROXY, Node.CLIENT, status.statusLine);
+		responseStatus = status.code;
+
+		releaseHead();
+		outgoing = new ByteBuffer[] {
+				ByteBuffer.wrap(AdmissionControl.OVERLOADED_RESPONSE),
+				ByteBuffer.wrap(new byte[0])
+		};
+		state = State.WRITING_RESPONSE;
+		pumpInternalResponse();
+	}
+
+	/**
+	 * Copies a finished head into a pooled buffer, in place of the last one
+	 */
+	private ByteBuffer setHead(HeadWriter head) {
+		releaseHead();
+		headBuffer = head.toBuffer(loop);
+		return headBuffer;
+	}
+
+	private void releaseHead() {
+		loop.releaseBuffer(headBuffer);
+		headBuffer = null;
+	}
+
+	private void closeFile() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {}
+			file = null;
+		}
+	}
+
+	/**
+	 * Sets which operations we're waiting on for each side
+	 */
+	private void waitFor(int remoteOps, int clientOps) {
+		if (remoteKey != null) remoteKey.interestOps(remoteOps);
+		clientKey.interestOps(clientOps);
+	}
+
+	/**
+	 * Runs bytes that are about to be passed along through a framer
+	 *
+	 * @param fromClient which side the bytes came from; any bytes past the end
+	 * of a request body can't be kept track of, so the client connection won't be reused
+	 * @return how many bytes belong to the body
+	 */
+	private int scanBody(BodyFramer framer, ByteBuffer buf, boolean fromClient) throws IOException {
+		int n = framer.scan(buf);
+		if (fromClient && n < buf.remaining()) keepAlive = false;
+		return n;
+	}
+
+	/**
+	 * Doubles the size of a buffer that's filled up with a header block
+	 *
+	 * @return the bigger buffer, or null if it would be bigger than Utils.MAX_HEADER_SIZE
+	 */
+	private ByteBuffer grow(ByteBuffer buf) {
+		if (buf.capacity() >= Utils.MAX_HEADER_SIZE) return null;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.min(buf.capacity() * 2, Utils.MAX_HEADER_SIZE));
+		buf.flip();
+		bigger.put(buf);
+		loop.releaseBuffer(buf);
+		return bigger;
+	}
+
+	/**
+	 * Logs a message about this connection
+	 */
+	public void log(String message) {
+		Utils.logRequest(id, message);
+	}
+
+	/**
+	 * Logs an error message about this connection
+	 */
+	public void logError(String message) {
+		Utils.logRequestError(id, message);
+	}
+
+	/**
+	 * Logs a request being sent between servers
+	 */
+	public void logConnection(Node from, Node to, String message) {
+		Utils.logConnection(id, from, to, message);
+	}
+}
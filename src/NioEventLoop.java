@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Serves any number of NioConnections from a single thread, by waiting on a
+ * Selector for whichever of their channels are ready
+ */
+public class NioEventLoop implements Runnable {
+	
+	// longest the loop waits on the selector before checking whether the server is shutting down, in milliseconds
+	final static int SELECT_TIMEOUT = 1000;
+	
+	// most spare buffers we'll hang onto for reuse
+	final static int MAX_POOLED_BUFFERS = 64;
+	
+	final Selector selector;
+	
+	// work handed to this loop by other threads
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	// spare buffers, only ever touched by the loop's own thread
+	private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+	
+	public NioEventLoop() throws IOException {
+		selector = Selector.open();
+	}
+	
+	/**
+	 * Hands a newly accepted connection to this loop (callable from any thread)
+	 */
+	public void register(final SocketChannel channel, final int id) {
+		final NioEventLoop loop = this;
+		execute(new Runnable() {
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					new NioConnection(loop, channel, id).start();
+				} catch (IOException e) {
+					Utils.logRequestError(id, "Failed to register connection");
+					try {
+						channel.close();
+					} catch (IOException e2) {}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Runs a task on this loop's thread (callable from any thread)
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Interrupts the loop's wait for ready channels
+	 */
+	public void wakeup() {
+		selector.wakeup();
+	}
+	
+	public void run() {
+		while (true) {
+			try {
+				selector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				Utils.logError("Event loop failed to select: " + e.getMessage());
+				break;
+			}
+			
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Utils.logError("Event loop task failed: " + e);
+				}
+			}
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				NioConnection connection = (NioConnection) key.attachment();
+				try {
+					connection.handle(key);
+					connection.updateTimeout();
+				} catch (IOException e) {
+					connection.fail(e);
+				} catch (CancelledKeyException e) {
+					connection.close();
+				} catch (RuntimeException e) {
+					// don't let one bad request take the whole loop down with it
+					Utils.logRequestError(connection.id, "Unexpected error: " + e);
+					connection.close();
+				}
+			}
+			
+			// deadlines are kept by the TimerWheel; this is only for letting go once we're shutting down
+			if (!ProxyServer.isAlive && closeIdle() && tasks.isEmpty()) break;
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+	
+	/**
+	 * Closes connections that are waiting for a request that hasn't started arriving
+	 * 
+	 * @return true if no connections are left
+	 */
+	private boolean closeIdle() {
+		ArrayList<NioConnection> idle = new ArrayList<NioConnection>();
+		for (SelectionKey key : selector.keys()) {
+			NioConnection connection = (NioConnection) key.attachment();
+			if (key.isValid() && key == connection.clientKey && connection.isIdle()) {
+				idle.add(connection);
+			}
+		}
+		for (NioConnection connection : idle) {
+			connection.close();
+		}
+		return selector.keys().isEmpty();
+	}
+	
+	/**
+	 * Gets a buffer of Utils.NIO_BUFFER_SIZE bytes, reusing a spare one if possible
+	 */
+	ByteBuffer acquireBuffer() {
+		ByteBuffer buf = buffers.poll();
+		if (buf == null) buf = ByteBuffer.allocate(Utils.NIO_BUFFER_SIZE);
+		buf.clear();
+		return buf;
+	}
+	
+	/**
+	 * Gives back a buffer that's no longer needed
+	 */
+	void releaseBuffer(ByteBuffer buf) {
+		if (buf != null && buf.capacity() == Utils.NIO_BUFFER_SIZE && buffers.size() < MAX_POOLED_BUFFERS) {
+			buffers.add(buf);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * The non-blocking server engine. Acceptors hand new connections out
+ * round-robin to a handful of NioEventLoops, each of which serves all of
+ * its connections from one thread. With more than one acceptor, each has
+ * its own share of the loops.
+ */
+public class NioServer {
+	
+	// runs the few things that can't be done without blocking (hostname lookups)
+	// off of the event loops
+	static final ExecutorService blockingTasks = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "NioBlockingTask");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	final Listener listener;
+	final NioEventLoop[] loops;
+	private final int[] nextLoop; // where each acceptor hands its next connection (only touched by that acceptor)
+	
+	/**
+	 * Binds the server to a port
+	 * 
+	 * @param loopCount number of event loops to run, or 0 for one per CPU core
+	 */
+	public NioServer(int port, int loopCount) throws IOException {
+		if (loopCount <= 0) loopCount = Runtime.getRuntime().availableProcessors();
+		
+		int acceptors = (Utils.ACCEPTORS <= 0) ? Runtime.getRuntime().availableProcessors() : Utils.ACCEPTORS;
+		listener = new Listener(port, Math.min(acceptors, loopCount), Utils.ACCEPT_BACKLOG, Utils.REUSE_PORT);
+		nextLoop = new int[listener.getAcceptorCount()];
+		
+		loops = new NioEventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			loops[i] = new NioEventLoop();
+		}
+	}
+	
+	/**
+	 * Accepts connections until the server is told to shut down
+	 */
+	public void serve() {
+		for (int i = 0; i < loops.length; i++) {
+			new Thread(loops[i], "NioEventLoop-" + i).start();
+		}
+		Utils.log("Serving connections on " + loops.length + " event loops");
+		
+		// acceptor i hands connections to loops i, i + acceptors, i + 2 * acceptors...
+		final int acceptors = listener.getAcceptorCount();
+		listener.serve(new Listener.Handler() {
+			public void accepted(SocketChannel channel, int ct, int acceptor) {
+				int share = (loops.length - acceptor + acceptors - 1) / acceptors;
+				int loop = acceptor + ((nextLoop[acceptor]++ & 0x7fffffff) % share) * acceptors;
+				loops[loop].register(channel, ct);
+			}
+		});
+		Utils.log("Server shutting down...");
+		
+		// the loops will finish up once their active connections are done
+		for (NioEventLoop loop : loops) {
+			loop.wakeup();
+		}
+	}
+}
@@ -1,6 +1,15 @@
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class ProxyServer extends Thread {
@@ -11,7 +20,8 @@ public class ProxyServer extends Thread {
 	// should the server respond to proxy HTTP requests?
 	volatile static boolean isProxyActive;
 	
-	static int port = 8080;
+	// port to listen on (0 picks any free port, and gets replaced by the one picked once we're bound)
+	volatile static int port = 8080;
 
 	public static void main(String[] args) {
 		
@@ -20,42 +30,164 @@ public class ProxyServer extends Thread {
 			port = Integer.parseInt(portStr);
 		}
 		
+		if (Utils.SERVER_ENGINE.equalsIgnoreCase("nio")) {
+			serveNio();
+			return;
+		}
+		
 		// start listening for connections
-		ServerSocket srvSock;
+		// (accepting through a channel gives each client socket a channel too,
+		// so static files can be sent with FileChannel.transferTo)
+		Listener listener;
 		try {
-			srvSock = new ServerSocket(port);
+			listener = new Listener(port, Utils.ACCEPTORS, Utils.ACCEPT_BACKLOG, Utils.REUSE_PORT);
+			port = listener.getPort();
 			Utils.log("Listening for connections on port " + Integer.toString(port) + "...");
+			logAcceptors(listener);
 			
 		} catch (IOException e) {
 			Utils.logError("Failed to bind socket");
 			e.printStackTrace();
 			return;
 		}
+		
+		// each acceptor gets its own group of workers
+		final ExecutorService[] workers = createWorkerExecutors(Utils.WORKER_MODE, listener.getAcceptorCount());
 			
 			
 		isAlive = true;
 		isProxyActive = true;
 		
-		int ct = -1;
-		
-		while (isAlive) {
-			ct++;
-			try {
-				Socket server = srvSock.accept();
-				if (!isAlive) break;
-				
+		listener.serve(new Listener.Handler() {
+			public void accepted(SocketChannel channel, int ct, int acceptor) {
+				Socket server = channel.socket();
 				RequestWorker worker = new RequestWorker(server, ct);
-				worker.start();
-			} catch (IOException e) {
-				Utils.logError("Failed to accept request");
+				try {
+					workers[acceptor].execute(worker);
+				} catch (RejectedExecutionException e) {
+					// every worker is busy and the queue is full, so turn this one away
+					Utils.logError("Too many connections; rejected request " + ct);
+					AdmissionControl.shared.turnAway(server);
+				}
 			}
+		});
+		Utils.log("Server shutting down...");
+		
+		// let the active connections finish, but don't take on any new ones
+		for (ExecutorService group : workers) {
+			group.shutdown();
 		}
 		
+		Utils.log("Acceptors: " + listener.getStats());
+		Utils.log("Connection pool: " + ConnectionPool.shared.getStats());
+		Utils.log("DNS cache: " + DnsCache.shared.getStats());
+		Utils.log("Timers: " + TimerWheel.shared.getStats());
+		Utils.log("Admission control: " + AdmissionControl.shared.getStats());
+		Utils.log("Response cache: " + ResponseCache.shared.getStats());
+		Utils.log("Collapsed forwarding: " + RequestCoalescer.shared.getStats());
+		Utils.log("Background revalidation: " + CacheRevalidator.shared.getStats());
+		if (ReverseProxy.shared.enabled) Utils.log("Backends: " + ReverseProxy.shared.getStats());
+		Utils.log("Tunnels: " + TunnelRelay.shared.getStats());
+		if (Utils.LOG_ASYNC) Utils.log("Logger: " + AsyncLogger.shared.getStats());
+		ResponseCache.shared.save();
+	}
+	
+	/**
+	 * Runs the server on the non-blocking engine instead of RequestWorkers
+	 */
+	static void serveNio() {
+		NioServer server;
 		try {
-			srvSock.close();
-			Utils.log("Server shutting down...");
+			server = new NioServer(port, Utils.NIO_EVENT_LOOPS);
+			port = server.listener.getPort();
+			Utils.log("Listening for connections on port " + Integer.toString(port) + "...");
+			logAcceptors(server.listener);
+			
 		} catch (IOException e) {
-			Utils.logError("Failed to shut down server");
+			Utils.logError("Failed to bind socket");
+			e.printStackTrace();
+			return;
+		}
+		
+		isAlive = true;
+		isProxyActive = true;
+		
+		server.serve();
+	}
+	
+	/**
+	 * Says how connections are being accepted
+	 */
+	static void logAcceptors(Listener listener) {
+		if (listener.getAcceptorCount() == 1) return;
+		Utils.log("Accepting on " + listener.getAcceptorCount() + " threads, "
+				+ (listener.isReusingPort() ? "each with its own listening socket (SO_REUSEPORT)" : "sharing one listening socket")
+				+ " (backlog " + Utils.ACCEPT_BACKLOG + ")");
+	}
+	
+	/**
+	 * Creates the executors that RequestWorkers get run on, one for each group
+	 * of workers (a "pool" is split evenly between the groups)
+	 * 
+	 * @param mode "thread", "pool", or "virtual" (see Utils.WORKER_MODE)
+	 */
+	static ExecutorService[] createWorkerExecutors(String mode, int groups) {
+		ExecutorService[] executors = new ExecutorService[groups];
+		
+		if (mode.equalsIgnoreCase("virtual")) {
+			// virtual threads only exist on Java 21+, so look them up reflectively
+			// to keep the server runnable on older JDKs
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				Utils.log("Running workers on virtual threads");
+				for (int i = 0; i < groups; i++) {
+					executors[i] = (ExecutorService) factory.invoke(null);
+				}
+				return executors;
+			} catch (ReflectiveOperationException e) {
+				Utils.logError("Virtual threads aren't supported by this JVM; using a thread pool instead");
+				mode = "pool";
+			}
+		}
+		
+		if (mode.equalsIgnoreCase("thread")) {
+			Utils.log("Running workers on a new thread per connection");
+			WorkerThreadFactory threads = new WorkerThreadFactory();
+			for (int i = 0; i < groups; i++) {
+				executors[i] = Executors.newCachedThreadPool(threads);
+			}
+			return executors;
+		}
+		
+		if (!mode.equalsIgnoreCase("pool")) {
+			Utils.logError("Unknown worker mode \"" + mode + "\"; using a thread pool instead");
+		}
+		int poolSize = Math.max(1, (Utils.WORKER_POOL_SIZE + groups - 1) / groups);
+		int queueSize = Math.max(1, (Utils.WORKER_QUEUE_SIZE + groups - 1) / groups);
+		Utils.log("Running workers on " + (groups == 1 ? "a pool" : groups + " pools") + " of " + poolSize
+				+ " threads (queue size " + queueSize + ")");
+		WorkerThreadFactory threads = new WorkerThreadFactory();
+		for (int i = 0; i < groups; i++) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+					poolSize, poolSize,
+					60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize),
+					threads);
+			pool.allowCoreThreadTimeOut(true);
+			executors[i] = pool;
+		}
+		return executors;
+	}
+	
+	/**
+	 * Names worker threads so they can be told apart in stack dumps
+	 */
+	static class WorkerThreadFactory implements ThreadFactory {
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "RequestWorker-" + count.incrementAndGet());
 		}
 	}
 
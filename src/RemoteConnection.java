@@ -0,0 +1,98 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A connection to a remote server, along with the streams used to talk over
+ * it, so that it can be handed from one request to the next by the ConnectionPool
+ */
+public class RemoteConnection {
+	
+	final String key; // host:port this connection goes to
+	final SocketChannel channel;
+	final Socket socket;
+	final DataInputStream in; // remote -> proxy stream
+	final DataOutputStream out; // proxy -> remote stream
+	
+	long lastUsed; // when this connection was last returned to the pool
+	int uses; // how many requests have been sent over this connection
+	
+	private RemoteConnection(String key, SocketChannel channel) throws IOException {
+		this.key = key;
+		this.channel = channel;
+		this.socket = channel.socket();
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+	
+	/**
+	 * Opens a new connection to a remote server, giving up on each of its
+	 * addresses after Utils.CONNECT_TIMEOUT
+	 * 
+	 * @param timing gets the time spent looking up the host and connecting to it
+	 * (must already be started); may be null
+	 */
+	public static RemoteConnection open(String hostname, int port, RequestTiming timing) throws IOException {
+		InetAddress[] addresses = DnsCache.shared.resolve(hostname);
+		if (timing != null) timing.end(RequestTiming.DNS);
+		
+		// try each of the host's addresses until one of them takes
+		IOException failure = null;
+		for (InetAddress address : addresses) {
+			SocketChannel channel = SocketChannel.open();
+			try {
+				channel.socket().connect(new InetSocketAddress(address, port), Utils.CONNECT_TIMEOUT);
+				if (timing != null) timing.end(RequestTiming.CONNECT);
+				return new RemoteConnection(ConnectionPool.getKey(hostname, port), channel);
+			} catch (IOException e) {
+				channel.close();
+				failure = e;
+			}
+		}
+		throw (failure != null) ? failure : new UnknownHostException(hostname);
+	}
+	
+	/**
+	 * Has this connection been used for a request before?
+	 */
+	public boolean isReused() {
+		return uses > 1;
+	}
+	
+	/**
+	 * Checks whether an idle connection can still be used, without blocking
+	 * 
+	 * @return false if the remote server has closed the connection, or has
+	 * sent anything we didn't ask for
+	 */
+	public boolean isHealthy() {
+		if (!channel.isOpen()) return false;
+		try {
+			if (in.available() > 0) return false;
+			
+			// peek at the socket: nothing to read means it's still good
+			channel.configureBlocking(false);
+			int n = channel.read(ByteBuffer.allocate(1));
+			channel.configureBlocking(true);
+			return n == 0;
+			
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+	}
+}
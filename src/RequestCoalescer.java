@@ -0,0 +1,149 @@
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Collapses concurrent requests for the same response into one fetch from
+ * the remote server. The first request for a cache key to miss the cache
+ * becomes the leader of a "flight" and fetches the response as usual; any
+ * requests for the same key that miss while it's in the air become followers,
+ * and wait for the leader to store what it got in the ResponseCache rather
+ * than fetching their own copy. Followers go fetch for themselves if the
+ * response turns out not to be storable, or if the leader takes too long.
+ * 
+ * Keys whose responses weren't storable are remembered for a while, so that
+ * requests for them don't keep queueing up behind each other for nothing.
+ */
+public class RequestCoalescer {
+	
+	// how long requests for a key that got an unstorable response skip collapsing, in milliseconds
+	final static int PASS_MILLIS = 10000;
+	
+	// most keys remembered as unstorable before the expired ones get cleared out
+	final static int MAX_PASSES = 10000;
+	
+	// the coalescer used by every RequestWorker
+	static final RequestCoalescer shared = new RequestCoalescer();
+	
+	// flights in the air, by cache key
+	private final ConcurrentHashMap<String,Flight> flights = new ConcurrentHashMap<String,Flight>();
+	
+	// when each key that got an unstorable response can be collapsed again
+	private final ConcurrentHashMap<String,Long> passes = new ConcurrentHashMap<String,Long>();
+	
+	// statistics
+	final AtomicLong leaders = new AtomicLong(); // requests that fetched for everyone
+	final AtomicLong hits = new AtomicLong(); // followers answered with what their leader fetched
+	final AtomicLong fallbacks = new AtomicLong(); // followers that had to fetch for themselves after all
+	
+	/**
+	 * A fetch from the remote server that other requests are waiting on
+	 */
+	static class Flight {
+		final String key;
+		final Object leader; // whoever's doing the fetching
+		private final CountDownLatch landed = new CountDownLatch(1);
+		private volatile boolean stored; // did the leader store a response for its followers?
+		
+		Flight(String key, Object leader) {
+			this.key = key;
+			this.leader = leader;
+		}
+		
+		/**
+		 * Waits for the leader to finish
+		 * 
+		 * @return true if it stored a response in the cache, or false if it
+		 * didn't (or didn't finish in time)
+		 */
+		boolean await(long millis) {
+			try {
+				return landed.await(millis, TimeUnit.MILLISECONDS) && stored;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Can a request be collapsed into another one for the same key? Only GETs
+	 * that are willing to take a response from the cache can.
+	 */
+	public static boolean canCollapse(String method, Hashtable<String,String> requestHeaders) {
+		if (!method.equalsIgnoreCase("GET")) return false;
+		Hashtable<String,String> cacheControl = CachedResponse.parseCacheControl(requestHeaders.get("cache-control"));
+		String pragma = requestHeaders.get("pragma");
+		return !cacheControl.containsKey("no-cache") && !cacheControl.containsKey("no-store")
+				&& !(pragma != null && pragma.toLowerCase().contains("no-cache"));
+	}
+	
+	/**
+	 * Joins the flight for a cache key, starting one (with the caller as its
+	 * leader) if there isn't one in the air. A leader has to land its flight
+	 * with land(), whatever happens to its request.
+	 * 
+	 * @return the flight, or null if the key's responses weren't storable last time
+	 */
+	public Flight join(String key, Object caller) {
+		Long passUntil = passes.get(key);
+		if (passUntil != null) {
+			if (System.currentTimeMillis() < passUntil) return null;
+			passes.remove(key, passUntil);
+		}
+		
+		Flight flight = new Flight(key, caller);
+		Flight existing = flights.putIfAbsent(key, flight);
+		if (existing != null) return existing;
+		
+		leaders.incrementAndGet();
+		return flight;
+	}
+	
+	/**
+	 * Ends a flight, waking up its followers (only the first call counts)
+	 * 
+	 * @param stored did the leader store a response in the cache for them?
+	 */
+	public void land(Flight flight, boolean stored) {
+		if (flights.remove(flight.key, flight)) {
+			flight.stored = stored;
+			flight.landed.countDown();
+		}
+	}
+	
+	/**
+	 * Ends a flight whose response can't be stored, and stops collapsing
+	 * requests for its key for a while
+	 */
+	public void pass(Flight flight) {
+		long now = System.currentTimeMillis();
+		if (passes.size() >= MAX_PASSES) {
+			Iterator<Map.Entry<String,Long>> entries = passes.entrySet().iterator();
+			while (entries.hasNext()) {
+				if (entries.next().getValue() <= now) entries.remove();
+			}
+		}
+		if (passes.size() < MAX_PASSES) passes.put(flight.key, now + PASS_MILLIS);
+		land(flight, false);
+	}
+	
+	public int getFlightCount() {
+		return flights.size();
+	}
+	
+	/**
+	 * Summarizes the coalescer's statistics, for logging
+	 */
+	public String getStats() {
+		return "leaders=" + leaders.get()
+				+ " hits=" + hits.get()
+				+ " fallbacks=" + fallbacks.get()
+				+ " inFlight=" + getFlightCount();
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * Times the phases of fetching a response from a remote server: looking up
+ * its address, connecting to it, waiting for the head of its response
+ * (time to first byte), and passing the body along. Each phase runs from
+ * the end of the one before it (or from start()), measured with
+ * System.nanoTime(). Phases that never happened, like connecting when a
+ * pooled connection got reused, are left out.
+ * 
+ * One of these belongs to each connection, and gets reset for every request.
+ */
+public class RequestTiming {
+	
+	// names of the phases, as they appear in Server-Timing headers, logs, and metrics
+	static final String[] PHASES = { "dns", "connect", "ttfb", "transfer" };
+	
+	static final int DNS = 0;
+	static final int CONNECT = 1;
+	static final int TTFB = 2;
+	static final int TRANSFER = 3;
+	
+	private final long[] durations = new long[PHASES.length]; // in nanoseconds, or -1 if the phase didn't happen
+	private long phaseStart; // System.nanoTime() when the current phase started
+	
+	public RequestTiming() {
+		reset();
+	}
+	
+	/**
+	 * Forgets the last request's phases
+	 */
+	public void reset() {
+		Arrays.fill(durations, -1);
+	}
+	
+	/**
+	 * Starts timing a phase (phases that follow straight on from another don't need this)
+	 */
+	public void start() {
+		phaseStart = System.nanoTime();
+	}
+	
+	/**
+	 * Finishes timing a phase, and starts timing the next one
+	 */
+	public void end(int phase) {
+		long now = System.nanoTime();
+		durations[phase] = now - phaseStart;
+		phaseStart = now;
+	}
+	
+	/**
+	 * Gets how long a phase took, in nanoseconds, or -1 if it didn't happen
+	 */
+	public long get(int phase) {
+		return durations[phase];
+	}
+	
+	/**
+	 * Did any phase get timed? (requests answered without the remote server have none)
+	 */
+	public boolean isEmpty() {
+		for (long duration : durations) {
+			if (duration >= 0) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Formats the phases timed so far as a Server-Timing header value, like
+	 * "dns;dur=0.012, connect;dur=0.403, ttfb;dur=21.950, total;dur=22.731"
+	 * 
+	 * @param totalNanos time spent on the request so far
+	 */
+	public String toServerTiming(long totalNanos) {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < PHASES.length; i++) {
+			if (durations[i] < 0) continue;
+			value.append(PHASES[i]).append(";dur=").append(toMillis(durations[i])).append(", ");
+		}
+		return value.append("total;dur=").append(toMillis(totalNanos)).toString();
+	}
+	
+	/**
+	 * Formats every phase for the log, like "dns=- connect=- ttfb=21.950ms
+	 * transfer=0.118ms total=22.731ms" (phases that didn't happen are "-")
+	 * 
+	 * @param totalNanos time spent on the whole request
+	 */
+	public String toLogField(long totalNanos) {
+		StringBuilder field = new StringBuilder();
+		for (int i = 0; i < PHASES.length; i++) {
+			field.append(PHASES[i]).append('=');
+			if (durations[i] < 0) field.append('-');
+			else field.append(toMillis(durations[i])).append("ms");
+			field.append(' ');
+		}
+		return field.append("total=").append(toMillis(totalNanos)).append("ms").toString();
+	}
+	
+	private static String toMillis(long nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1e6);
+	}
+}
@@ -1,333 +1,277 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.net.URLDecoder;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Map;
 
 
-public class RequestWorker extends Thread {
+public class RequestWorker implements Runnable {
 	
 	int id; // a unique number identifying this RequestWorker; used for logging
 	
 	String method; // HTTP method being used
 	String host; // hostname that our client is connecting to us at
 	
-	Socket clientSocket; // connection to client
+	Socket clientSocket; // connection to client (null for fetches made on the cache's behalf)
 	DataInputStream clientIn; // client -> proxy stream
 	DataOutputStream clientOut; // proxy -> client stream
 	Hashtable<String,String> clientHeaders; // headers received from client
-	byte[] clientBody; // body received from client
+	BodyFramer requestFramer; // finds the end of the client's request body as it's streamed to the remote
+	boolean clientBodyPending; // is the client's request body still sitting unread on its connection?
 	
-	Socket remoteSocket; // connection to remote
+	RemoteConnection remoteConnection; // connection to remote, which may have come from the pool
+	Socket remoteSocket; // remoteConnection's socket
 	DataInputStream remoteIn; // remote -> proxy stream
 	DataOutputStream remoteOut; // proxy -> remote stream
 	Hashtable<String,String> remoteHeaders; // headers received from remote
-	byte[] remoteBody; // body received from remote
+	
+	byte[] relayBuffer; // buffer that streamed bodies get copied through
+	boolean relayLostBytes; // did the last relay drop bytes past the end of the body?
+	boolean relayWriteFailed; // did the last relay fail writing, rather than reading?
+	
+	byte[] headBuffer; // buffer that request and response heads get parsed out of
+	HttpParser clientParser = new HttpParser(true); // parses heads of requests from the client
+	HttpParser remoteParser = new HttpParser(false); // parses heads of responses from the remote
+	HeadWriter remoteHead = new HeadWriter(); // head of the request being sent to the remote
+	HeadWriter clientHead; // head of the response being sent to the client
+	ByteArrayOutputStream relayCapture; // copy of the body being relayed, for the cache (null if not capturing)
+	RequestCoalescer.Flight flight; // fetch we're leading for other requests to the same URL (null if none)
+	CachedResponse stale; // stored response we're revalidating, or could serve stale (null if none)
+	ReverseProxy.Group backends; // our backends the request is routed to (null when forward proxying)
+	ReverseProxy.Backend backend; // the one picked to serve it (null until then)
+	boolean remoteFailed; // did the remote server fail us, even if the client got a stale copy instead?
+	
+	TimerWheel.Timeout clientTimeout; // deadline for the client's next request head
+	volatile boolean clientTimedOut; // did the deadline go off (and shut the client's input)?
+	final Runnable clientTimeoutTask = new Runnable() {
+		public void run() {
+			clientTimedOut = true;
+			try {
+				// ends the read that's waiting on the client
+				clientSocket.shutdownInput();
+			} catch (IOException e) {}
+		}
+	};
+	
+	int requestCount; // number of requests already served on this connection
+	boolean keepAlive; // should the client connection stay open after this response?
+	
+	// for the metrics
+	Metrics.CountingInputStream clientBytesIn; // counts bytes read from the client
+	Metrics.CountingOutputStream clientBytesOut; // counts bytes written to the client
+	long bytesInMark, bytesOutMark; // the counts when the last request was recorded
+	boolean requestStarted; // has a request's head arrived since the last one was recorded?
+	long requestStart; // System.nanoTime() when it arrived
+	long admittedAt; // System.nanoTime() when it got a slot from AdmissionControl, or 0 if it doesn't hold one
+	int responseStatus; // status code sent to the client, or 0 if none was yet
+	RequestTiming timing = new RequestTiming(); // how long each phase of fetching the response took
 	
 	public RequestWorker(Socket clientSocket, int id) {
 		this.clientSocket = clientSocket;
 		this.id = id;
 	}
+	
+	/**
+	 * Makes a worker with no client, that only talks to remote servers, for
+	 * fetches the cache makes on its own (see revalidate); it can't be run
+	 * 
+	 * @param id number of the connection whose request led to the fetch, for logging
+	 */
+	RequestWorker(int id) {
+		this(null, id);
+	}
 
 	
 	public void run() {
 		try {
 			
+			Metrics.shared.activeConnections.incrementAndGet();
+			
 			// reader for client->proxy data
-			clientIn = new DataInputStream(clientSocket.getInputStream());
+			clientBytesIn = new Metrics.CountingInputStream(clientSocket.getInputStream());
+			clientIn = new DataInputStream(new BufferedInputStream(clientBytesIn));
 			
-			// writer for proxy->client data
-			clientOut = new DataOutputStream(clientSocket.getOutputStream());
+			// writer for proxy->client data (flushed at the end of every response)
+			clientBytesOut = new Metrics.CountingOutputStream(clientSocket.getOutputStream());
+			clientOut = new DataOutputStream(new BufferedOutputStream(clientBytesOut));
+			clientSocket.setTcpNoDelay(true);
 			
+			// keep answering requests for as long as the client keeps the connection open
+			while (true) {
+				try {
+					if (!serveRequest()) break;
+				} finally {
+					recordRequest();
+				}
+				requestCount++;
+			}
 			
-			String remoteHostname = "";
-			int remotePort = 80;
-			String remotePath = "";
-			method = "";
+		} catch (IOException e) {
+			if (Utils.LOG_REQUEST_ERRORS) e.printStackTrace();
+		} finally {
+			Metrics.shared.activeConnections.decrementAndGet();
+			closeRemote();
+			try {
+				if (!clientSocket.isClosed()) clientSocket.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Reads a single request from the client and responds to it
+	 * 
+	 * @return true if the client connection should stay open for another request
+	 */
+	public boolean serveRequest() throws IOException {
+		
+		String remoteHostname = "";
+		int remotePort = 80;
+		String remotePath = "";
+		String requestUrl = ""; // the URI that our client wants to access
+		method = "";
+		keepAlive = false; // until we've decided the request is sane
+		clientBodyPending = false;
+		relayCapture = null;
+		backends = null;
+		remoteFailed = false;
+		
+		try {
 			
+			// don't wait forever for a client that has nothing more to say, or that's
+			// sending its head a byte at a time (see startClientTimeout)
+			clientSocket.setSoTimeout(Utils.BODY_TIMEOUT);
+			startClientTimeout(Utils.KEEP_ALIVE_TIMEOUT);
+			boolean gotHead = false;
 			try {
-				
-				String request = clientIn.readLine();
-				
-				// ignore empty requests
-				if (request == null) {
-					clientSocket.close();
-					return;
-				}
-				
-				logConnection(Node.CLIENT, Node.PROXY, request);
-				
-				
-				clientHeaders = new Hashtable<String,String>();
-				if (!readClientHeaders()) return;
-				
-				
-				String[] requestArgs = request.split(" ");
-				if (requestArgs.length != 3) {
-					logError("Invalid HTTP header line");
-					respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
-					return;
-				}
-				method = requestArgs[0];
-				
-				// reject methods we don't support
-				if (!(method.equalsIgnoreCase("GET")
-						|| (method.equalsIgnoreCase("HEAD") && !Utils.STICK_TO_THE_SCRIPT)
-						|| (method.equalsIgnoreCase("POST") && !Utils.STICK_TO_THE_SCRIPT))) {
-					logError("Invalid or unimplemented HTTP method");
-					respondWithHtmlStatus((Utils.STICK_TO_THE_SCRIPT) ? 
-							(HttpStatus.METHOD_NOT_ALLOWED) : (HttpStatus.NOT_IMPLEMENTED));
-					return;
-				}
-				// force http/1.1
-				if (!requestArgs[2].equalsIgnoreCase(Utils.HTTP_VERSION)) {
-					logError("Invalid HTTP version");
-					respondWithHtmlStatus(HttpStatus.HTTP_VER_NOT_SUPPORTED);
-					return;
-				}
-				
-				// http/1.1 requires the host header be set
-				host = clientHeaders.get("host");
-				if (host == null) {
-					logError("No host specified in request");
-					respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
-					return;
-				}
-				
-				if (method.equalsIgnoreCase("POST")) {
-					if (!readClientBody()) return;
-				}
-				
-				String requestUrl = requestArgs[1]; // the URI that our client wants to access
-				
-				
-				// handle internal local addresses
-				if (requestUrl.startsWith("/")) {
-					
-					requestUrl = URLDecoder.decode(requestUrl, "UTF-8");
-					
-					if (!Utils.ENABLE_INTERNAL_SERVER) {
-						logError("Tried to access internal server while disabled");
-						respondWithHtmlStatus(HttpStatus.SERVICE_UNAVAILABLE);
-						return;
-					}
-					
-					if (method.equalsIgnoreCase("POST")) {
-						respondMethodNotAllowed("GET, HEAD");
-					}
-					
-					String[] requestParams = requestUrl.split("/");
-					
-					
-					if (requestParams.length <= 1) {
-						// a simple homepage
-						
-						String body = "<div class=\"col-md-12\">"
-								+ "<p class=\"text-center\">Made by Hayden Schiff and Shir Maimon</p>"
-								+ "</div>";
-						body += "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
-								+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/proxy.pac\">Download proxy auto-config file</a>"
-								+ "</p></div>";
-						if (Utils.ENABLE_INTERNAL_ACTIONS) {
-							body += "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
-									+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/action/proxyon\">Enable proxy service</a>"
-									+ "</p></div>"
-									+ "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
-									+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/action/proxyoff\">Disable proxy service</a>"
-									+ "</p></div>"
-									+ "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
-									+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/action/exit\">Shut down the server</a>"
-									+ "</p></div>";
-						}
-
-						if (Utils.ENABLE_STATIC_FILES && Utils.ENABLE_DIRECTORY_INDEXING) {
-							body += "<div class=\"col-sm-6 col-sm-offset-3\"><p>"
-									+ "<a class=\"btn btn-primary btn-lg btn-block\" href=\"/index\">View file index</a>"
-									+ "</p></div>";
-						}
-						body += "<div class=\"clearfix\"></div>";
-						
-						respondWithHtml(HttpStatus.OK, Utils.getSimpleHtml(
-								"Welcome to " + Utils.SERVER_NAME + "!",
-								body,
-								".page-header h1, footer { text-align:center; }"
-						));
-						return;
-						
-					} else if (requestParams[1].equals("action") && requestParams.length > 2) {
-						// actions for controlling the server
-						
-						if (!Utils.ENABLE_INTERNAL_ACTIONS) {
-							respondWithHtmlStatus(HttpStatus.FORBIDDEN);
-							return;
-						}
-						
-						if (requestParams.length == 3 && requestParams[2].equals("exit")) { // shut down the server
-							ProxyServer.isAlive = false;
-							respondWithMessage(
-									HttpStatus.ACCEPTED,
-									"Exit command received",
-									"The server is no longer accepting new connections, and "
-									+ "will shutdown after all active connections are closed."
-							);
-							return;
-							
-						} else if (requestParams.length == 3 && requestParams[2].equals("proxyon")) { // enable proxy
-							ProxyServer.isProxyActive = true;
-							respondWithMessage(
-									HttpStatus.ACCEPTED,
-									"Proxy enabled",
-									"The server will now accept proxy requests."
-							);
-							return;
-							
-						} else if (requestParams.length == 3 && requestParams[2].equals("proxyoff")) { // disable proxy
-							ProxyServer.isProxyActive = false;
-							respondWithMessage(
-									HttpStatus.ACCEPTED,
-									"Proxy disabled",
-									"The server will stop accepting proxy requests."
-							);
-							return;
-							
-						}
-						
-					} else if (requestParams.length == 2 && requestParams[1].equals("teapot")) { // i couldn't resist
-						
-						respondWithHtmlStatus(HttpStatus.IM_A_TEAPOT);
-						return;
-						
-						
-					} else if (requestParams.length == 2 && requestParams[1].equals("proxy.pac")) { // auto config file for proxy
-						
-						// many browsers and OSes let you specify the URL of an auto-config
-						// file like this, to simplify the configuration of the proxy
-						
-						String body = "function FindProxyForURL(url, host)"
-								+ "{"
-								+ "return \"PROXY " + host + "; DIRECT\";"
-								+ "}";
-						
-						beginResponse(HttpStatus.OK);
-						sendHeader("Content-Length", String.valueOf(body.length()));
-						sendHeader("Content-Type", "application/x-ns-proxy-autoconfig");
-						endHeader();
-						writeClientBody(body);
-						endResponse();
-						return;
-						
-						
-					} else { // get file from local filesystem
-						
-						if (!Utils.ENABLE_STATIC_FILES) {
-							respondWithHtmlStatus(HttpStatus.FORBIDDEN);
-							return;
-						}
-						
-						if (requestUrl.equals("/index")) requestUrl = "/";
-						
-						File file = new File(Utils.DOCUMENT_ROOT + requestUrl);
-						
-						// return a folder index if it's a directory
-						if (file.isDirectory()) {
-							
-							if (!Utils.ENABLE_DIRECTORY_INDEXING) {
-								respondWithHtmlStatus(HttpStatus.FORBIDDEN);
-								return;
-							}
-							
-							if (!requestUrl.endsWith("/")) {
-								respondRedirect(requestUrl +"/");
-							}
-							
-							File[] contents = file.listFiles();
-							
-							String body = "<div class=\"col-md-12\">"
-									+ "<p><a href=\"../\">&laquo; Go up a level</a></p>";
-							
-							if (contents.length > 0) {
-								body += "<ul>";
-								for (File f : contents) {
-									String path = f.getName();
-									if (f.isDirectory()) path += "/";
-									body += "<li>"
-											+ "<a href=\"" + path + "\">" + path + "</a>"
-											+ "</li>";
-								}
-								body += "</ul>";
-							} else {
-								body += "<p>This directory is empty.</p>";
-							}
-							
-							body += "</div>";
-
-							respondWithHtml(HttpStatus.OK, Utils.getSimpleHtml(
-									"Index of " + requestUrl, body, ""
-							));
-							
-							return;
-						}
-						// not found if file doesn't exist
-						if (!file.exists()) {
-							respondWithHtmlStatus(HttpStatus.NOT_FOUND);
-							return;
-						}
-
-						
-						FileInputStream fileIn = new FileInputStream(file);
-						//byte[] fileData = new byte[0];
-						byte[] fileBuffer = new byte[Utils.FILE_BUFFER_SIZE];
-						int fileBufferSize = 0;
-						
-						// try to get the content type
-						String fileName = file.getName();
-						String fileExt = fileName.substring(fileName.lastIndexOf(".")+1);
-						String fileContentType = Utils.getMimetypeForExtension(fileExt);//Files.probeContentType(requestedFile.toPath());
-						
-						// start talking to the client
-						beginResponse(HttpStatus.OK);
-						if (fileContentType != null) {
-							sendHeader("Content-Type", fileContentType);
-						}
-						
-						// for simplicity's sake, we'll use chunked encoding every time
-						sendHeader("Transfer-Encoding", "chunked");
-						endHeader();
-
-						while ((fileBufferSize = fileIn.read(fileBuffer)) != -1) {
-							
-							writeClientBody(Integer.toString(fileBufferSize, 16) + Utils.CRLF);
-							writeClientBody(Arrays.copyOf(fileBuffer, fileBufferSize));
-							writeClientBody(Utils.CRLF);
-						}
-						// signal the end of chunks
-						writeClientBody("0" + Utils.CRLF + Utils.CRLF);
-						endResponse();
-						
-						fileIn.close();
-						return;
-					}
-					
-					respondWithHtmlStatus(HttpStatus.NOT_FOUND);
-					return;
-				}
-				
-				// forbid unfamiliar protocols and local files
-				if (!requestUrl.startsWith("http://")) {
-					respondWithHtmlStatus(HttpStatus.FORBIDDEN);
-					return;
-				}
-				if (!ProxyServer.isProxyActive) {
-					respondWithHtmlStatus(HttpStatus.SERVICE_UNAVAILABLE);
+				gotHead = readHead(clientIn, clientParser);
+			} catch (IOException e) {
+				// (a read cut off by the deadline can end in an exception instead of the end of the stream)
+				if (!clientTimedOut && (clientParser.hasStarted() || !(e instanceof SocketTimeoutException))) throw e;
+			} finally {
+				cancelClientTimeout();
+			}
+			
+			// ignore empty requests and clients that hang up partway through, and let idle clients go
+			if (!clientParser.hasStarted()) return false;
+			if (!gotHead && !clientTimedOut) return false;
+			
+			requestStarted = true;
+			requestStart = System.nanoTime();
+			responseStatus = 0;
+			timing.reset();
+			
+			if (clientTimedOut) {
+				logError("Client took too long to send its request head");
+				keepAlive = false;
+				respondWithHtmlStatus(HttpStatus.REQUEST_TIMEOUT);
+				return keepAlive;
+			}
+			
+			if (clientParser.getError() != null) {
+				logError(clientParser.getError());
+				respondWithHtmlStatus(clientParser.isTooLarge() ?
+						HttpStatus.REQ_HEADER_TOO_LARGE : HttpStatus.BAD_REQUEST);
+				return keepAlive;
+			}
+			
+			logConnection(Node.CLIENT, Node.PROXY, clientParser.getStartLine());
+			
+			clientHeaders = clientParser.copyHeadersTo(new Hashtable<String,String>());
+			method = clientParser.getMethod();
+			
+			// reject methods we don't support
+			if (!(method.equalsIgnoreCase("GET")
+					|| (method.equalsIgnoreCase("HEAD") && !Utils.STICK_TO_THE_SCRIPT)
+					|| (hasRequestBody(method) && !Utils.STICK_TO_THE_SCRIPT)
+					|| (method.equalsIgnoreCase("CONNECT") && !Utils.STICK_TO_THE_SCRIPT))) {
+				logError("Invalid or unimplemented HTTP method");
+				respondWithHtmlStatus((Utils.STICK_TO_THE_SCRIPT) ? 
+						(HttpStatus.METHOD_NOT_ALLOWED) : (HttpStatus.NOT_IMPLEMENTED));
+				return keepAlive;
+			}
+			// force http/1.1
+			if (!clientParser.isVersion(Utils.HTTP_VERSION)) {
+				logError("Invalid HTTP version");
+				respondWithHtmlStatus(HttpStatus.HTTP_VER_NOT_SUPPORTED);
+				return keepAlive;
+			}
+			
+			// the body's left on the connection to be streamed to the remote server,
+			// so we have to know where it ends
+			requestFramer = BodyFramer.forHeaders(clientHeaders, false);
+			if (requestFramer == null) {
+				logError("Couldn't work out the length of the client's body");
+				respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
+				return keepAlive;
+			}
+			clientBodyPending = (requestFramer.framing != BodyFramer.Framing.NONE);
+			
+			// http/1.1 connections stay open unless the client says otherwise
+			int connection = clientParser.indexOf("connection");
+			keepAlive = (connection < 0 || !clientParser.valueHasToken(connection, "close"))
+					&& requestCount + 1 < Utils.MAX_KEEP_ALIVE_REQUESTS
+					&& ProxyServer.isAlive;
+			
+			// http/1.1 requires the host header be set
+			host = clientHeaders.get("host");
+			if (host == null) {
+				logError("No host specified in request");
+				respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
+				return keepAlive;
+			}
+			
+			// 100-continue is the only expectation there is
+			String expect = clientHeaders.get("expect");
+			if (expect != null && !expect.trim().equalsIgnoreCase("100-continue")) {
+				logError("Unknown expectation: " + expect);
+				respondWithHtmlStatus(HttpStatus.EXPECTATION_FAILED);
+				return keepAlive;
+			}
+			
+			// CONNECT asks for a tunnel to a host and port, rather than a url
+			if (method.equalsIgnoreCase("CONNECT")) return serveTunnel(clientParser.getTarget());
+			
+			requestUrl = clientParser.getTarget();
+			
+			
+			// handle internal local addresses, unless they're routed to our backends
+			if (requestUrl.startsWith("/")) {
+				backends = ReverseProxy.shared.enabled ? ReverseProxy.shared.route(host, requestUrl) : null;
+				if (backends == null) {
+					respond(InternalServer.handle(id, method, requestUrl, host, clientHeaders));
+					return keepAlive;
 				}
 				
+				// (the cache knows responses by the URL the client sees)
+				remotePath = requestUrl;
+				requestUrl = "http://" + host + requestUrl;
+			}
+			
+			// forbid unfamiliar protocols and local files
+			if (!requestUrl.startsWith("http://")) {
+				respondWithHtmlStatus(HttpStatus.FORBIDDEN);
+				return keepAlive;
+			}
+			if (!ProxyServer.isProxyActive) {
+				respondWithHtmlStatus(HttpStatus.SERVICE_UNAVAILABLE);
+				return keepAlive;
+			}
+			
+			if (backends == null) {
 				String urlMinusProtocol = requestUrl.substring("http://".length());
 				remoteHostname = urlMinusProtocol.split("/")[0];
 				remotePath = urlMinusProtocol.substring(remoteHostname.length());
@@ -339,299 +283,714 @@ public class RequestWorker extends Thread {
 					remoteHostname = hostnameExplode[0];
 					remotePort = Integer.parseInt(hostnameExplode[1]);
 				}
-				
-			} catch (SocketTimeoutException e) {
-				logError("Connection to client timed out");
-				respondWithHtmlStatus(HttpStatus.REQUEST_TIMEOUT);
-				return;
 			}
 			
+		} catch (SocketTimeoutException e) {
+			logError("Connection to client timed out");
+			keepAlive = false;
+			respondWithHtmlStatus(HttpStatus.REQUEST_TIMEOUT);
+			return keepAlive;
+		}
+		
+		
+		// answer straight from the cache if we have a fresh enough copy
+		if (Utils.ENABLE_CACHE && Utils.STREAM_REMOTE_RESPONSES) {
+			CachedResponse cached = ResponseCache.shared.lookup(method, requestUrl, clientHeaders);
+			if (cached != null) {
+				respondFromCache(cached);
+				return keepAlive;
+			}
 			
+			// a stale copy can still be checked with the remote server, or served if it lets us
+			stale = ResponseCache.shared.lookupStale(method, requestUrl, clientHeaders);
+			if (stale != null && stale.staleWhileRevalidate > 0 && ResponseCache.allowsStale(clientHeaders)
+					&& stale.canServeStale(System.currentTimeMillis(), stale.staleWhileRevalidate)) {
+				revalidateInBackground(requestUrl, remoteHostname, remotePort, remotePath);
+				ResponseCache.shared.staleHits.incrementAndGet();
+				CachedResponse served = stale;
+				stale = null;
+				respondFromCache(served, "STALE");
+				return keepAlive;
+			}
 			
-			try {
-				remoteSocket = new Socket(remoteHostname, remotePort);
-			} catch (UnknownHostException e) {
-				logError("Unknown remote hostname");
-				respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
-				return;
+			// if someone else is already fetching this, wait for them to put it in the cache
+			if (Utils.COLLAPSED_FORWARDING && RequestCoalescer.canCollapse(method, clientHeaders)) {
+				RequestCoalescer.Flight joined = RequestCoalescer.shared.join(
+						ResponseCache.shared.getKey(method, requestUrl, clientHeaders), this);
+				if (joined == null) {
+					// its responses can't be cached, so there's no point waiting on anyone
+				} else if (joined.leader == this) {
+					flight = joined;
+				} else if (!serveCollapsed(joined, requestUrl)) {
+					logError("Collapsed request came back empty; fetching it separately");
+				} else {
+					return keepAlive;
+				}
 			}
-			remoteOut = new DataOutputStream(remoteSocket.getOutputStream());
-			remoteIn = new DataInputStream(remoteSocket.getInputStream());
-			
-			String remoteReq = method + " " + remotePath + " " + Utils.HTTP_VERSION;
-			logConnection(Node.PROXY, Node.REMOTE, remoteReq);
-			
-			// Host header required for http/1.1
-			remoteReq += Utils.httpHeader("Host", remoteHostname);
-			
-			// Via header to identify ourselves as a proxy
-			String viaPrefix = (clientHeaders.containsKey("Via")) ? (clientHeaders.get("Via") + ", ") : "";
-			remoteReq += Utils.httpHeader("Via", viaPrefix + "1.1 " + Utils.SERVER_NAME);
-			
-			// must pass length for POST
-			if (method.equalsIgnoreCase("POST")) {
-				String contentLength = (clientHeaders.containsKey("Content-Length")) ? 
-						(clientHeaders.get("Content-Length") + ", ") : String.valueOf(clientBody.length);
-				remoteReq += Utils.httpHeader("Content-Length", contentLength);
-			}
-			
-			
-			// some headers should be copied from the C->P request to the P->R request
-			String[] copyHeaders = {
-					"Accept", 
-					"Accept-Charset", 
-					"Accept-Encoding", 
-					"Accept-Language", 
-					"Accept-Ranges",
-					"Authorization",
-					"Cache-Control",
-					"Content-Type",
-					"Cookie",
-					"DNT", //do not track flag
-					"From",
-					"Referer",
-					"User-Agent"
-					};
-			for (String copyKey : copyHeaders) {
-				if (clientHeaders.containsKey(copyKey.toLowerCase())) {
+		}
+		
+		
+		// past the concurrency limit, wait for a slot or shed the request
+		if (AdmissionControl.shared.enabled) {
+			if (!AdmissionControl.shared.acquire(Utils.QUEUE_TIMEOUT)) {
+				logError("Too many requests in progress; shedding request");
+				if (serveStaleOnError()) return keepAlive;
+				respondOverloaded();
+				return keepAlive;
+			}
+			admittedAt = System.nanoTime();
+		}
+		
+		// only now that it's going, pick which of our backends gets it
+		if (backends != null) {
+			backend = backends.pick();
+			remoteHostname = backend.hostname;
+			remotePort = backend.port;
+		}
+		
+		String remoteRequestLine = method + " " + remotePath + " " + Utils.HTTP_VERSION;
+		logConnection(Node.PROXY, Node.REMOTE, remoteRequestLine);
+		
+		HeadWriter remoteReq = remoteHead.reset().append(remoteRequestLine);
+		writeRemoteHeaders(remoteReq, (backends != null) ? host : remoteHostname, clientHeaders);
+		if (backends != null) writeForwardedFor(remoteReq, clientSocket.getInetAddress(), clientHeaders);
+		if (stale != null) writeValidators(remoteReq, stale);
+		
+		// the body goes along in the same framing the client used
+		if (requestFramer.framing == BodyFramer.Framing.CHUNKED) {
+			remoteReq.header("Transfer-Encoding", "chunked");
+		} else if (requestFramer.framing == BodyFramer.Framing.FIXED) {
+			remoteReq.header("Content-Length", clientHeaders.get("content-length").trim());
+		} else if (hasRequestBody(method)) {
+			remoteReq.header("Content-Length", "0");
+		}
+		
+		// a client that asked before sending its body gets to hear from the remote server
+		// whether it's wanted, so uploads it turns down never get sent
+		boolean expectContinue = clientBodyPending && clientHeaders.containsKey("expect");
+		if (expectContinue) remoteReq.header("Expect", "100-continue");
+		
+		remoteReq.end();
+		
+		
+		remoteHeaders = new Hashtable<String,String>();
+		
+		try {
+			
+			// a pooled connection may get closed by the remote server just as we pick it up,
+			// so requests that are safe to repeat get one more try on a fresh connection
+			boolean gotResponse = false;
+			long requestTime = 0;
+			for (int attempt = 0; !gotResponse; attempt++) {
+				
+				try {
+					timing.start();
+					remoteConnection = ConnectionPool.shared.checkout(remoteHostname, remotePort, timing, attempt > 0);
+				} catch (UnknownHostException e) {
+					logError("Unknown remote hostname");
+					respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
+					return keepAlive;
+				} catch (SocketTimeoutException e) {
+					throw e;
+				} catch (IOException e) {
+					logError("Failed to connect to remote server");
+					respondWithGatewayError(HttpStatus.BAD_GATEWAY);
+					return keepAlive;
+				}
+				remoteSocket = remoteConnection.socket;
+				remoteIn = remoteConnection.in;
+				remoteOut = remoteConnection.out;
+				remoteSocket.setSoTimeout(Utils.RESPONSE_TIMEOUT);
+				
+				// (a body streamed from the client can't be sent twice)
+				boolean canRetry = (attempt == 0 && remoteConnection.isReused()
+						&& !hasRequestBody(method) && !clientBodyPending);
+				try {
+					requestTime = System.currentTimeMillis();
+					timing.start();
+					remoteReq.writeTo(remoteOut);
+					remoteOut.flush();
+					
+					boolean sendBody = clientBodyPending;
+					if (expectContinue) {
+						// a remote server that doesn't answer in time probably doesn't know
+						// to, so it gets the body anyway
+						remoteSocket.setSoTimeout(Utils.CONTINUE_TIMEOUT);
+						try {
+							gotResponse = readResponseHead(true);
+							sendBody = gotResponse && remoteParser.getError() == null
+									&& remoteParser.getStatusCode() == HttpStatus.CONTINUE.code;
+						} catch (SocketTimeoutException e) {
+							if (remoteParser.hasStarted()) throw e;
+						}
+						remoteSocket.setSoTimeout(Utils.RESPONSE_TIMEOUT);
+						if (sendBody) sendContinue();
+					}
 					
-					// multiple headers of the same name are separated
-					// by CRLFs, so we need to split them back out
-					String valueStr = clientHeaders.get(copyKey.toLowerCase());
-					String[] values = valueStr.split(Utils.CRLF);
-					for (String value : values) {
-						remoteReq += Utils.httpHeader(copyKey, value);
+					if (sendBody) {
+						if (!sendClientBody()) return keepAlive;
+						if (clientBodyPending) {
+							// the remote server cut the body off, so pass along its answer if it left one
+							try {
+								gotResponse = readResponseHead(false) && remoteParser.getError() == null;
+							} catch (IOException e) {
+								gotResponse = false;
+							}
+							if (!gotResponse) {
+								closeRemote();
+								respondWithGatewayError(HttpStatus.BAD_GATEWAY);
+								return keepAlive;
+							}
+						} else {
+							gotResponse = readResponseHead(false);
+						}
+					} else if (!expectContinue) {
+						gotResponse = readResponseHead(false);
+					}
+				} catch (SocketTimeoutException e) {
+					throw e;
+				} catch (IOException e) {
+					if (!canRetry) throw e;
+				}
+				
+				if (!gotResponse) {
+					closeRemote();
+					if (!canRetry) {
+						logError("Remote server closed the connection without responding");
+						respondWithGatewayError(HttpStatus.BAD_GATEWAY);
+						return keepAlive;
 					}
 				}
 			}
 			
-			remoteReq += Utils.HTTP_HEADER_END;
-			
-			writeRemoteBody(remoteReq);
-			
-			if (method.equalsIgnoreCase("POST")) {
-				writeRemoteBody(clientBody);
+			if (remoteParser.getError() != null) {
+				logError("Invalid response from remote server: " + remoteParser.getError());
+				respondWithGatewayError(HttpStatus.BAD_GATEWAY);
+				return keepAlive;
 			}
 			
+			timing.end(RequestTiming.TTFB);
+			remoteSocket.setSoTimeout(Utils.BODY_TIMEOUT);
+			String remoteResponseLine = remoteParser.getStartLine();
+			logConnection(Node.REMOTE, Node.PROXY, remoteResponseLine);
+			remoteParser.copyHeadersTo(remoteHeaders);
+			long responseTime = System.currentTimeMillis();
 			
-			remoteHeaders = new Hashtable<String,String>();
+			// whatever a successful unsafe request changed shouldn't be served from the cache
+			if (Utils.ENABLE_CACHE) {
+				ResponseCache.shared.invalidateAfter(method, requestUrl, remoteParser.getStatusCode(), remoteHeaders);
+			}
 			
-			try {
-				
-				String remoteResponseLine = remoteIn.readLine();
-				logConnection(Node.REMOTE, Node.PROXY, remoteResponseLine);
+			if (Utils.STREAM_REMOTE_RESPONSES) {
+				// pass the body along as it arrives, in whatever framing the remote used
+				int statusCode = remoteParser.getStatusCode();
 				
-				// read all the headers
-				if (!readRemoteHeaders()) return;
+				// our stored copy is still good, so answer with that
+				if (statusCode == 304 && stale != null && stale.isRevalidatable()) {
+					CachedResponse fresh = ResponseCache.shared.freshen(stale, remoteHeaders, requestTime, responseTime);
+					releaseRemote(remoteAllowsReuse());
+					landFlight(true);
+					respondFromCache(fresh, "REVALIDATED");
+					return keepAlive;
+				}
 				
-				//byte[] remoteBody = new byte[0];
+				// or if the remote server's failing, maybe it lets us fall back on it
+				if (statusCode >= 500 && serveStaleOnError()) return keepAlive;
 				
-				if (method != "HEAD") {
-					if (!readRemoteBody()) return;
+				BodyFramer framer = BodyFramer.forResponse(method, statusCode, remoteHeaders);
+				if (framer == null) {
+					logError("Couldn't work out the length of the remote server's body");
+					respondWithGatewayError(HttpStatus.BAD_GATEWAY);
+					return keepAlive;
 				}
 				
+				// without framing, only closing the connection tells the client the body is over
+				if (framer.framing == BodyFramer.Framing.UNTIL_CLOSE) keepAlive = false;
 				
-				remoteOut.close();
-				remoteIn.close();
-				remoteSocket.close();
-				
+				// keep a copy of the body as it goes by if the cache can use it
+				// (bodies ended by a close can't be replayed on a kept-alive connection)
+				boolean storable = Utils.ENABLE_CACHE
+						&& framer.framing != BodyFramer.Framing.UNTIL_CLOSE
+						&& ResponseCache.shared.isStorable(method, statusCode, clientHeaders, remoteHeaders);
+				relayCapture = storable ? new ByteArrayOutputStream() : null;
 				
-				logConnection(Node.PROXY, Node.CLIENT, remoteResponseLine);
-				clientOut.writeBytes(remoteResponseLine);
-				Enumeration<String> keys = remoteHeaders.keys();
-				while (keys.hasMoreElements()) {
-					String key = keys.nextElement();
-					
-					// multiple headers of the same name are separated
-					// by CRLFs, so we need to split them back out
-					String valueStr = remoteHeaders.get(key);
-					String[] values = valueStr.split(Utils.CRLF);
-					for (String value : values) {
-						clientOut.writeBytes(Utils.httpHeader(key, value));
-					}
+				// nothing's going in the cache, so anyone waiting on us should go fetch it themselves
+				if (!storable && flight != null) {
+					RequestCoalescer.shared.pass(flight);
+					flight = null;
 				}
-				clientOut.writeBytes(Utils.HTTP_HEADER_END);
 				
-				writeClientBody(remoteBody);
+				sendRemoteResponseHead(remoteResponseLine);
+				boolean complete = relayBody(remoteIn, clientOut, framer);
+				timing.end(RequestTiming.TRANSFER);
+				if (!complete) keepAlive = false;
 				
-				clientOut.close();
-				clientIn.close();
-				clientSocket.close();
-				
-				
-			} catch (SocketTimeoutException e) {
-				logError("Connection to remote server timed out");
-				respondWithHtmlStatus(HttpStatus.GATEWAY_TIMEOUT);
-				return;
+				boolean stored = complete && relayCapture != null;
+				if (stored) {
+					ResponseCache.shared.store(method, requestUrl, clientHeaders, remoteResponseLine, statusCode,
+							remoteHeaders, relayCapture.toByteArray(), requestTime, responseTime);
+				}
+				relayCapture = null;
+				landFlight(stored);
 				
+				// the remote connection can only be reused if we read exactly up to the end of the response
+				releaseRemote(complete && !relayLostBytes
+						&& framer.framing != BodyFramer.Framing.UNTIL_CLOSE
+						&& remoteAllowsReuse());
+				endResponse();
+				return keepAlive;
+			}
+			
+			// otherwise read the whole body before sending any of it, still in the remote's framing
+			BodyFramer framer = BodyFramer.forResponse(method, remoteParser.getStatusCode(), remoteHeaders);
+			if (framer == null) {
+				logError("Couldn't work out the length of the remote server's body");
+				respondWithGatewayError(HttpStatus.BAD_GATEWAY);
+				return keepAlive;
+			}
+			ByteArrayOutputStream remoteBody = new ByteArrayOutputStream();
+			if (!relayBody(remoteIn, remoteBody, framer)) {
+				respondWithGatewayError(HttpStatus.BAD_GATEWAY);
+				return keepAlive;
 			}
+			timing.end(RequestTiming.TRANSFER);
+			
+			// without framing, only closing the connection tells the client the body is over
+			if (framer.framing == BodyFramer.Framing.UNTIL_CLOSE) keepAlive = false;
+			
+			closeRemote();
+			
 			
+			sendRemoteResponseHead(remoteResponseLine);
+			remoteBody.writeTo(clientOut);
+			endResponse();
+			
+			
+		} catch (SocketTimeoutException e) {
+			logError("Connection to remote server timed out");
+			
+			// too late for an error page once the response has started; just cut the client off
+			if (responseStatus != 0) return false;
+			respondWithGatewayError(HttpStatus.GATEWAY_TIMEOUT);
+			return keepAlive;
 			
 		} catch (IOException e) {
-			if (Utils.LOG_REQUEST_ERRORS) e.printStackTrace();
+			// the remote server hung up on us; fall back on a stale copy if we can
+			if (responseStatus == 0 && serveStaleOnError()) return keepAlive;
+			throw e;
 		}
+		
+		return keepAlive;
 	}
 	
 	/**
-	 * Reads headers from client until end of header block is reached
-	 * 
-	 * @return success
-	 */
-	public boolean readClientHeaders() throws IOException {
-		return readHeaders(false);
-	}
-	
-	/**
-	 * Reads headers from remote server until end of header block is reached
+	 * Opens a tunnel to the host and port a CONNECT request asked for, and
+	 * relays bytes both ways through it until both sides are done (see TunnelRelay)
 	 * 
-	 * @return success
+	 * @return true if the client connection should stay open for another
+	 * request, which it only does if the tunnel was refused
 	 */
-	public boolean readRemoteHeaders() throws IOException {
-		return readHeaders(true);
+	private boolean serveTunnel(String target) throws IOException {
+		String tunnelHost = TunnelRelay.parseHost(target);
+		int tunnelPort = TunnelRelay.parsePort(target);
+		if (tunnelHost == null) {
+			logError("Invalid tunnel target");
+			respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
+			return keepAlive;
+		}
+		if (!TunnelRelay.shared.isAllowedPort(tunnelPort)) {
+			logError("Tunnels to port " + tunnelPort + " aren't allowed");
+			respondWithHtmlStatus(HttpStatus.FORBIDDEN);
+			return keepAlive;
+		}
+		if (!ProxyServer.isProxyActive) {
+			respondWithHtmlStatus(HttpStatus.SERVICE_UNAVAILABLE);
+			return keepAlive;
+		}
+		
+		logConnection(Node.PROXY, Node.REMOTE, "CONNECT " + target);
+		
+		// tunnels never go back in the pool, so they get a fresh connection of their own
+		try {
+			timing.start();
+			remoteConnection = RemoteConnection.open(tunnelHost, tunnelPort, timing);
+		} catch (UnknownHostException e) {
+			logError("Unknown remote hostname");
+			TunnelRelay.shared.failed.incrementAndGet();
+			respondWithHtmlStatus(HttpStatus.BAD_REQUEST);
+			return keepAlive;
+		} catch (SocketTimeoutException e) {
+			logError("Timed out connecting to remote server");
+			TunnelRelay.shared.failed.incrementAndGet();
+			respondWithHtmlStatus(HttpStatus.GATEWAY_TIMEOUT);
+			return keepAlive;
+		} catch (IOException e) {
+			logError("Failed to connect to remote server");
+			TunnelRelay.shared.failed.incrementAndGet();
+			respondWithHtmlStatus(HttpStatus.BAD_GATEWAY);
+			return keepAlive;
+		}
+		remoteSocket = remoteConnection.socket;
+		remoteSocket.setTcpNoDelay(true);
+		
+		// from here on the client connection belongs to the tunnel
+		keepAlive = false;
+		responseStatus = HttpStatus.OK.code;
+		logConnection(Node.PROXY, Node.CLIENT, TunnelRelay.ESTABLISHED_LINE);
+		clientOut.writeBytes(TunnelRelay.ESTABLISHED_LINE + "\r\n\r\n");
+		clientOut.flush();
+		
+		// the relay watches for idle tunnels itself
+		clientSocket.setSoTimeout(0);
+		if (relayBuffer == null) relayBuffer = new byte[Utils.RELAY_BUFFER_SIZE];
+		TunnelRelay.shared.relay(clientSocket, clientIn, clientBytesOut, remoteSocket, relayBuffer);
+		timing.end(RequestTiming.TRANSFER);
+		closeRemote();
+		return false;
 	}
 	
 	/**
-	 * Reads headers from remote/client server until end of header block is reached
+	 * Reads a request or response head (the start line and headers) through a
+	 * parser, leaving anything after it unread in the stream
 	 * 
-	 * @param isRemote if true, remote; if false, client
-	 * @return success
+	 * @return true if a head was read (or rejected, in which case the parser
+	 * has the error); false if the stream ended before one arrived
 	 */
-	public boolean readHeaders(boolean isRemote) throws IOException {
-		String remoteLine;
-		while ((remoteLine = (isRemote ? remoteIn : clientIn).readLine()) != null) {
+	public boolean readHead(InputStream in, HttpParser parser) throws IOException {
+		if (headBuffer == null) headBuffer = new byte[Math.min(Utils.RELAY_BUFFER_SIZE, Utils.MAX_HEADER_SIZE + 1)];
+		parser.reset();
+		
+		int filled = 0;
+		while (true) {
+			if (filled == headBuffer.length) {
+				// the parser gives up once the head is over the limit, so this stops growing eventually
+				headBuffer = Arrays.copyOf(headBuffer, Math.min(headBuffer.length * 2, Utils.MAX_HEADER_SIZE + 1));
+			}
 			
-			if (remoteLine.equals("")) break;
+			in.mark(headBuffer.length - filled);
+			int n = in.read(headBuffer, filled, headBuffer.length - filled);
+			if (n < 0) return false;
 			
-			String[] splitLine = remoteLine.split(":");
-			if (splitLine.length < 2) {
-				logError("Invalid header from remote server: " + remoteLine);
-				respondWithHtmlStatus(HttpStatus.BAD_GATEWAY);
-				return false;
+			int headEnd = parser.parse(headBuffer, filled + n);
+			if (headEnd < 0 && parser.getError() == null) {
+				// a client gets a set time to finish its head once it's started
+				if (filled == 0 && parser == clientParser) startClientTimeout(Utils.HEADER_TIMEOUT);
+				filled += n;
+				continue;
 			}
-			String headerKey = splitLine[0].toLowerCase();
-			String headerValue = remoteLine.substring(headerKey.length()+1).trim();
-			Hashtable<String,String> headers = (isRemote ? remoteHeaders : clientHeaders);
 			
-			// multiple of the same header may exist for comma-separated header types
-			if (headers.containsKey(headerKey)) {
-				headerValue = headers.get(headerKey) + Utils.CRLF + headerValue;
+			// put back whatever came after the head, for the body (or the next request)
+			if (headEnd >= 0 && headEnd < filled + n) {
+				in.reset();
+				long skipped = 0;
+				while (skipped < headEnd - filled) {
+					skipped += in.skip(headEnd - filled - skipped);
+				}
 			}
-			headers.put(headerKey, headerValue);
+			return true;
 		}
-		return true;
 	}
 	
-	
-	public boolean readClientBody() throws IOException {
-		return readBody(false);
+	/**
+	 * Gives the client until a deadline (on the shared TimerWheel) to get a
+	 * request head to us, in place of any deadline it already had. If the
+	 * deadline goes off, the client's input gets shut down, which ends the
+	 * read that's waiting on it, and clientTimedOut gets set.
+	 */
+	private void startClientTimeout(long millis) {
+		if (clientTimeout != null && !clientTimeout.cancel()) return; // too late; it's already gone off
+		clientTimedOut = false;
+		clientTimeout = TimerWheel.shared.schedule(clientTimeoutTask, millis);
 	}
 	
-	public boolean readRemoteBody() throws IOException {
-		return readBody(true);
+	private void cancelClientTimeout() {
+		if (clientTimeout != null && !clientTimeout.cancel()) clientTimedOut = true;
+		clientTimeout = null;
 	}
-
+	
 	/**
-	 * Reads body from remote/client server until end of body is reached
+	 * Copies data from one stream to another through a fixed-size buffer as
+	 * it arrives, until the framer says the body is over. Anything read past
+	 * the end of the body is left in the source stream when it can be
+	 * (otherwise relayLostBytes gets set). If it fails writing to the
+	 * destination, relayWriteFailed gets set.
 	 * 
-	 * @param isRemote if true, remote; if false, client
-	 * @return success
+	 * @return true if the whole body was relayed; false if the source stream
+	 * ended before the body did
 	 */
-	private boolean readBody(boolean isRemote) throws IOException {
+	public boolean relayBody(InputStream in, OutputStream out, BodyFramer framer) throws IOException {
+		if (relayBuffer == null) relayBuffer = new byte[Utils.RELAY_BUFFER_SIZE];
+		relayLostBytes = false;
+		relayWriteFailed = false;
 		
-		Hashtable<String,String> headers = isRemote ? remoteHeaders : clientHeaders;
-		byte[] body = isRemote ? remoteBody : clientBody;
-		DataInputStream in = isRemote ? remoteIn : clientIn;
-		String nodeName = isRemote ? "remote server" : "client";
-		HttpStatus httpStatusBadBody = isRemote ? HttpStatus.BAD_GATEWAY : HttpStatus.BAD_REQUEST;
-		
-		if (body == null) body = new byte[0];
-
-		if (headers.containsKey("content-length")) {
-			// they told us from the get-go how much data to
-			// expect, so just read exactly that many bytes
+		while (!framer.isComplete()) {
+			boolean canRewind = in.markSupported();
+			if (canRewind) in.mark(relayBuffer.length);
 			
-			String contentLengthStr = headers.get("content-length");
-			int contentLength = 0;
-			try {
-				contentLength = Integer.parseInt(contentLengthStr);
-			} catch (NumberFormatException nfe) {
-				logError("Couldn't parse content length from " + nodeName);
-				respondWithHtmlStatus(httpStatusBadBody);
+			int n = in.read(relayBuffer);
+			if (n < 0) {
+				if (framer.close()) return true;
+				logError("Connection closed before the whole body was sent");
 				return false;
 			}
 			
-			body = new byte[contentLength];
-			for (int i = 0; i < contentLength; i++) {
-				body[i] = (byte) in.read();
+			int bodyLength = framer.scan(relayBuffer, 0, n);
+			try {
+				out.write(relayBuffer, 0, bodyLength);
+				out.flush();
+			} catch (IOException e) {
+				relayWriteFailed = true;
+				throw e;
 			}
 			
-			
-		} else if (headers.containsKey("transfer-encoding")) {
-			// they're sending data in chunks, so read all the chunks
-			
-			// we do not support any transfer-encoding methods besides chunked
-			if (!headers.get("transfer-encoding").equalsIgnoreCase("chunked")) {
-				logError("Unknown transfer-encoding method from "
-						+ nodeName + ": " + headers.get("transfer-encoding"));
-				respondWithHtmlStatus(httpStatusBadBody);
-				return false;
+			// give up on capturing bodies too big to cache, and let anyone waiting on us go fetch it themselves
+			if (relayCapture != null) {
+				if (relayCapture.size() + bodyLength > ResponseCache.shared.getMaxEntrySize()) {
+					relayCapture = null;
+					if (flight != null) {
+						RequestCoalescer.shared.pass(flight);
+						flight = null;
+					}
+				} else {
+					relayCapture.write(relayBuffer, 0, bodyLength);
+				}
 			}
 			
-			String chunkHead;
-			while ((chunkHead = remoteIn.readLine()) != null) {
-				
-				if (chunkHead.equals("0") || chunkHead.equals("")) break;
-
-				// get the size of this chunk
-				int chunkSize = 0;
-				try {
-					chunkSize = Integer.parseInt(chunkHead.split(";")[0], 16);
-				} catch (NumberFormatException e) {
-					logError("Couldn't parse chunk size from " + nodeName);
-					respondWithHtmlStatus(httpStatusBadBody);
-					return false;
-				}
-				
-				// we need to expand the byte array to accommodate this chunk
-				int oldLength = body.length;
-				int newLength = oldLength + chunkSize;
-				
-				// add this chunk to the byte array
-				body = Arrays.copyOf(body, newLength);
-				for (int i = oldLength; i < newLength; i++) {
-					body[i] = (byte) in.read();
+			// put back anything past the end of the body for whoever reads next
+			if (bodyLength < n) {
+				if (canRewind) {
+					in.reset();
+					long skipped = 0;
+					while (skipped < bodyLength) {
+						skipped += in.skip(bodyLength - skipped);
+					}
+				} else {
+					relayLostBytes = true;
 				}
-				
-				in.skipBytes(2); // skip the CRLF at the end of the chunk
 			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Streams the client's request body to the remote server as it arrives,
+	 * so it never has to fit in memory, in whatever framing the client used
+	 * 
+	 * @return true if the whole body was sent, or the remote server stopped
+	 * taking it partway (clientBodyPending is still set then); false if the
+	 * client hung up or went quiet partway through (and has been answered, if it can be)
+	 */
+	private boolean sendClientBody() throws IOException {
+		boolean complete;
+		try {
+			complete = relayBody(clientIn, remoteOut, requestFramer);
+		} catch (SocketTimeoutException e) {
+			// (only reads time out, so it's the client that's gone quiet)
+			logError("Client took too long to send its request body");
+			closeRemote();
+			respondWithHtmlStatus(HttpStatus.REQUEST_TIMEOUT);
+			return false;
+		} catch (IOException e) {
+			if (!relayWriteFailed) throw e;
 			
-			headers.remove("transfer-encoding");
-			headers.put("content-length", String.valueOf(body.length));
-			
-			// we've reached the end of the chunks, so add footers to our headers array if any exist
-			if (!readHeaders(isRemote)) return false;
-			
-			
-		} else {
-			// no content received (or at least none we know how to read)
+			// most likely the remote server has already answered (say, with a 413
+			// or 401) and closed; the rest of the body is left unread
+			logError("Remote server stopped taking the request body: " + e.getMessage());
+			return true;
+		}
+		if (!complete) {
+			closeRemote();
+			keepAlive = false;
+			return false;
+		}
+		clientBodyPending = false;
+		return true;
+	}
+	
+	/**
+	 * Tells a client that asked with "Expect: 100-continue" to go ahead and send its body
+	 */
+	private void sendContinue() throws IOException {
+		logConnection(Node.PROXY, Node.CLIENT, HttpStatus.CONTINUE.statusLine);
+		clientOut.writeBytes(HttpStatus.CONTINUE.statusLine + "\r\n\r\n");
+		clientOut.flush();
+	}
+	
+	/**
+	 * Reads the head of the remote server's final response, skipping any
+	 * interim (1xx) responses before it, like a 100 Continue that came too
+	 * late to matter
+	 * 
+	 * @param stopAtContinue if true, a 100 Continue is returned too, for
+	 * requests still waiting to send their body
+	 * @return true if a head was read; false if the stream ended first
+	 */
+	private boolean readResponseHead(boolean stopAtContinue) throws IOException {
+		while (readHead(remoteIn, remoteParser)) {
+			if (remoteParser.getError() != null) return true;
+			int statusCode = remoteParser.getStatusCode();
+			if (stopAtContinue && statusCode == HttpStatus.CONTINUE.code) return true;
+			if (statusCode < 100 || statusCode >= 200 || statusCode == HttpStatus.SWITCH_PROTOCOLS.code) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Passes the remote server's status line and headers along to the client
+	 */
+	public void sendRemoteResponseHead(String remoteResponseLine) throws IOException {
+		responseStatus = remoteParser.getStatusCode();
+		beginRelayedResponse(remoteResponseLine, remoteHeaders);
+		if (Utils.ENABLE_CACHE && ResponseCache.isCacheableMethod(method)) {
+			sendHeader("X-Cache", "MISS");
+		}
+		sendServerTiming();
+		endHeader();
+	}
+	
+	/**
+	 * Sends a response that the cache had stored to the client
+	 */
+	public void respondFromCache(CachedResponse cached) throws IOException {
+		respondFromCache(cached, "HIT");
+	}
+	
+	/**
+	 * Sends a response that the cache had stored to the client
+	 * 
+	 * @param cacheStatus how the cache came by it, for the X-Cache header
+	 * ("HIT", "STALE" or "REVALIDATED")
+	 */
+	public void respondFromCache(CachedResponse cached, String cacheStatus) throws IOException {
+		log("Serving cached response for " + cached.key);
+		
+		try {
+			responseStatus = cached.statusCode;
+			beginRelayedResponse(cached.statusLine, cached.headers);
+			sendHeader("Age", cached.getCurrentAge(System.currentTimeMillis()) / 1000);
+			sendHeader("X-Cache", cacheStatus);
+			sendServerTiming();
+			endHeader();
 			
-//			// they're sending data using some voodoo magic we don't understand
-//			logError("Unknown data tranfer method from " + nodeName);
-//			respondWithHtmlStatus(httpStatusBadBody);
-//			return false;
+			if (!method.equalsIgnoreCase("HEAD")) {
+				sendCachedBody(cached);
+			}
+			endResponse();
+		} finally {
+			cached.release();
+		}
+	}
+	
+	/**
+	 * Sends a cached response's body to the client, from memory, or for one in
+	 * the disk cache, straight from its segment file into the client's socket
+	 */
+	public void sendCachedBody(CachedResponse cached) throws IOException {
+		if (cached.body != null) {
+			clientOut.write(cached.body);
+			return;
 		}
 		
-		if (isRemote) {
-			remoteHeaders = headers;
-			remoteBody = body;
-			remoteIn = in;
+		// the headers have to go out first
+		clientOut.flush();
+		if (clientSocket.getChannel() != null) {
+			cached.transferBody(clientSocket.getChannel());
+			clientBytesOut.count += cached.bodyLength;
 		} else {
-			clientHeaders = headers;
-			clientBody = body;
-			clientIn = in;
+			cached.transferBody(Channels.newChannel(clientOut));
+		}
+	}
+	
+	/**
+	 * Tells the client how long each phase of getting its response has taken, if we're set to
+	 */
+	public void sendServerTiming() throws IOException {
+		if (Utils.SERVER_TIMING) {
+			sendHeader("Server-Timing", timing.toServerTiming(System.nanoTime() - requestStart));
 		}
+	}
+	
+	/**
+	 * Starts a response to the client out of a remote server's status line
+	 * and headers (leaving the header block open for more to be added)
+	 */
+	public void beginRelayedResponse(String remoteResponseLine, Hashtable<String,String> headers) throws IOException {
 		
-		return true;
+		// we speak http/1.1 to the client, whatever the remote server speaks to us
+		String responseLine = Utils.HTTP_VERSION + remoteResponseLine.substring(remoteResponseLine.indexOf(' '));
+		
+		logConnection(Node.PROXY, Node.CLIENT, responseLine);
+		if (clientBodyPending) keepAlive = false; // we can't tell where the next request starts
+		clientHead = HeadWriter.get().append(responseLine).headers(headers).connection(keepAlive);
+	}
+	
+	/**
+	 * Methods whose requests carry a body
+	 */
+	static boolean hasRequestBody(String method) {
+		return method.equalsIgnoreCase("POST") || method.equalsIgnoreCase("PUT") || method.equalsIgnoreCase("PATCH");
+	}
+	
+	/**
+	 * Headers that only apply to a single connection, and so don't get passed along
+	 */
+	static boolean isHopByHopHeader(String key) {
+		return key.equals("connection") || key.equals("keep-alive") || key.equals("proxy-connection");
+	}
+	
+	// some headers should be copied from the C->P request to the P->R request
+	static final String[] COPY_HEADERS = {
+			"Accept", 
+			"Accept-Charset", 
+			"Accept-Encoding", 
+			"Accept-Language", 
+			"Accept-Ranges",
+			"Authorization",
+			"Cache-Control",
+			"Content-Type",
+			"Cookie",
+			"DNT", //do not track flag
+			"From",
+			"Referer",
+			"User-Agent"
+			};
+	static final String[] COPY_HEADER_KEYS = new String[COPY_HEADERS.length]; // lowercase, like the header tables
+	static {
+		for (int i = 0; i < COPY_HEADERS.length; i++) {
+			COPY_HEADER_KEYS[i] = COPY_HEADERS[i].toLowerCase();
+		}
+	}
+	
+	// Via header to identify ourselves as a proxy
+	static final String VIA = "1.1 " + Utils.SERVER_NAME;
+	
+	/**
+	 * Writes the header lines of a P->R request out of the C->P request's headers
+	 * (everything except the request line, the body framing, and the final blank line)
+	 */
+	static void writeRemoteHeaders(HeadWriter head, String remoteHostname, Hashtable<String,String> clientHeaders) {
+		
+		// Host header required for http/1.1
+		head.header("Host", remoteHostname);
+		
+		String via = clientHeaders.get("Via");
+		head.header("Via", (via != null) ? (via + ", " + VIA) : VIA);
+		
+		// (multiple headers of the same name are separated by CRLFs,
+		// which the writer splits back out into separate lines)
+		for (int i = 0; i < COPY_HEADERS.length; i++) {
+			String value = clientHeaders.get(COPY_HEADER_KEYS[i]);
+			if (value != null) head.header(COPY_HEADERS[i], value);
+		}
+	}
+	
+	/**
+	 * Tells one of our backends who the client it's really serving is, in an X-Forwarded-For header
+	 */
+	static void writeForwardedFor(HeadWriter head, InetAddress clientAddress, Hashtable<String,String> clientHeaders) {
+		String address = (clientAddress != null) ? clientAddress.getHostAddress() : "unknown";
+		String forwardedFor = clientHeaders.get("x-forwarded-for");
+		head.header("X-Forwarded-For", (forwardedFor != null) ? (forwardedFor + ", " + address) : address);
 	}
 	
 	
@@ -639,133 +998,395 @@ public class RequestWorker extends Thread {
 	 * Begins to send the header block to the client
 	 */
 	public void beginResponse(HttpStatus status) throws IOException {
-		String requestLine = Utils.HTTP_VERSION + " " + status.getFullName();
-		
-		logConnection(Node.PROXY, Node.CLIENT, requestLine);
-		clientOut.writeBytes(requestLine);
-		sendHeader("Server", Utils.SERVER_NAME);
-		sendHeader("Date", Utils.getRFC1123Date());
+		logConnection(Node.PROXY, Node.CLIENT, status.statusLine);
+		responseStatus = status.code;
+		if (clientBodyPending) keepAlive = false; // we can't tell where the next request starts
+		clientHead = HeadWriter.get().beginResponse(status, keepAlive);
 	}
 	
 	/**
-	 * Convenience method for sending an HTTP header to the client
+	 * Convenience method for adding an HTTP header to the response to the client
 	 */
 	public void sendHeader(String key, String value) throws IOException {
-		clientOut.writeBytes(Utils.httpHeader(key, value));
+		clientHead.header(key, value);
+	}
+	
+	public void sendHeader(String key, long value) throws IOException {
+		clientHead.header(key, value);
 	}
 	
 	/**
-	 * Finishes the header block being sent to the client
+	 * Finishes the header block and sends it to the client
 	 */
 	public void endHeader() throws IOException {
-		clientOut.writeBytes(Utils.HTTP_HEADER_END);
+		clientHead.end().writeTo(clientOut);
+		clientHead = null;
 	}
 	
 	/**
-	 * Closes up all open connections for this request
+	 * Finishes the header block and sends it to the client along with the
+	 * whole body, in a single (gathering) write when the socket allows it
+	 */
+	public void endHeader(byte[] body) throws IOException {
+		clientHead.end();
+		if (clientSocket.getChannel() != null) {
+			clientOut.flush();
+			clientHead.writeTo(clientSocket.getChannel(), body);
+			clientBytesOut.count += clientHead.length() + body.length;
+		} else {
+			clientHead.writeTo(clientOut);
+			clientOut.write(body);
+		}
+		clientHead = null;
+	}
+	
+	/**
+	 * Finishes up the response to the client, closing the client connection
+	 * unless it's being kept alive for another request
 	 */
 	public void endResponse() throws IOException {
-		clientOut.close();
-		if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
-		if (remoteSocket != null && !remoteSocket.isClosed()) remoteSocket.close();
+		clientOut.flush();
+		closeRemote();
+		if (!keepAlive && !clientSocket.isClosed()) clientSocket.close();
 	}
 	
 	/**
-	 * Responds to client with some html text
+	 * Closes the connection to the remote server, if there is one
 	 */
-	public void respondWithHtml(HttpStatus status, String body) throws IOException {
-		beginResponse(status);
-		sendHeader("Content-Length", String.valueOf(body.length()));
-		sendHeader("Content-Type", "text/html");
-		endHeader();
-		writeClientBody(body);
-		endResponse();
+	public void closeRemote() {
+		releaseRemote(false);
 	}
 	
 	/**
-	 * Responds to client with simple HTML page with a title and a message
+	 * Hands the connection to the remote server back to the pool, if there is one
+	 * 
+	 * @param reusable can another request be sent over this connection?
 	 */
-	public void respondWithMessage(HttpStatus status, String title, String message) throws IOException {
-		respondWithHtml(status, Utils.getSimpleHtmlMessage(title, message));
+	public void releaseRemote(boolean reusable) {
+		if (remoteConnection != null) {
+			ConnectionPool.shared.release(remoteConnection, reusable);
+		}
+		remoteConnection = null;
+		remoteSocket = null;
 	}
 	
 	/**
-	 * Responds to client with generic message for given HTTP status
+	 * Will the remote server take another request on the connection it just responded over?
 	 */
-	public void respondWithHtmlStatus(HttpStatus status) throws IOException {
-		String body = Utils.getSimpleHtmlMessage(status.getFullName(), status.description);
-		respondWithHtml(status, body);
+	public boolean remoteAllowsReuse() {
+		// it may still be waiting on a body it turned down before we sent it
+		if (clientBodyPending) return false;
+		
+		int connection = remoteParser.indexOf("connection");
+		
+		// http/1.0 connections close unless the remote server says otherwise
+		if (remoteParser.isVersion("HTTP/1.0")) {
+			return connection >= 0 && remoteParser.valueHasToken(connection, "keep-alive");
+		}
+		return connection < 0 || !remoteParser.valueHasToken(connection, "close");
 	}
-
+	
 	/**
-	 * Responds to client that tried to use a method that isn't allowed
+	 * Sends a response generated by the proxy itself to the client
 	 */
-	public void respondMethodNotAllowed(String allowedMethods) throws IOException {
-		HttpStatus status = HttpStatus.METHOD_NOT_ALLOWED;
-		String body = Utils.getSimpleHtmlMessage(status.getFullName(), status.description);
-		beginResponse(status);
-		sendHeader("Content-Length", String.valueOf(body.length()));
-		sendHeader("Content-Type", "text/html");
-		sendHeader("Allow", allowedMethods);
-		endHeader();
-		writeClientBody(body);
+	public void respond(InternalResponse response) throws IOException {
+		beginResponse(response.status);
+		for (Map.Entry<String,String> header : response.headers.entrySet()) {
+			sendHeader(header.getKey(), header.getValue());
+		}
+		
+		if (!response.hasBody()) {
+			endHeader();
+			
+		} else if (response.file != null) {
+			FileChannel fileChannel = new FileInputStream(response.file).getChannel();
+			try {
+				// we know the file's length up front, so there's no need for chunked encoding
+				long length = fileChannel.size();
+				sendHeader("Content-Length", length);
+				endHeader();
+				if (!method.equalsIgnoreCase("HEAD")) {
+					sendFile(fileChannel, length);
+				}
+			} finally {
+				fileChannel.close();
+			}
+			
+		} else {
+			sendHeader("Content-Length", response.body.length);
+			if (method.equalsIgnoreCase("HEAD")) {
+				endHeader();
+			} else {
+				endHeader(response.body);
+			}
+		}
 		endResponse();
 	}
-
+	
 	/**
-	 * Tells client to look somewhere else for the resource they requested
+	 * Sends the contents of a file to the client, letting the OS copy it
+	 * straight to the socket (sendfile) when it can
 	 */
-	public void respondRedirect(String location) throws IOException {
-		HttpStatus status = HttpStatus.MOVED_PERMANENTLY;
-		String body = Utils.getSimpleHtmlMessage(status.getFullName(), status.description);
-		beginResponse(status);
-		sendHeader("Content-Length", String.valueOf(body.length()));
-		sendHeader("Content-Type", "text/html");
-		sendHeader("Location", location);
-		endHeader();
-		writeClientBody(body);
-		endResponse();
+	public void sendFile(FileChannel file, long length) throws IOException {
+		// the headers have to go out first
+		clientOut.flush();
+		WritableByteChannel target = (clientSocket.getChannel() != null) ?
+				clientSocket.getChannel() : Channels.newChannel(clientOut);
+		
+		long position = 0;
+		while (position < length) {
+			long n = file.transferTo(position, length - position, target);
+			if (n <= 0) {
+				// we already promised the client this many bytes, so all we can do is hang up
+				logError("File got shorter while it was being sent");
+				keepAlive = false;
+				return;
+			}
+			position += n;
+			if (target == clientSocket.getChannel()) clientBytesOut.count += n;
+		}
 	}
-
-	public void writeClientBody(String body) throws IOException {
-		if (!method.equalsIgnoreCase("HEAD")) clientOut.writeBytes(body);
+	
+	/**
+	 * Adds the request that was just served (if one was) to the metrics
+	 */
+	public void recordRequest() {
+		// whatever became of the request, don't leave anyone waiting on it
+		landFlight(false);
+		
+		// let the backend's balancer know it's done, and whether it went well
+		if (backend != null) {
+			backend.finish(remoteFailed || responseStatus == 0 || responseStatus >= 500);
+			backend = null;
+		}
+		
+		if (stale != null) {
+			stale.release();
+			stale = null;
+		}
+		
+		// give back the request's slot, letting the limiter know how it went
+		if (admittedAt != 0) {
+			AdmissionControl.shared.release(System.nanoTime() - admittedAt, responseStatus == 0 || responseStatus >= 500);
+			admittedAt = 0;
+		}
+		
+		if (!requestStarted) return;
+		requestStarted = false;
+		
+		long nanos = System.nanoTime() - requestStart;
+		Metrics.shared.recordRequest(method, responseStatus, nanos,
+				clientBytesIn.count - bytesInMark, clientBytesOut.count - bytesOutMark, timing);
+		bytesInMark = clientBytesIn.count;
+		bytesOutMark = clientBytesOut.count;
+		
+		if (Utils.LOG_TIMINGS && !timing.isEmpty()) {
+			log("Timing: status=" + responseStatus + " " + timing.toLogField(nanos));
+		}
 	}
 	
-	public void writeClientBody(byte[] body) throws IOException {
-		if (!method.equalsIgnoreCase("HEAD")) clientOut.write(body);
+	/**
+	 * Waits for another request's fetch of the same response to land, and
+	 * answers from what it stored in the cache
+	 * 
+	 * @return true if the client got a response, or false if we'll have to fetch it ourselves
+	 */
+	private boolean serveCollapsed(RequestCoalescer.Flight joined, String requestUrl) throws IOException {
+		if (joined.await(Utils.COLLAPSE_TIMEOUT)) {
+			CachedResponse cached = ResponseCache.shared.lookup(method, requestUrl, clientHeaders);
+			if (cached != null) {
+				RequestCoalescer.shared.hits.incrementAndGet();
+				respondFromCache(cached);
+				return true;
+			}
+		}
+		RequestCoalescer.shared.fallbacks.incrementAndGet();
+		return false;
 	}
-
-	public void writeRemoteBody(String body) throws IOException {
-		remoteOut.writeBytes(body);
+	
+	/**
+	 * Wakes up the requests waiting on the fetch we're leading, if we are
+	 * 
+	 * @param stored did the response go into the cache for them?
+	 */
+	private void landFlight(boolean stored) {
+		if (flight == null) return;
+		RequestCoalescer.shared.land(flight, stored);
+		flight = null;
+	}
+	
+	/**
+	 * Adds the validators of a stored response to a request for it, so the
+	 * remote server can answer with a 304 if it hasn't changed
+	 */
+	static void writeValidators(HeadWriter head, CachedResponse cached) {
+		String etag = cached.headers.get("etag");
+		if (etag != null) head.header("If-None-Match", etag);
+		String lastModified = cached.headers.get("last-modified");
+		if (lastModified != null) head.header("If-Modified-Since", lastModified);
 	}
 	
-	public void writeRemoteBody(byte[] body) throws IOException {
-		remoteOut.write(body);
+	/**
+	 * Answers with an error status for a remote server that failed us, or
+	 * with a stale copy of the response if the remote server allows it
+	 */
+	private void respondWithGatewayError(HttpStatus status) throws IOException {
+		if (!serveStaleOnError()) respondWithHtmlStatus(status);
 	}
 	
+	/**
+	 * Serves the stale copy of the response we have, if the remote server lets
+	 * us when it's failing (stale-if-error) and the client will take it
+	 * 
+	 * @return true if it was sent
+	 */
+	private boolean serveStaleOnError() throws IOException {
+		if (stale == null || responseStatus != 0 || !ResponseCache.allowsStale(clientHeaders)
+				|| !stale.canServeStale(System.currentTimeMillis(), stale.staleIfError)) {
+			return false;
+		}
+		logError("Serving stale response instead");
+		remoteFailed = true;
+		closeRemote();
+		landFlight(false);
+		ResponseCache.shared.staleHits.incrementAndGet();
+		CachedResponse served = stale;
+		stale = null;
+		respondFromCache(served, "STALE");
+		return true;
+	}
 	
+	/**
+	 * Has a fresh copy of a stale response fetched in the background, on a
+	 * worker with no client of its own, while we serve the stale one
+	 */
+	private void revalidateInBackground(final String requestUrl, final String remoteHostname,
+			final int remotePort, final String remotePath) {
+		
+		// (this worker moves on to other requests in the meantime)
+		final Hashtable<String,String> headers = new Hashtable<String,String>(clientHeaders);
+		final String requestMethod = method;
+		final String requestHost = host;
+		final ReverseProxy.Group requestBackends = backends;
+		final int workerId = id;
+		CacheRevalidator.shared.revalidate(stale.key, new Runnable() {
+			public void run() {
+				RequestWorker worker = new RequestWorker(workerId);
+				worker.method = requestMethod;
+				worker.clientHeaders = headers;
+				worker.host = requestHost;
+				worker.backends = requestBackends;
+				worker.revalidate(requestUrl, remoteHostname, remotePort, remotePath);
+			}
+		});
+	}
 	
 	/**
-	 * Logs a non-error message about this request
+	 * Checks a stale response with the remote server, with no client waiting
+	 * on the result: a 304 freshens the stored copy, and a new response that
+	 * can be stored replaces it
 	 */
-	public void log(String message) {
-		if (Utils.LOG_REQUEST_MESSAGES) log(message, false);
+	void revalidate(String requestUrl, String remoteHostname, int remotePort, String remotePath) {
+		CachedResponse stored = ResponseCache.shared.lookupStale(method, requestUrl, clientHeaders);
+		if (backends != null) {
+			backend = backends.pick();
+			remoteHostname = backend.hostname;
+			remotePort = backend.port;
+		}
+		try {
+			String remoteRequestLine = method + " " + remotePath + " " + Utils.HTTP_VERSION;
+			log("Revalidating in the background: " + remoteRequestLine);
+			HeadWriter remoteReq = remoteHead.reset().append(remoteRequestLine);
+			writeRemoteHeaders(remoteReq, (backends != null) ? host : remoteHostname, clientHeaders);
+			if (stored != null) writeValidators(remoteReq, stored);
+			remoteReq.end();
+			
+			remoteConnection = ConnectionPool.shared.checkout(remoteHostname, remotePort, null);
+			remoteSocket = remoteConnection.socket;
+			remoteIn = remoteConnection.in;
+			remoteOut = remoteConnection.out;
+			remoteSocket.setSoTimeout(Utils.RESPONSE_TIMEOUT);
+			
+			long requestTime = System.currentTimeMillis();
+			remoteReq.writeTo(remoteOut);
+			remoteOut.flush();
+			if (!readResponseHead(false) || remoteParser.getError() != null) {
+				logError("No usable response to revalidation");
+				return;
+			}
+			long responseTime = System.currentTimeMillis();
+			remoteSocket.setSoTimeout(Utils.BODY_TIMEOUT);
+			
+			int statusCode = remoteParser.getStatusCode();
+			responseStatus = statusCode;
+			remoteHeaders = remoteParser.copyHeadersTo(new Hashtable<String,String>());
+			if (statusCode == 304 && stored != null && stored.isRevalidatable()) {
+				ResponseCache.shared.freshen(stored, remoteHeaders, requestTime, responseTime);
+				releaseRemote(remoteAllowsReuse());
+				return;
+			}
+			
+			// anything we can't store leaves the stale copy where it is
+			BodyFramer framer = BodyFramer.forResponse(method, statusCode, remoteHeaders);
+			if (framer == null || framer.framing == BodyFramer.Framing.UNTIL_CLOSE
+					|| !ResponseCache.shared.isStorable(method, statusCode, clientHeaders, remoteHeaders)) {
+				return;
+			}
+			relayCapture = new ByteArrayOutputStream();
+			boolean complete = relayBody(remoteIn, DISCARD, framer);
+			if (complete && relayCapture != null) {
+				ResponseCache.shared.store(method, requestUrl, clientHeaders, remoteParser.getStartLine(), statusCode,
+						remoteHeaders, relayCapture.toByteArray(), requestTime, responseTime);
+			}
+			releaseRemote(complete && !relayLostBytes && remoteAllowsReuse());
+			
+		} catch (IOException e) {
+			logError("Revalidation failed: " + e.getMessage());
+		} finally {
+			relayCapture = null;
+			closeRemote();
+			if (stored != null) stored.release();
+			if (backend != null) backend.finish(responseStatus == 0 || responseStatus >= 500);
+		}
 	}
 	
+	// swallows bodies that only need to go in the cache
+	private static final OutputStream DISCARD = new OutputStream() {
+		public void write(int b) {}
+		public void write(byte[] b, int off, int len) {}
+	};
+	
 	/**
-	 * Helper method for other error logging methods (shouldn't be called directly)
+	 * Sends the ready-made 503 for requests shed by AdmissionControl, and closes the connection
 	 */
-	public void logError(String message) {
-		if (Utils.LOG_REQUEST_ERRORS) log(message, true);
+	private void respondOverloaded() throws IOException {
+		HttpStatus status = HttpStatus.SERVICE_UNAVAILABLE;
+		logConnection(Node.PROXY, Node.CLIENT, status.statusLine);
+		responseStatus = status.code;
+		keepAlive = false;
+		clientOut.write(AdmissionControl.OVERLOADED_RESPONSE);
+		clientOut.flush();
+	}
+	
+	/**
+	 * Responds to client with generic message for given HTTP status
+	 */
+	public void respondWithHtmlStatus(HttpStatus status) throws IOException {
+		respond(InternalResponse.forStatus(status));
 	}
 	
 	/**
-	 * Helper method for all log methods (shouldn't be called directly)
+	 * Logs a non-error message about this request
 	 */
-	private void log(String message, boolean isError) {
-		message = id + "\t| " + message;
-		if (!isError) Utils.log(message);
-		else Utils.logError(message);
+	public void log(String message) {
+		Utils.logRequest(id, message);
+	}
+	
+	/**
+	 * Logs an error message about this request
+	 */
+	public void logError(String message) {
+		Utils.logRequestError(id, message);
 	}
 	
 	/**
@@ -776,29 +1397,6 @@ public class RequestWorker extends Thread {
 	 * @param message first line of request
 	 */
 	public void logConnection(Node from, Node to, String message) {
-		String bullet = "";
-		if ((from != Node.PROXY && to != Node.PROXY) || to == from) {
-			bullet = "???????";
-		} else {
-			if (from == Node.CLIENT || to == Node.CLIENT) {
-				if (!Utils.LOG_REQUEST_CLIENT_CONNECTIONS) return;
-				bullet += "C";
-				if (to == Node.CLIENT) bullet += "<-";
-				else bullet += "->";
-			} else {
-				bullet += "   ";
-			}
-			bullet += "P";
-			if (from == Node.REMOTE || to == Node.REMOTE) {
-				if (!Utils.LOG_REQUEST_REMOTE_CONNECTIONS) return;
-				if (from == Node.REMOTE) bullet += "<-";
-				else bullet += "->";
-				bullet += "R";
-			} else {
-				bullet += "   ";
-			}
-		}
-		
-		log(bullet + " | " + message);
+		Utils.logConnection(id, from, to, message);
 	}
 }
@@ -0,0 +1,476 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An in-memory cache of responses from remote servers, shared by all
+ * RequestWorkers. Entries are keyed on method, absolute URL, and the request
+ * headers named by the response's Vary header.
+ * 
+ * The cache is split into stripes that each have their own lock and their
+ * own share of the byte budget, so workers only contend when their URLs land
+ * on the same stripe. Each stripe evicts with a segmented LRU policy: new
+ * entries go on probation, and only entries that get hit again are promoted
+ * to the protected segment, so one-off requests can't push out popular ones.
+ */
+public class ResponseCache {
+	
+	// the cache used by every RequestWorker
+	static final ResponseCache shared = new ResponseCache(Utils.CACHE_SIZE, Utils.CACHE_STRIPES,
+			Utils.ENABLE_DISK_CACHE ? DiskCache.open() : null);
+	
+	// share of each stripe's budget set aside for entries that have been hit more than once
+	final static double PROTECTED_SHARE = 0.8;
+	
+	private final Stripe[] stripes;
+	
+	// bigger, slower tier that responses fall back to when they're not in memory (null if disabled)
+	final DiskCache disk;
+	
+	// which request headers each URL's responses vary on, keyed by method and URL
+	private final ConcurrentHashMap<String,String[]> varyHeaders = new ConcurrentHashMap<String,String[]>();
+	
+	// statistics
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong stores = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+	final AtomicLong revalidated = new AtomicLong(); // stale responses the remote server said were still good
+	final AtomicLong staleHits = new AtomicLong(); // stale responses served while revalidating, or because the remote failed
+	final AtomicLong invalidations = new AtomicLong(); // URLs dropped because an unsafe request may have changed them
+	
+	public ResponseCache(long maxBytes, int stripeCount, DiskCache disk) {
+		stripeCount = Math.max(1, stripeCount);
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe(maxBytes / stripeCount);
+		}
+		
+		// pick up what the disk cache remembers from before a restart
+		this.disk = disk;
+		if (disk != null) varyHeaders.putAll(disk.varyHeaders);
+	}
+	
+	/**
+	 * Looks for a stored response that can answer a request, in memory and
+	 * then on disk. Responses from disk must be released once they're sent.
+	 * 
+	 * @param method HTTP method of the request
+	 * @param url absolute URL requested
+	 * @param requestHeaders request headers, keyed by lowercase name
+	 * @return a fresh response, or null if there isn't one (or the request wants us to check with the remote)
+	 */
+	public CachedResponse lookup(String method, String url, Hashtable<String,String> requestHeaders) {
+		if (!isCacheableMethod(method)) return null;
+		
+		Hashtable<String,String> cacheControl = CachedResponse.parseCacheControl(requestHeaders.get("cache-control"));
+		String pragma = requestHeaders.get("pragma");
+		if (cacheControl.containsKey("no-cache") || (pragma != null && pragma.toLowerCase().contains("no-cache"))) {
+			misses.incrementAndGet();
+			return null;
+		}
+		
+		String key = getKey(method, url, requestHeaders);
+		CachedResponse cached = getStripe(key).get(key);
+		if (cached == null && disk != null) cached = disk.lookup(key);
+		
+		long now = System.currentTimeMillis();
+		long maxAge = CachedResponse.parseSeconds(cacheControl.get("max-age"));
+		if (cached == null || !cached.isFresh(now)
+				|| (maxAge >= 0 && cached.getCurrentAge(now) > maxAge * 1000)) {
+			if (cached != null) cached.release();
+			misses.incrementAndGet();
+			return null;
+		}
+		
+		hits.incrementAndGet();
+		return cached;
+	}
+	
+	/**
+	 * Looks for a stored response to a GET whatever its freshness, for a
+	 * request that missed in lookup(): it may still be revalidated with the
+	 * remote server, or served stale. Doesn't count as a hit or miss.
+	 * Responses from disk must be released.
+	 * 
+	 * @return the response, or null if there isn't one
+	 */
+	public CachedResponse lookupStale(String method, String url, Hashtable<String,String> requestHeaders) {
+		if (!method.equalsIgnoreCase("GET")) return null;
+		Hashtable<String,String> cacheControl = CachedResponse.parseCacheControl(requestHeaders.get("cache-control"));
+		if (cacheControl.containsKey("no-store")) return null;
+		
+		String key = getKey(method, url, requestHeaders);
+		CachedResponse cached = getStripe(key).get(key);
+		if (cached == null && disk != null) cached = disk.lookup(key);
+		return cached;
+	}
+	
+	/**
+	 * Will a request take a stale response, if the remote server allows it?
+	 * Not if it asked for a fresh one with no-cache or max-age.
+	 */
+	static boolean allowsStale(Hashtable<String,String> requestHeaders) {
+		Hashtable<String,String> cacheControl = CachedResponse.parseCacheControl(requestHeaders.get("cache-control"));
+		String pragma = requestHeaders.get("pragma");
+		return !cacheControl.containsKey("no-cache") && !cacheControl.containsKey("max-age")
+				&& !(pragma != null && pragma.toLowerCase().contains("no-cache"));
+	}
+	
+	/**
+	 * Makes a stored response fresh again after the remote server answered
+	 * our conditional request for it with a 304, updating its headers with
+	 * the ones that came with the 304
+	 * 
+	 * @param stale the stored response we revalidated
+	 * @param notModifiedHeaders headers of the 304, keyed by lowercase name
+	 * @return the freshened response, which replaces the stale one
+	 */
+	public CachedResponse freshen(CachedResponse stale, Hashtable<String,String> notModifiedHeaders,
+			long requestTime, long responseTime) throws IOException {
+		
+		Hashtable<String,String> headers = new Hashtable<String,String>(stale.headers);
+		for (Map.Entry<String,String> header : notModifiedHeaders.entrySet()) {
+			String name = header.getKey();
+			
+			// a 304 says nothing about the stored body
+			if (name.equals("content-length") || name.equals("transfer-encoding")
+					|| name.equals("content-encoding") || name.equals("content-range")
+					|| RequestWorker.isHopByHopHeader(name)) {
+				continue;
+			}
+			headers.put(name, header.getValue());
+		}
+		
+		CachedResponse cached = new CachedResponse(stale.key, stale.statusLine, stale.statusCode, headers,
+				stale.readBody(), requestTime, responseTime);
+		put(cached);
+		revalidated.incrementAndGet();
+		return cached;
+	}
+	
+	/**
+	 * Can a response be stored, going by the rules for shared caches?
+	 * 
+	 * @param method HTTP method of the request
+	 * @param statusCode status of the response
+	 * @param requestHeaders request headers, keyed by lowercase name
+	 * @param responseHeaders response headers, keyed by lowercase name
+	 */
+	public boolean isStorable(String method, int statusCode, Hashtable<String,String> requestHeaders,
+			Hashtable<String,String> responseHeaders) {
+		
+		// we don't store HEAD responses, but GET responses can answer HEAD requests
+		if (!method.equalsIgnoreCase("GET")) return false;
+		if (statusCode != 200 && statusCode != 203 && statusCode != 301 && statusCode != 404 && statusCode != 410) {
+			return false;
+		}
+		
+		Hashtable<String,String> requestCacheControl = CachedResponse.parseCacheControl(requestHeaders.get("cache-control"));
+		Hashtable<String,String> cacheControl = CachedResponse.parseCacheControl(responseHeaders.get("cache-control"));
+		if (requestCacheControl.containsKey("no-store") || cacheControl.containsKey("no-store")
+				|| cacheControl.containsKey("private") || cacheControl.containsKey("no-cache")) {
+			return false;
+		}
+		
+		// responses to authorized requests are only shared if the remote explicitly allows it
+		if (requestHeaders.containsKey("authorization")
+				&& !cacheControl.containsKey("public") && !cacheControl.containsKey("s-maxage")) {
+			return false;
+		}
+		
+		// don't hand out one client's cookies to another
+		if (responseHeaders.containsKey("set-cookie")) return false;
+		
+		String vary = responseHeaders.get("vary");
+		if (vary != null && vary.contains("*")) return false;
+		
+		// too big to be worth it?
+		String contentLength = responseHeaders.get("content-length");
+		if (contentLength != null && CachedResponse.parseSeconds(contentLength) > getMaxEntrySize()) {
+			return false;
+		}
+		
+		return CachedResponse.getFreshnessLifetime(responseHeaders) > 0;
+	}
+	
+	/**
+	 * Stores a response, in memory if it's small enough and on disk if there's a disk cache
+	 * 
+	 * @param method HTTP method of the request
+	 * @param url absolute URL requested
+	 * @param requestHeaders request headers, keyed by lowercase name
+	 */
+	public void store(String method, String url, Hashtable<String,String> requestHeaders, String statusLine,
+			int statusCode, Hashtable<String,String> responseHeaders, byte[] body, long requestTime, long responseTime) {
+		
+		// remember which request headers to key on for this URL
+		String vary = responseHeaders.get("vary");
+		String primaryKey = getPrimaryKey(method, url);
+		if (vary == null) {
+			varyHeaders.remove(primaryKey);
+		} else {
+			varyHeaders.put(primaryKey, parseVary(vary));
+		}
+		
+		String key = getKey(method, url, requestHeaders);
+		put(new CachedResponse(key, statusLine, statusCode, responseHeaders, body, requestTime, responseTime));
+		stores.incrementAndGet();
+	}
+	
+	/**
+	 * Puts a response (with its body in memory) in whichever tiers it fits in
+	 */
+	private void put(CachedResponse cached) {
+		if (cached.getSize() <= Utils.CACHE_MAX_ENTRY_SIZE) {
+			getStripe(cached.key).put(cached.key, cached);
+		} else {
+			getStripe(cached.key).remove(cached.key); // don't leave an older copy behind
+		}
+		if (disk != null && cached.bodyLength <= Utils.DISK_CACHE_MAX_ENTRY_SIZE) {
+			disk.store(cached);
+		}
+	}
+	
+	/**
+	 * Drops what's stored for a URL, and for the URLs its Location and
+	 * Content-Location headers point at, once an unsafe request to it has
+	 * succeeded (RFC 7234 section 4.4). Errors leave everything in place.
+	 * 
+	 * @param method HTTP method of the request
+	 * @param url absolute URL requested
+	 * @param statusCode status of the final response
+	 * @param responseHeaders response headers, keyed by lowercase name
+	 */
+	public void invalidateAfter(String method, String url, int statusCode, Hashtable<String,String> responseHeaders) {
+		if (isSafeMethod(method) || statusCode < 200 || statusCode >= 400) return;
+		invalidate(url);
+		
+		// only on the same host, so one server can't clear out another's responses
+		for (String name : new String[] {"location", "content-location"}) {
+			String location = responseHeaders.get(name);
+			if (location == null) continue;
+			try {
+				URI base = new URI(url);
+				URI target = base.resolve(new URI(location.trim()));
+				if (base.getRawAuthority() != null && base.getRawAuthority().equalsIgnoreCase(target.getRawAuthority())) {
+					invalidate(target.toString());
+				}
+			} catch (URISyntaxException e) {
+				// nothing we could have stored it under
+			}
+		}
+	}
+	
+	/**
+	 * Drops every stored response to a URL, whatever request headers it varied on
+	 */
+	public void invalidate(String url) {
+		String primaryKey = getPrimaryKey("GET", url);
+		if (varyHeaders.remove(primaryKey) == null) {
+			getStripe(primaryKey).remove(primaryKey);
+		} else {
+			// variants land on any stripe
+			for (Stripe stripe : stripes) {
+				stripe.removeVariants(primaryKey);
+			}
+		}
+		if (disk != null) disk.invalidate(primaryKey);
+		invalidations.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the size of the largest response either tier will keep, in bytes
+	 */
+	public int getMaxEntrySize() {
+		return (disk == null) ? Utils.CACHE_MAX_ENTRY_SIZE
+				: Math.max(Utils.CACHE_MAX_ENTRY_SIZE, Utils.DISK_CACHE_MAX_ENTRY_SIZE);
+	}
+	
+	/**
+	 * Saves anything that needs to outlive the proxy
+	 */
+	public void save() {
+		if (disk != null) disk.save();
+	}
+	
+	/**
+	 * Gets the total size of everything stored in memory, in bytes
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.getSize();
+		}
+		return size;
+	}
+	
+	/**
+	 * Gets the fraction of lookups that found a fresh response
+	 */
+	public double getHitRate() {
+		long total = hits.get() + misses.get();
+		return (total == 0) ? 0 : (double) hits.get() / total;
+	}
+	
+	/**
+	 * Summarizes the cache's statistics, for logging
+	 */
+	public String getStats() {
+		return "hits=" + hits.get()
+				+ " misses=" + misses.get()
+				+ " hitRate=" + String.format("%.1f%%", getHitRate() * 100)
+				+ " stores=" + stores.get()
+				+ " evictions=" + evictions.get()
+				+ " revalidated=" + revalidated.get()
+				+ " staleHits=" + staleHits.get()
+				+ " invalidations=" + invalidations.get()
+				+ " bytes=" + getSize()
+				+ ((disk == null) ? "" : " disk=[" + disk.getStats() + "]");
+	}
+	
+	static boolean isCacheableMethod(String method) {
+		return method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("HEAD");
+	}
+	
+	static boolean isSafeMethod(String method) {
+		return isCacheableMethod(method) || method.equalsIgnoreCase("OPTIONS") || method.equalsIgnoreCase("TRACE");
+	}
+	
+	private static String getPrimaryKey(String method, String url) {
+		// HEAD requests get answered from GET responses
+		return "GET " + url;
+	}
+	
+	/**
+	 * Gets the part of a full cache key that doesn't depend on Vary
+	 */
+	static String getPrimaryKey(String key) {
+		int end = key.indexOf('\n');
+		return (end < 0) ? key : key.substring(0, end);
+	}
+	
+	/**
+	 * Splits a Vary header into lowercase header names
+	 * 
+	 * @return the names, or null if there's no header
+	 */
+	static String[] parseVary(String vary) {
+		if (vary == null) return null;
+		return vary.trim().toLowerCase().split("\\s*(,|" + Utils.CRLF + ")\\s*");
+	}
+	
+	String getKey(String method, String url, Hashtable<String,String> requestHeaders) {
+		String primaryKey = getPrimaryKey(method, url);
+		String[] names = varyHeaders.get(primaryKey);
+		if (names == null) return primaryKey;
+		
+		StringBuilder key = new StringBuilder(primaryKey);
+		for (String name : names) {
+			String value = requestHeaders.get(name);
+			key.append('\n').append(name).append(": ").append(value == null ? "" : value);
+		}
+		return key.toString();
+	}
+	
+	private Stripe getStripe(String key) {
+		return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+	}
+	
+	
+	/**
+	 * One independently locked piece of the cache, evicting with a segmented LRU policy
+	 */
+	private class Stripe {
+		
+		final long maxBytes;
+		final long maxProtectedBytes;
+		
+		// both in least-recently-used-first order
+		final LinkedHashMap<String,CachedResponse> probation = new LinkedHashMap<String,CachedResponse>(16, 0.75f, true);
+		final LinkedHashMap<String,CachedResponse> protectedEntries = new LinkedHashMap<String,CachedResponse>(16, 0.75f, true);
+		long probationBytes;
+		long protectedBytes;
+		
+		Stripe(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+		}
+		
+		synchronized CachedResponse get(String key) {
+			CachedResponse cached = protectedEntries.get(key);
+			if (cached != null) return cached;
+			
+			// a second hit earns promotion out of probation
+			cached = probation.remove(key);
+			if (cached == null) return null;
+			probationBytes -= cached.getSize();
+			protectedEntries.put(key, cached);
+			protectedBytes += cached.getSize();
+			
+			// make room by sending the protected segment's oldest entries back to probation
+			Iterator<Map.Entry<String,CachedResponse>> it = protectedEntries.entrySet().iterator();
+			while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+				Map.Entry<String,CachedResponse> eldest = it.next();
+				it.remove();
+				protectedBytes -= eldest.getValue().getSize();
+				probation.put(eldest.getKey(), eldest.getValue());
+				probationBytes += eldest.getValue().getSize();
+			}
+			return cached;
+		}
+		
+		synchronized void put(String key, CachedResponse cached) {
+			remove(key);
+			probation.put(key, cached);
+			probationBytes += cached.getSize();
+			
+			// evict from probation first, and only touch protected entries if we must
+			while (probationBytes + protectedBytes > maxBytes) {
+				LinkedHashMap<String,CachedResponse> segment = probation.isEmpty() ? protectedEntries : probation;
+				Iterator<Map.Entry<String,CachedResponse>> it = segment.entrySet().iterator();
+				if (!it.hasNext()) break;
+				CachedResponse eldest = it.next().getValue();
+				it.remove();
+				if (segment == probation) probationBytes -= eldest.getSize();
+				else protectedBytes -= eldest.getSize();
+				evictions.incrementAndGet();
+			}
+		}
+		
+		synchronized void remove(String key) {
+			CachedResponse cached = probation.remove(key);
+			if (cached != null) probationBytes -= cached.getSize();
+			cached = protectedEntries.remove(key);
+			if (cached != null) protectedBytes -= cached.getSize();
+		}
+		
+		/**
+		 * Removes a primary key and every key that extends it with Vary'd headers
+		 */
+		synchronized void removeVariants(String primaryKey) {
+			for (LinkedHashMap<String,CachedResponse> segment : Arrays.asList(probation, protectedEntries)) {
+				Iterator<Map.Entry<String,CachedResponse>> it = segment.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<String,CachedResponse> mapping = it.next();
+					if (!getPrimaryKey(mapping.getKey()).equals(primaryKey)) continue;
+					it.remove();
+					if (segment == probation) probationBytes -= mapping.getValue().getSize();
+					else protectedBytes -= mapping.getValue().getSize();
+				}
+			}
+		}
+		
+		synchronized long getSize() {
+			return probationBytes + protectedBytes;
+		}
+	}
+}
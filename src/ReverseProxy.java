@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lets the proxy sit in front of our own backend servers: requests for a
+ * path on the proxy itself (rather than an absolute URL) are matched against
+ * routes by Host header and path prefix, and each route hands its requests
+ * to one of a group of backends.
+ * 
+ * Backends are picked by how many requests each has in progress right now,
+ * either the least of all of them, or the less of two picked at random
+ * (which keeps a burst from piling onto whichever backend just looked
+ * quietest). Backends that fail too many requests in a row are ejected from
+ * their group for a while, for longer each time it happens.
+ * 
+ * Routes come from Utils.ROUTES, like
+ *   "api.example.com/v1=10.0.0.1:8080,10.0.0.2:8080; /static=10.0.0.3:80"
+ * Requests that match no route go to the internal server, as before.
+ */
+public class ReverseProxy {
+	
+	// longest a backend can be ejected for, in multiples of Utils.EJECTION_TIME
+	final static int MAX_EJECTION_MULTIPLIER = 10;
+	
+	// the routes used by both engines
+	static final ReverseProxy shared = new ReverseProxy(Utils.ROUTES, Utils.LOAD_BALANCING);
+	
+	final boolean enabled; // are there any routes?
+	final boolean powerOfTwo; // pick the better of two random backends, rather than the best of all?
+	
+	// most specific first: routes for a particular host, then longer prefixes
+	private final List<Route> routes = new ArrayList<Route>();
+	
+	/**
+	 * @param config routes, separated by semicolons (see above)
+	 * @param balancing "least" for least outstanding requests, or "p2c" for power of two choices
+	 */
+	public ReverseProxy(String config, String balancing) {
+		if (!balancing.equalsIgnoreCase("least") && !balancing.equalsIgnoreCase("p2c")) {
+			Utils.logError("Unknown load balancing \"" + balancing + "\"; using least outstanding requests");
+			balancing = "least";
+		}
+		powerOfTwo = balancing.equalsIgnoreCase("p2c");
+		
+		for (String spec : config.split(";")) {
+			spec = spec.trim();
+			if (spec.isEmpty()) continue;
+			Route route = parseRoute(spec);
+			if (route == null) {
+				Utils.logError("Invalid route \"" + spec + "\"; ignoring it");
+			} else {
+				routes.add(route);
+			}
+		}
+		Collections.sort(routes, new Comparator<Route>() {
+			public int compare(Route a, Route b) {
+				if ((a.host == null) != (b.host == null)) return (a.host == null) ? 1 : -1;
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+		enabled = !routes.isEmpty();
+	}
+	
+	/**
+	 * Parses a route like "host/prefix=backend:port,backend:port", where
+	 * either the host or the prefix may be left out
+	 * 
+	 * @return the route, or null if it doesn't make sense
+	 */
+	private Route parseRoute(String spec) {
+		int equals = spec.indexOf('=');
+		if (equals <= 0) return null;
+		String match = spec.substring(0, equals).trim();
+		int slash = match.indexOf('/');
+		String host = (slash < 0) ? match : match.substring(0, slash);
+		String prefix = (slash < 0) ? "/" : match.substring(slash);
+		
+		List<Backend> backends = new ArrayList<Backend>();
+		for (String address : spec.substring(equals + 1).split(",")) {
+			address = address.trim();
+			if (address.isEmpty()) continue;
+			String[] parts = address.split(":");
+			try {
+				backends.add(new Backend(parts[0], (parts.length > 1) ? Integer.parseInt(parts[1]) : 80));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		if (backends.isEmpty()) return null;
+		
+		return new Route(host.isEmpty() ? null : host.toLowerCase(), prefix,
+				new Group(match, backends.toArray(new Backend[backends.size()])));
+	}
+	
+	/**
+	 * Finds the group of backends that should serve a request for a path on the proxy
+	 * 
+	 * @param host the request's Host header
+	 * @param path the request target, starting with "/"
+	 * @return the group, or null if no route matches
+	 */
+	public Group route(String host, String path) {
+		int colon = host.lastIndexOf(':');
+		if (colon >= 0 && host.indexOf(']', colon) < 0) host = host.substring(0, colon);
+		host = host.trim().toLowerCase();
+		
+		for (Route route : routes) {
+			if (route.matches(host, path)) return route.group;
+		}
+		return null;
+	}
+	
+	public List<Group> getGroups() {
+		List<Group> groups = new ArrayList<Group>();
+		for (Route route : routes) groups.add(route.group);
+		return groups;
+	}
+	
+	/**
+	 * Summarizes every backend's statistics, for logging
+	 */
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+		for (Route route : routes) {
+			if (stats.length() > 0) stats.append(' ');
+			stats.append(route.group.name).append("=[");
+			for (int i = 0; i < route.group.backends.length; i++) {
+				if (i > 0) stats.append(' ');
+				stats.append(route.group.backends[i].getStats());
+			}
+			stats.append(']');
+		}
+		return stats.toString();
+	}
+	
+	
+	/**
+	 * A host and path prefix, and the group that serves requests matching it
+	 */
+	private static class Route {
+		final String host; // lowercase, without a port (null for any host)
+		final String prefix;
+		final Group group;
+		
+		Route(String host, String prefix, Group group) {
+			this.host = host;
+			this.prefix = prefix;
+			this.group = group;
+		}
+		
+		/**
+		 * Does a request match? The prefix has to end at a path segment, so
+		 * "/api" matches "/api", "/api/users" and "/api?q" but not "/apiary".
+		 */
+		boolean matches(String host, String path) {
+			if (this.host != null && !this.host.equals(host)) return false;
+			if (!path.startsWith(prefix)) return false;
+			if (path.length() == prefix.length() || prefix.endsWith("/")) return true;
+			char next = path.charAt(prefix.length());
+			return next == '/' || next == '?';
+		}
+	}
+	
+	/**
+	 * Backends that take turns serving a route's requests
+	 */
+	class Group {
+		final String name; // the route, as configured
+		final Backend[] backends;
+		private final AtomicInteger nextStart = new AtomicInteger(); // where the next search starts, to spread ties
+		
+		Group(String name, Backend[] backends) {
+			this.name = name;
+			this.backends = backends;
+			for (Backend backend : backends) backend.group = this;
+		}
+		
+		/**
+		 * Picks a backend for a request, and counts the request as in progress
+		 * on it until its finish() is called. If every backend's been ejected,
+		 * they're all fair game again, since some answer beats none.
+		 */
+		public Backend pick() {
+			long now = System.currentTimeMillis();
+			Backend picked = powerOfTwo ? pickOfTwo(now) : pickLeast(now);
+			if (picked == null) picked = powerOfTwo ? pickOfTwo(Long.MAX_VALUE) : pickLeast(Long.MAX_VALUE);
+			picked.outstanding.incrementAndGet();
+			picked.requests.incrementAndGet();
+			return picked;
+		}
+		
+		/**
+		 * @return the healthy backend with the fewest requests in progress, or null if none are healthy
+		 */
+		private Backend pickLeast(long now) {
+			int start = (nextStart.getAndIncrement() & 0x7fffffff) % backends.length;
+			Backend best = null;
+			for (int i = 0; i < backends.length; i++) {
+				Backend backend = backends[(start + i) % backends.length];
+				if (backend.isEjected(now)) continue;
+				if (best == null || backend.outstanding.get() < best.outstanding.get()) best = backend;
+			}
+			return best;
+		}
+		
+		/**
+		 * @return whichever of two random healthy backends has fewer requests
+		 * in progress, or null if none are healthy
+		 */
+		private Backend pickOfTwo(long now) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Backend first = null;
+			Backend second = null;
+			
+			// a couple of tries to get two healthy ones, then fall back on looking at them all
+			for (int tries = 0; tries < 4 && second == null; tries++) {
+				Backend backend = backends[random.nextInt(backends.length)];
+				if (backend.isEjected(now) || backend == first) continue;
+				if (first == null) first = backend;
+				else second = backend;
+			}
+			if (first == null) return pickLeast(now);
+			if (second == null) return first;
+			return (second.outstanding.get() < first.outstanding.get()) ? second : first;
+		}
+		
+		/**
+		 * Ejects a backend that keeps failing, unless too much of the group's out already
+		 */
+		synchronized void eject(Backend backend, long now) {
+			int ejected = 0;
+			for (Backend other : backends) {
+				if (other.isEjected(now)) ejected++;
+			}
+			if ((ejected + 1) * 100 > backends.length * Utils.MAX_EJECTION_PERCENT) return;
+			
+			backend.timesEjected = Math.min(backend.timesEjected + 1, MAX_EJECTION_MULTIPLIER);
+			backend.ejectedUntil = now + (long) Utils.EJECTION_TIME * backend.timesEjected;
+			backend.ejections.incrementAndGet();
+			Utils.logError("Ejecting backend " + backend + " from " + name + " for "
+					+ Utils.EJECTION_TIME * backend.timesEjected + " ms after "
+					+ Utils.EJECTION_FAILURES + " failures in a row");
+		}
+	}
+	
+	/**
+	 * One backend server, and what we know of how it's doing
+	 */
+	static class Backend {
+		final String hostname;
+		final int port;
+		Group group;
+		
+		final AtomicInteger outstanding = new AtomicInteger(); // requests in progress on it right now
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		volatile long ejectedUntil; // when it can have requests again, if it's been ejected
+		int timesEjected; // since it last served a request successfully (guarded by the group)
+		
+		// statistics
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong ejections = new AtomicLong();
+		
+		Backend(String hostname, int port) {
+			this.hostname = hostname;
+			this.port = port;
+		}
+		
+		boolean isEjected(long now) {
+			return ejectedUntil > now;
+		}
+		
+		/**
+		 * Ends a request that was picked to go to this backend
+		 * 
+		 * @param failed did the backend fail it (couldn't be reached, timed out, or sent a 5xx)?
+		 */
+		public void finish(boolean failed) {
+			outstanding.decrementAndGet();
+			if (!failed) {
+				consecutiveFailures.set(0);
+				if (timesEjected > 0) {
+					synchronized (group) {
+						timesEjected = 0;
+					}
+				}
+				return;
+			}
+			
+			failures.incrementAndGet();
+			if (consecutiveFailures.incrementAndGet() >= Utils.EJECTION_FAILURES) {
+				consecutiveFailures.set(0);
+				long now = System.currentTimeMillis();
+				if (!isEjected(now)) group.eject(this, now);
+			}
+		}
+		
+		public String getStats() {
+			return this + ":requests=" + requests.get()
+					+ ",failures=" + failures.get()
+					+ ",ejections=" + ejections.get()
+					+ ",outstanding=" + outstanding.get();
+		}
+		
+		@Override
+		public String toString() {
+			return hostname + ":" + port;
+		}
+	}
+}
@@ -0,0 +1,319 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+
+/**
+ * Keeps the internal server's static files and directory listings in
+ * memory, along with the validators (ETag and Last-Modified) that let
+ * clients skip downloading them again. Everything under Utils.DOCUMENT_ROOT
+ * is watched, and entries are thrown out as soon as their files change.
+ */
+public class StaticFileCache {
+	
+	// the cache used by the internal server
+	static final StaticFileCache shared = new StaticFileCache(new File(Utils.DOCUMENT_ROOT));
+	
+	private final ConcurrentHashMap<String,Entry> files = new ConcurrentHashMap<String,Entry>();
+	private final ConcurrentHashMap<String,Entry> listings = new ConcurrentHashMap<String,Entry>();
+	
+	// bumped every time something changes, so entries built from old contents don't get stored
+	private final AtomicLong generation = new AtomicLong();
+	
+	// bytes of file bodies being held in memory
+	private final AtomicLong size = new AtomicLong();
+	
+	// false if we can't watch the document root, in which case nothing gets cached
+	private volatile boolean watching;
+	
+	// statistics
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong notModified = new AtomicLong(); // 304s sent
+	final AtomicLong invalidations = new AtomicLong();
+	
+	public StaticFileCache(File root) {
+		if (!Utils.ENABLE_STATIC_CACHE) return;
+		
+		try {
+			final WatchService watcher = FileSystems.getDefault().newWatchService();
+			registerAll(watcher, root.toPath());
+			
+			Thread watchThread = new Thread(new Runnable() {
+				public void run() {
+					watch(watcher);
+				}
+			}, "StaticFileWatcher");
+			watchThread.setDaemon(true);
+			watchThread.start();
+			watching = true;
+		
+		} catch (IOException e) {
+			Utils.logError("Can't watch " + root + " for changes, so static files won't be cached: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Gets a static file, from memory if it's small enough to have been kept there
+	 * 
+	 * @param contentType the file's MIME type, or null if unknown
+	 */
+	public Entry getFile(File file, String contentType) throws IOException {
+		String key = getKey(file.toPath());
+		Entry entry = files.get(key);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry;
+		}
+		misses.incrementAndGet();
+		
+		long startGeneration = generation.get();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		
+		byte[] body = null;
+		String etag;
+		if (watching && length <= Utils.STATIC_CACHE_MAX_FILE_SIZE
+				&& size.get() + length <= Utils.STATIC_CACHE_SIZE) {
+			body = Files.readAllBytes(file.toPath());
+			etag = getETag(body);
+		} else {
+			// too big to hash every time, so go by when it changed instead
+			etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+		}
+		
+		entry = new Entry(body, file, contentType, etag, lastModified);
+		store(files, key, entry, startGeneration);
+		return entry;
+	}
+	
+	/**
+	 * Gets the cached listing of a directory
+	 * 
+	 * @return the listing, or null if it needs to be rendered (see putListing)
+	 */
+	public Entry getListing(File directory) {
+		Entry entry = listings.get(getKey(directory.toPath()));
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+	
+	/**
+	 * Caches a freshly rendered directory listing
+	 * 
+	 * @param startGeneration getGeneration() from before the directory was read
+	 */
+	public Entry putListing(File directory, String html, long startGeneration) {
+		byte[] body = html.getBytes(StandardCharsets.UTF_8);
+		Entry entry = new Entry(body, null, "text/html", getETag(body), 0);
+		store(listings, getKey(directory.toPath()), entry, startGeneration);
+		return entry;
+	}
+	
+	/**
+	 * Gets a number that changes whenever anything under the document root does
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * Summarizes the cache's statistics, for logging
+	 */
+	public String getStats() {
+		return "files=" + files.size()
+				+ " listings=" + listings.size()
+				+ " bytes=" + size.get()
+				+ " hits=" + hits.get()
+				+ " misses=" + misses.get()
+				+ " notModified=" + notModified.get()
+				+ " invalidations=" + invalidations.get();
+	}
+	
+	/**
+	 * Keeps an entry, unless something changed while it was being built
+	 */
+	private void store(ConcurrentHashMap<String,Entry> map, String key, Entry entry, long startGeneration) {
+		if (!watching) return;
+		
+		if (entry.body != null) size.addAndGet(entry.body.length);
+		Entry replaced = map.put(key, entry);
+		if (replaced != null && replaced.body != null) size.addAndGet(-replaced.body.length);
+		
+		// if the file changed in the meantime, we may have just cached the old contents
+		if (generation.get() != startGeneration) invalidate(map, key);
+	}
+	
+	private void invalidate(ConcurrentHashMap<String,Entry> map, String key) {
+		Entry removed = map.remove(key);
+		if (removed != null) {
+			if (removed.body != null) size.addAndGet(-removed.body.length);
+			invalidations.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Throws out everything that a change to a path could have made stale
+	 */
+	private void invalidate(Path path) {
+		generation.incrementAndGet();
+		String key = getKey(path);
+		invalidate(files, key);
+		invalidate(listings, key);
+		
+		// the directory it's in lists it
+		if (path.getParent() != null) invalidate(listings, getKey(path.getParent()));
+	}
+	
+	private void invalidateAll() {
+		generation.incrementAndGet();
+		for (String key : files.keySet()) invalidate(files, key);
+		for (String key : listings.keySet()) invalidate(listings, key);
+	}
+	
+	/**
+	 * Waits for changes under the document root, throwing out cache entries as they happen
+	 */
+	private void watch(WatchService watcher) {
+		while (true) {
+			WatchKey watchKey;
+			try {
+				watchKey = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			Path directory = (Path) watchKey.watchable();
+			for (WatchEvent<?> event : watchKey.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					// we missed some changes, so we can't trust anything we have
+					invalidateAll();
+					continue;
+				}
+				
+				Path path = directory.resolve((Path) event.context());
+				invalidate(path);
+				
+				// new directories need watching too
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+					try {
+						registerAll(watcher, path);
+					} catch (IOException e) {
+						Utils.logError("Can't watch " + path + " for changes: " + e.getMessage());
+					}
+				}
+			}
+			
+			// the directory itself is gone
+			if (!watchKey.reset()) invalidate(directory);
+		}
+	}
+	
+	/**
+	 * Watches a directory and everything under it
+	 */
+	private static void registerAll(final WatchService watcher, Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	private static String getKey(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+	
+	/**
+	 * Makes a strong ETag out of a body's contents
+	 */
+	private static String getETag(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"";
+	}
+	
+	
+	/**
+	 * A static file or directory listing, along with its validators
+	 */
+	class Entry {
+		final byte[] body; // contents, or null if they're too big to keep in memory
+		final File file; // file to send if the contents aren't in memory
+		final String contentType;
+		final String etag;
+		final long lastModified; // 0 if unknown
+		
+		Entry(byte[] body, File file, String contentType, String etag, long lastModified) {
+			this.body = body;
+			this.file = file;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+		
+		/**
+		 * Builds the response to a request for this entry, which is a 304 if
+		 * the client's copy is still good
+		 */
+		public InternalResponse toResponse(Hashtable<String,String> requestHeaders) {
+			InternalResponse response;
+			if (isNotModified(requestHeaders)) {
+				notModified.incrementAndGet();
+				response = new InternalResponse(HttpStatus.NOT_MODIFIED);
+			} else {
+				response = new InternalResponse(HttpStatus.OK);
+				if (body != null) {
+					response.setBody(body, contentType);
+				} else {
+					if (contentType != null) response.setHeader("Content-Type", contentType);
+					response.setFile(file);
+				}
+			}
+			
+			response.setHeader("ETag", etag);
+			if (lastModified > 0) response.setHeader("Last-Modified", Utils.getRFC1123Date(lastModified));
+			return response;
+		}
+		
+		/**
+		 * Does the client already have this version? (If-None-Match wins over If-Modified-Since)
+		 */
+		boolean isNotModified(Hashtable<String,String> requestHeaders) {
+			String ifNoneMatch = requestHeaders.get("if-none-match");
+			if (ifNoneMatch != null) {
+				for (String tag : ifNoneMatch.split(",|" + Utils.CRLF)) {
+					tag = tag.trim();
+					if (tag.startsWith("W/")) tag = tag.substring(2);
+					if (tag.equals("*") || tag.equals(etag)) return true;
+				}
+				return false;
+			}
+			
+			// dates only go down to the second
+			long ifModifiedSince = CachedResponse.parseHttpDate(requestHeaders.get("if-modified-since"));
+			return lastModified > 0 && ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Keeps track of deadlines for every connection the proxy has open, with a
+ * single thread. Deadlines are hashed into a circular array of buckets (a
+ * hashed timing wheel), one bucket per tick, so scheduling and cancelling
+ * a deadline take constant time however many there are; each tick, the
+ * thread only looks at the deadlines in one bucket. Deadlines further out
+ * than one turn of the wheel wait out the extra turns in their bucket.
+ * 
+ * Tasks run on the wheel's thread, so they should only do something quick,
+ * like flag a connection and shut its socket, or hand work to an event loop.
+ */
+public class TimerWheel {
+	
+	// number of buckets in the wheel (a power of 2)
+	final static int WHEEL_SIZE = 512;
+	
+	// most newly scheduled deadlines moved into the wheel each tick, so a flood
+	// of them can't hold up the ones that are due
+	final static int MAX_ADDS_PER_TICK = 100000;
+	
+	// the wheel used for every connection's deadlines
+	static final TimerWheel shared = new TimerWheel(Utils.TIMER_TICK, WHEEL_SIZE);
+	
+	private final long tickNanos;
+	private final Bucket[] buckets;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+	private long tick; // ticks done so far (only touched by the wheel's thread)
+	
+	// deadlines waiting to be put into (or taken out of) the wheel by its thread
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	
+	// statistics
+	final AtomicLong scheduledCount = new AtomicLong();
+	final AtomicLong expiredCount = new AtomicLong();
+	final AtomicLong cancelledCount = new AtomicLong();
+	
+	/**
+	 * @param tickMillis how often the wheel ticks over (and so how late deadlines may go off)
+	 * @param size number of buckets (rounded up to a power of 2)
+	 */
+	public TimerWheel(long tickMillis, int size) {
+		tickNanos = Math.max(tickMillis, 1) * 1000000L;
+		int n = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		buckets = new Bucket[n];
+		for (int i = 0; i < n; i++) {
+			buckets[i] = new Bucket();
+		}
+		mask = n - 1;
+		
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				turn();
+			}
+		}, "TimerWheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Runs a task once a delay has passed, unless it's cancelled first
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + Math.max(delayMillis, 0) * 1000000L);
+		added.add(timeout);
+		scheduledCount.incrementAndGet();
+		return timeout;
+	}
+	
+	/**
+	 * Ticks the wheel over forever, running whatever comes due
+	 */
+	private void turn() {
+		while (true) {
+			long tickEnd = (tick + 1) * tickNanos;
+			long sleep;
+			while ((sleep = tickEnd - (System.nanoTime() - startTime)) > 0) {
+				LockSupport.parkNanos(sleep);
+			}
+			
+			removeCancelled();
+			addScheduled();
+			buckets[(int) (tick & mask)].expire(tickEnd);
+			tick++;
+		}
+	}
+	
+	private void addScheduled() {
+		for (int i = 0; i < MAX_ADDS_PER_TICK; i++) {
+			Timeout timeout = added.poll();
+			if (timeout == null) return;
+			if (timeout.state != Timeout.PENDING) continue; // cancelled before it got in
+			
+			long dueTick = timeout.deadline / tickNanos;
+			timeout.rounds = (dueTick - tick) / buckets.length;
+			
+			// anything already overdue goes in the bucket that's about to be expired
+			buckets[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+		}
+	}
+	
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) timeout.bucket.remove(timeout);
+		}
+	}
+	
+	/**
+	 * Gets the number of deadlines that haven't gone off or been cancelled yet
+	 */
+	public long getPendingCount() {
+		return scheduledCount.get() - expiredCount.get() - cancelledCount.get();
+	}
+	
+	/**
+	 * Summarizes the wheel's statistics, for logging
+	 */
+	public String getStats() {
+		return "scheduled=" + scheduledCount.get()
+				+ " expired=" + expiredCount.get()
+				+ " cancelled=" + cancelledCount.get()
+				+ " pending=" + getPendingCount();
+	}
+	
+	
+	/**
+	 * A deadline that's been scheduled, which can be cancelled until it goes off
+	 */
+	public final class Timeout {
+		static final int PENDING = 0;
+		static final int CANCELLED = 1;
+		static final int EXPIRED = 2;
+		
+		private final Runnable task;
+		private final long deadline; // in nanoseconds since the wheel started
+		volatile int state = PENDING;
+		
+		// where it sits in the wheel (only touched by the wheel's thread)
+		long rounds; // turns of the wheel left before it's due
+		Bucket bucket;
+		Timeout next;
+		Timeout prev;
+		
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * Stops the task from running
+		 * 
+		 * @return false if it's too late (the task has run, or is running)
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+			cancelledCount.incrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+		
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+		
+		void expire() {
+			if (!STATE.compareAndSet(this, PENDING, EXPIRED)) return;
+			expiredCount.incrementAndGet();
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Utils.logError("Timer task failed: " + e);
+			}
+		}
+	}
+	
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+	
+	/**
+	 * The deadlines hashed to one tick of the wheel, as a doubly linked list
+	 * (only touched by the wheel's thread)
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+		
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null) head = timeout;
+			else tail.next = timeout;
+			tail = timeout;
+		}
+		
+		void remove(Timeout timeout) {
+			if (timeout.prev == null) head = timeout.next;
+			else timeout.prev.next = timeout.next;
+			if (timeout.next == null) tail = timeout.prev;
+			else timeout.next.prev = timeout.prev;
+			timeout.bucket = null;
+			timeout.next = null;
+			timeout.prev = null;
+		}
+		
+		/**
+		 * Runs every deadline in the bucket that's due by the end of this tick,
+		 * and counts down the rest
+		 */
+		void expire(long tickEnd) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.state == Timeout.CANCELLED) {
+					remove(timeout);
+				} else if (timeout.rounds <= 0 && timeout.deadline <= tickEnd) {
+					remove(timeout);
+					timeout.expire();
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+		}
+	}
+}
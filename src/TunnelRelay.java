@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Relays the bytes of CONNECT tunnels (mostly HTTPS) between clients and the
+ * servers they asked for, without looking at them. Each way runs until its
+ * sender is done, and then passes the half-close along to the other end, so
+ * the other way can finish on its own; a tunnel that goes too long without a
+ * byte moving either way gets closed.
+ * 
+ * For the blocking engine, the worker's own thread carries the client's side
+ * and a thread from a shared pool carries the server's, each through one
+ * buffer it keeps for the whole tunnel. The nio engine relays tunnels on its
+ * event loops itself (see NioConnection), and only counts them here.
+ */
+public class TunnelRelay {
+	
+	// status line that tells the client its tunnel is open
+	static final String ESTABLISHED_LINE = Utils.HTTP_VERSION + " 200 Connection Established";
+	
+	// the relay used by both engines
+	static final TunnelRelay shared = new TunnelRelay(Utils.TUNNEL_PORTS);
+	
+	private final boolean anyPort;
+	private final boolean[] allowedPorts = new boolean[65536];
+	
+	// carries the server -> client way of blocking-engine tunnels
+	private final ExecutorService pumps;
+	
+	// statistics
+	final AtomicLong opened = new AtomicLong(); // tunnels opened
+	final AtomicLong failed = new AtomicLong(); // ...that couldn't be, because the server couldn't be reached
+	final AtomicLong idleTimeouts = new AtomicLong(); // tunnels closed for sitting idle
+	final AtomicInteger active = new AtomicInteger(); // tunnels open right now
+	final AtomicLong bytesUp = new AtomicLong(); // bytes relayed from clients to servers
+	final AtomicLong bytesDown = new AtomicLong(); // bytes relayed from servers to clients
+	
+	/**
+	 * @param ports the ports tunnels may be opened to, separated by commas, or "*" for any
+	 */
+	public TunnelRelay(String ports) {
+		boolean any = false;
+		for (String port : ports.split(",")) {
+			port = port.trim();
+			if (port.isEmpty()) continue;
+			if (port.equals("*")) {
+				any = true;
+				continue;
+			}
+			try {
+				allowedPorts[Integer.parseInt(port)] = true;
+			} catch (RuntimeException e) {
+				Utils.logError("Invalid tunnel port \"" + port + "\"; ignoring it");
+			}
+		}
+		anyPort = any;
+		
+		final AtomicInteger threadCount = new AtomicInteger();
+		pumps = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TunnelPump-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * May clients open tunnels to this port?
+	 */
+	public boolean isAllowedPort(int port) {
+		return port > 0 && port < allowedPorts.length && (anyPort || allowedPorts[port]);
+	}
+	
+	/**
+	 * Gets the host out of a CONNECT request's target, like "example.com:443"
+	 * or "[::1]:443"
+	 * 
+	 * @return the host, or null if the target isn't a host and port
+	 */
+	static String parseHost(String target) {
+		int colon = target.lastIndexOf(':');
+		if (colon <= 0 || parsePort(target) < 0) return null;
+		String host = target.substring(0, colon);
+		if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+		return host.isEmpty() ? null : host;
+	}
+	
+	/**
+	 * Gets the port out of a CONNECT request's target
+	 * 
+	 * @return the port, or -1 if the target doesn't end in one
+	 */
+	static int parsePort(String target) {
+		int colon = target.lastIndexOf(':');
+		if (colon < 0 || target.indexOf(']', colon) >= 0) return -1;
+		try {
+			int port = Integer.parseInt(target.substring(colon + 1));
+			return (port > 0 && port < 65536) ? port : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Relays a blocking-engine tunnel both ways until both are done with it
+	 * (or it fails, or sits idle too long), and then closes both sides
+	 * 
+	 * @param clientIn reads from the client, starting with anything it sent after its CONNECT
+	 * @param clientOut writes straight to the client (unbuffered)
+	 * @param buffer what the client -> server way is copied through
+	 * @return true if both ways finished cleanly
+	 */
+	public boolean relay(final Socket client, InputStream clientIn, final OutputStream clientOut,
+			final Socket remote, byte[] buffer) throws IOException {
+		final Tunnel tunnel = new Tunnel(client, remote);
+		final InputStream remoteIn = remote.getInputStream();
+		OutputStream remoteOut = remote.getOutputStream();
+		tunnelOpened();
+		
+		try {
+			tunnel.watch(Utils.TUNNEL_IDLE_TIMEOUT);
+			Future<Boolean> down = pumps.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return pump(tunnel, remoteIn, clientOut, client, new byte[Utils.RELAY_BUFFER_SIZE], bytesDown);
+				}
+			});
+			boolean complete = pump(tunnel, clientIn, remoteOut, remote, buffer, bytesUp);
+			
+			try {
+				complete &= down.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				complete = false;
+			} catch (ExecutionException e) {
+				complete = false;
+			}
+			return complete;
+		
+		} finally {
+			tunnel.close();
+			tunnelClosed();
+		}
+	}
+	
+	/**
+	 * Copies one way through a tunnel until the sender's done, then passes its
+	 * half-close along to the receiver. If it fails, the whole tunnel is
+	 * closed, which ends the other way too.
+	 * 
+	 * @return true if the sender finished cleanly
+	 */
+	private boolean pump(Tunnel tunnel, InputStream in, OutputStream out, Socket receiver, byte[] buffer, AtomicLong bytes) {
+		try {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+				bytes.addAndGet(n);
+				tunnel.lastActivity = System.currentTimeMillis();
+			}
+			receiver.shutdownOutput();
+			return true;
+		} catch (IOException e) {
+			tunnel.close();
+			return false;
+		}
+	}
+	
+	/**
+	 * Counts a tunnel that's just been opened (by either engine)
+	 */
+	void tunnelOpened() {
+		opened.incrementAndGet();
+		active.incrementAndGet();
+	}
+	
+	/**
+	 * Counts a tunnel that's just been closed (by either engine)
+	 */
+	void tunnelClosed() {
+		active.decrementAndGet();
+	}
+	
+	/**
+	 * Summarizes the tunnels' statistics, for logging
+	 */
+	public String getStats() {
+		return "opened=" + opened.get()
+				+ " active=" + active.get()
+				+ " failed=" + failed.get()
+				+ " idleTimeouts=" + idleTimeouts.get()
+				+ " bytesUp=" + bytesUp.get()
+				+ " bytesDown=" + bytesDown.get();
+	}
+	
+	
+	/**
+	 * The two sockets of one blocking-engine tunnel, and the deadline that
+	 * closes them once neither way has moved a byte in Utils.TUNNEL_IDLE_TIMEOUT
+	 */
+	private class Tunnel implements Runnable {
+		final Socket client;
+		final Socket remote;
+		volatile long lastActivity = System.currentTimeMillis(); // when a byte last moved either way
+		private TimerWheel.Timeout idleTimeout;
+		private boolean closed;
+		
+		Tunnel(Socket client, Socket remote) {
+			this.client = client;
+			this.remote = remote;
+		}
+		
+		synchronized void watch(long millis) {
+			if (!closed) idleTimeout = TimerWheel.shared.schedule(this, millis);
+		}
+		
+		// runs on the wheel's thread when the deadline might have passed
+		public void run() {
+			long idle = System.currentTimeMillis() - lastActivity;
+			if (idle < Utils.TUNNEL_IDLE_TIMEOUT) {
+				watch(Utils.TUNNEL_IDLE_TIMEOUT - idle);
+				return;
+			}
+			synchronized (this) {
+				if (closed) return;
+			}
+			idleTimeouts.incrementAndGet();
+			close();
+		}
+		
+		/**
+		 * Closes both sockets, which ends any reads still waiting on them
+		 */
+		void close() {
+			synchronized (this) {
+				if (closed) return;
+				closed = true;
+				if (idleTimeout != null) idleTimeout.cancel();
+			}
+			try {
+				client.close();
+			} catch (IOException e) {}
+			try {
+				remote.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -1,6 +1,8 @@
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 
 public class Utils {
@@ -24,8 +26,242 @@ public class Utils {
 	// a relative or absolute path to root directory for static files
 	final static String DOCUMENT_ROOT = "static";
 	
-	// when serving local static files, how many bytes of the file should be buffered at a time?
-	final static int FILE_BUFFER_SIZE = 1024;
+	// should static files and directory listings be kept in memory (and dropped when they change)?
+	final static boolean ENABLE_STATIC_CACHE = getConfig("staticCache", true);
+	
+	// largest static file that gets kept in memory, in bytes
+	final static int STATIC_CACHE_MAX_FILE_SIZE = getConfig("staticCacheMaxFileSize", 1024 * 1024);
+	
+	// most memory that cached static files may use, in bytes
+	final static int STATIC_CACHE_SIZE = getConfig("staticCacheSize", 16 * 1024 * 1024);
+	
+	// keep count of requests, bytes, and latencies, and show them at /metrics?
+	final static boolean ENABLE_METRICS = getConfig("metrics", true);
+	
+	
+	/**
+	 * WORKER CONFIGURATION
+	 * (any of these can be overridden at startup with -Dawesomeproxy.<name>=<value>)
+	 */
+	// how should accepted connections be run? options are:
+	//   "thread"  - a new thread for every connection (the original behavior)
+	//   "pool"    - a bounded pool of WORKER_POOL_SIZE threads, queueing up to WORKER_QUEUE_SIZE connections
+	//   "virtual" - a new virtual thread for every connection (needs Java 21+; falls back to "pool" otherwise)
+	final static String WORKER_MODE = getConfig("workerMode", "pool");
+	
+	// how many threads the "pool" worker mode may run at once
+	final static int WORKER_POOL_SIZE = getConfig("workerPoolSize", 200);
+	
+	// how many accepted connections may wait for a free "pool" thread before we turn them away
+	final static int WORKER_QUEUE_SIZE = getConfig("workerQueueSize", 1000);
+	
+	
+	/**
+	 * ADMISSION CONTROL CONFIGURATION
+	 * (limits on requests to remote servers; past them, requests are shed with a 503)
+	 */
+	// most requests to remote servers that may be in progress at once (0 for no limit), or with an
+	// adaptive limit, the most it may grow to
+	final static int MAX_CONCURRENT_REQUESTS = getConfig("maxConcurrentRequests", 0);
+	
+	// most requests that may wait for a slot once the limit's been reached; past that they're shed right away
+	final static int MAX_QUEUED_REQUESTS = getConfig("maxQueuedRequests", 100);
+	
+	// how long a request may wait for a slot before it's shed, in milliseconds
+	final static int QUEUE_TIMEOUT = getConfig("queueTimeout", 1000);
+	
+	// should the limit adjust itself to the latencies we see? options are:
+	//   "off"      - the limit is MAX_CONCURRENT_REQUESTS
+	//   "aimd"     - grows by one per window of fast requests, shrinks by a tenth on a slow or failed one
+	//   "gradient" - follows the ratio of the usual latency to the current one, so it shrinks as queues build up
+	final static String ADAPTIVE_LIMIT = getConfig("adaptiveLimit", "off");
+	
+	// where an adaptive limit starts out, and the least it may shrink to
+	final static int ADAPTIVE_INITIAL_LIMIT = getConfig("adaptiveInitialLimit", 20);
+	final static int ADAPTIVE_MIN_LIMIT = getConfig("adaptiveMinLimit", 4);
+	
+	// latency past which the "aimd" limit takes a request as a sign of overload, in milliseconds
+	final static int AIMD_LATENCY_THRESHOLD = getConfig("aimdLatencyThreshold", 1000);
+	
+	// how long shed clients are told to wait before trying again (in Retry-After), in seconds
+	final static int RETRY_AFTER = getConfig("retryAfter", 1);
+	
+	
+	/**
+	 * PROXY CONFIGURATION
+	 */
+	// should responses from remote servers be passed along to the client as they arrive,
+	// rather than read in full first? (streaming keeps the memory used by each request bounded)
+	final static boolean STREAM_REMOTE_RESPONSES = getConfig("streamResponses", true);
+	
+	// size of the buffer that streamed bodies are copied through, in bytes
+	final static int RELAY_BUFFER_SIZE = getConfig("relayBufferSize", 16384);
+	
+	// should connections to remote servers be kept open and reused for later requests?
+	// (only streamed responses can be read exactly, so this needs STREAM_REMOTE_RESPONSES)
+	final static boolean ENABLE_CONNECTION_POOL = getConfig("connectionPool", true);
+	
+	// most idle connections kept open to any one remote server
+	final static int POOL_MAX_IDLE_PER_HOST = getConfig("poolMaxIdlePerHost", 8);
+	
+	// most idle connections kept open to all remote servers together
+	final static int POOL_MAX_IDLE_TOTAL = getConfig("poolMaxIdleTotal", 256);
+	
+	// how long an idle connection to a remote server is kept open, in milliseconds
+	final static int POOL_IDLE_TIMEOUT = getConfig("poolIdleTimeout", 30000);
+	
+	// should the addresses of remote servers be remembered between requests?
+	final static boolean ENABLE_DNS_CACHE = getConfig("dnsCache", true);
+	
+	// how long a remote server's address is remembered, in milliseconds
+	final static int DNS_CACHE_TTL = getConfig("dnsCacheTtl", 60000);
+	
+	// how long a failed address lookup is remembered, in milliseconds
+	final static int DNS_NEGATIVE_TTL = getConfig("dnsNegativeTtl", 5000);
+	
+	// most hostnames whose addresses are remembered at once
+	final static int DNS_CACHE_MAX_ENTRIES = getConfig("dnsCacheMaxEntries", 10000);
+	
+	// should responses tell the client how long each phase of fetching them took, in a Server-Timing header?
+	final static boolean SERVER_TIMING = getConfig("serverTiming", false);
+	
+	// ports that clients may open CONNECT tunnels to, separated by commas ("*" for any port)
+	final static String TUNNEL_PORTS = getConfig("tunnelPorts", "443");
+	
+	// how long a CONNECT tunnel may go without a byte moving either way before it's closed, in milliseconds
+	final static int TUNNEL_IDLE_TIMEOUT = getConfig("tunnelIdleTimeout", 300000);
+	
+	
+	/**
+	 * REVERSE PROXY CONFIGURATION
+	 * (for serving requests to paths on the proxy itself from our own backend servers; see ReverseProxy)
+	 */
+	// routes from host names and path prefixes to groups of backends, separated by semicolons, like
+	//   "api.example.com/v1=10.0.0.1:8080,10.0.0.2:8080; /static=10.0.0.3:80"
+	// (requests that match none go to the internal server; empty for no reverse proxying)
+	final static String ROUTES = getConfig("routes", "");
+	
+	// how should a backend be picked for each request? options are:
+	//   "least" - the one with the fewest requests in progress
+	//   "p2c"   - the one with fewer requests in progress of two picked at random ("power of two choices")
+	final static String LOAD_BALANCING = getConfig("loadBalancing", "least");
+	
+	// how many requests in a row a backend may fail (couldn't connect, timed out, or sent a 5xx)
+	// before it's ejected from its group
+	final static int EJECTION_FAILURES = getConfig("ejectionFailures", 5);
+	
+	// how long a backend is ejected for the first time, in milliseconds (it's longer each time in a row)
+	final static int EJECTION_TIME = getConfig("ejectionTime", 10000);
+	
+	// most of a group's backends that may be ejected at once, in percent
+	final static int MAX_EJECTION_PERCENT = getConfig("maxEjectionPercent", 50);
+	
+	
+	/**
+	 * CACHE CONFIGURATION
+	 */
+	// should responses from remote servers be kept in memory and reused while they're fresh?
+	// (responses are captured as they're relayed, so this needs STREAM_REMOTE_RESPONSES)
+	final static boolean ENABLE_CACHE = getConfig("cache", true);
+	
+	// most memory the response cache may use, in bytes
+	final static int CACHE_SIZE = getConfig("cacheSize", 64 * 1024 * 1024);
+	
+	// largest single response the cache will keep, in bytes
+	final static int CACHE_MAX_ENTRY_SIZE = getConfig("cacheMaxEntrySize", 1024 * 1024);
+	
+	// how many independently locked stripes the cache is split into
+	final static int CACHE_STRIPES = getConfig("cacheStripes", 16);
+	
+	// should responses also be kept in segment files on disk, as a bigger second tier under the memory cache?
+	final static boolean ENABLE_DISK_CACHE = getConfig("diskCache", false);
+	
+	// directory that the disk cache keeps its segments and index in
+	final static String DISK_CACHE_DIR = getConfig("diskCacheDir", "cache");
+	
+	// most disk space the disk cache may use, in bytes
+	final static long DISK_CACHE_SIZE = getConfig("diskCacheSize", 1024L * 1024 * 1024);
+	
+	// size at which the disk cache starts a new segment file, in bytes
+	final static int DISK_CACHE_SEGMENT_SIZE = getConfig("diskCacheSegmentSize", 64 * 1024 * 1024);
+	
+	// largest single response the disk cache will keep, in bytes
+	final static int DISK_CACHE_MAX_ENTRY_SIZE = getConfig("diskCacheMaxEntrySize", 16 * 1024 * 1024);
+	
+	// how often the disk cache drops responses past keeping, compacts segments, and saves its index, in milliseconds
+	final static int DISK_CACHE_MAINTENANCE_INTERVAL = getConfig("diskCacheMaintenanceInterval", 30000);
+	
+	// how long a stale response that can be revalidated (it has an ETag or Last-Modified) is kept
+	// for, so it can be refreshed with a conditional request instead of fetched again, in milliseconds
+	final static long CACHE_STALE_RETENTION = getConfig("cacheStaleRetention", 60 * 60 * 1000L);
+	
+	// how many stale responses may be revalidated in the background at once (for stale-while-revalidate)
+	final static int REVALIDATION_THREADS = getConfig("revalidationThreads", 4);
+	
+	// should concurrent requests for the same uncached response wait for one fetch from the remote server
+	// (collapsed forwarding) rather than each fetching their own?
+	final static boolean COLLAPSED_FORWARDING = getConfig("collapsedForwarding", true);
+	
+	// longest a collapsed request waits on the fetch it's collapsed into before fetching for itself, in milliseconds
+	final static int COLLAPSE_TIMEOUT = getConfig("collapseTimeout", 5000);
+	
+	
+	/**
+	 * SERVER ENGINE CONFIGURATION
+	 */
+	// which engine should serve connections? options are:
+	//   "blocking" - each connection gets a RequestWorker on the worker executor (see WORKER_MODE)
+	//   "nio"      - all connections are multiplexed over a few non-blocking event loops
+	final static String SERVER_ENGINE = getConfig("engine", "blocking");
+	
+	// how many threads accept connections, each handing them to its own share of the workers or
+	// event loops (0 means one per CPU core; the "nio" engine uses at most one per event loop)
+	final static int ACCEPTORS = getConfig("acceptors", 1);
+	
+	// with more than one acceptor, should each get its own listening socket on the port (with
+	// SO_REUSEPORT, so the kernel spreads connections across them), rather than share one?
+	final static boolean REUSE_PORT = getConfig("reusePort", true);
+	
+	// most connections the OS holds for each listening socket before they're accepted
+	final static int ACCEPT_BACKLOG = getConfig("acceptBacklog", 1024);
+	
+	// how many event loops the "nio" engine runs (0 means one per CPU core)
+	final static int NIO_EVENT_LOOPS = getConfig("nioEventLoops", 0);
+	
+	// size of the buffers that the "nio" engine reads and relays data through
+	final static int NIO_BUFFER_SIZE = getConfig("nioBufferSize", 16384);
+	
+	// the largest request or response header block we'll accept, in bytes
+	final static int MAX_HEADER_SIZE = getConfig("maxHeaderSize", 65536);
+	
+	// the most header lines a request or response may have
+	final static int MAX_HEADER_COUNT = getConfig("maxHeaderCount", 100);
+	
+	// how long an idle keep-alive connection from a client is held open, in milliseconds
+	final static int KEEP_ALIVE_TIMEOUT = getConfig("keepAliveTimeout", 15000);
+	
+	// how long a client may take to send a request's whole header block, from its first byte, in milliseconds
+	final static int HEADER_TIMEOUT = getConfig("headerTimeout", 10000);
+	
+	// how long a body (coming from either side) may go without a single byte arriving, in milliseconds
+	final static int BODY_TIMEOUT = getConfig("bodyTimeout", 30000);
+	
+	// how long we wait for a connection to a remote server to open, in milliseconds
+	final static int CONNECT_TIMEOUT = getConfig("connectTimeout", 10000);
+	
+	// how long we wait for a remote server to start responding once it has our request, in milliseconds
+	final static int RESPONSE_TIMEOUT = getConfig("responseTimeout", 60000);
+	
+	// how long we wait for a remote server to say it wants a request's body, when the client asked
+	// with "Expect: 100-continue", before sending the body anyway, in milliseconds
+	final static int CONTINUE_TIMEOUT = getConfig("continueTimeout", 1000);
+	
+	// how often the timer wheel that keeps track of all of the above ticks over, in milliseconds
+	// (deadlines go off up to this late)
+	final static int TIMER_TICK = getConfig("timerTick", 100);
+	
+	// most requests a client may send over one connection before we close it
+	final static int MAX_KEEP_ALIVE_REQUESTS = getConfig("maxKeepAliveRequests", 100);
 	
 	
 	/**
@@ -41,6 +277,21 @@ public class Utils {
 	final static boolean LOG_REQUEST_CLIENT_CONNECTIONS = true; // log requests w/client? (only if LOG_REQUEST_MESSAGES)
 	final static boolean LOG_REQUEST_REMOTE_CONNECTIONS = true; // log requests w/remote? (only if LOG_REQUEST_MESSAGES)
 	
+	// should messages be handed off to a background thread to format and write, instead of
+	// being written by the thread that logs them? (see AsyncLogger)
+	final static boolean LOG_ASYNC = getConfig("asyncLogging", true);
+	
+	// most messages that can be waiting for the background thread at once
+	final static int LOG_BUFFER_SIZE = getConfig("logBufferSize", 8192);
+	
+	// what happens to messages logged while the background thread is LOG_BUFFER_SIZE behind? options are:
+	//   "drop"  - the message is thrown away (and counted, see AsyncLogger.getStats)
+	//   "block" - the thread logging it waits for room
+	final static String LOG_WHEN_FULL = getConfig("logWhenFull", "drop");
+	
+	// log how long each phase of every proxied request took? (see RequestTiming)
+	final static boolean LOG_TIMINGS = getConfig("logTimings", false);
+	
 	
 	/**
 	 * MISCELLANEOUS CONFIGURATION
@@ -64,11 +315,87 @@ public class Utils {
 	final static String CRLF = "\r\n";
 	final static String HTTP_HEADER_END = CRLF + CRLF;
 	
+	// prefix of the system properties that override the configuration above
+	final static String CONFIG_PREFIX = "awesomeproxy.";
+	
+	/**
+	 * Looks up a configuration value from the system properties
+	 * 
+	 * @return the value of -Dawesomeproxy.<name>, or defaultValue if not set
+	 */
+	public static String getConfig(String name, String defaultValue) {
+		return System.getProperty(CONFIG_PREFIX + name, defaultValue);
+	}
+	
+	public static int getConfig(String name, int defaultValue) {
+		String value = getConfig(name, (String) null);
+		if (value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logError("Invalid number for " + CONFIG_PREFIX + name + ": " + value);
+			return defaultValue;
+		}
+	}
+	
+	public static long getConfig(String name, long defaultValue) {
+		String value = getConfig(name, (String) null);
+		if (value == null) return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logError("Invalid number for " + CONFIG_PREFIX + name + ": " + value);
+			return defaultValue;
+		}
+	}
+	
+	public static boolean getConfig(String name, boolean defaultValue) {
+		String value = getConfig(name, (String) null);
+		if (value == null) return defaultValue;
+		return Boolean.parseBoolean(value.trim());
+	}
+	
 	/**
 	 * Returns the current datetime as an RFC 1123 formatted string
 	 */
 	public static String getRFC1123Date() {
-		return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US).format(new Date());
+		return HeadWriter.getDate();
+	}
+	
+	/**
+	 * Formats a time (in milliseconds since the epoch) as an RFC 1123 date, in GMT like HTTP wants
+	 */
+	public static String getRFC1123Date(long time) {
+		return dateFormats.get().format(new Date(time));
+	}
+	
+	/**
+	 * Parses an RFC 1123 date into milliseconds since the epoch
+	 */
+	public static long parseRFC1123Date(String date) throws ParseException {
+		return dateParsers.get().parse(date).getTime();
+	}
+	
+	// SimpleDateFormats aren't thread-safe, so each thread gets its own
+	private static final ThreadLocal<SimpleDateFormat> dateFormats = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return newRFC1123Format();
+		}
+	};
+	
+	// (parsing a date can change a format's time zone, so parsing gets formats of its own)
+	private static final ThreadLocal<SimpleDateFormat> dateParsers = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return newRFC1123Format();
+		}
+	};
+	
+	private static SimpleDateFormat newRFC1123Format() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
 	}
 	
 	public static String getSimpleHtmlMessage(String title, String message) {
@@ -131,7 +458,94 @@ public class Utils {
 	}
 	
 	private static void log(String message, boolean isError) {
-		(isError ? System.err : System.out).println(message);
+		if (LOG_ASYNC) {
+			AsyncLogger.shared.log(message, isError);
+		} else {
+			(isError ? System.err : System.out).println(message);
+		}
+	}
+	
+	/**
+	 * Logs a non-error message about a request
+	 * 
+	 * @param id number identifying the connection the request came in on
+	 */
+	public static void logRequest(int id, String message) {
+		if (!LOG_MESSAGES || !LOG_REQUEST_MESSAGES) return;
+		if (LOG_ASYNC) {
+			AsyncLogger.shared.logRequest(id, message, false);
+		} else {
+			log(formatRequest(id, message), false);
+		}
+	}
+	
+	/**
+	 * Logs an error message about a request
+	 * 
+	 * @param id number identifying the connection the request came in on
+	 */
+	public static void logRequestError(int id, String message) {
+		if (!LOG_ERRORS || !LOG_REQUEST_ERRORS) return;
+		if (LOG_ASYNC) {
+			AsyncLogger.shared.logRequest(id, message, true);
+		} else {
+			log(formatRequest(id, message), true);
+		}
+	}
+	
+	static String formatRequest(int id, String message) {
+		return id + "\t| " + message;
+	}
+	
+	/**
+	 * Logs a request being sent between servers
+	 * 
+	 * @param id number identifying the connection the request came in on
+	 * @param from server sending request
+	 * @param to server receiving request
+	 * @param message first line of request
+	 */
+	public static void logConnection(int id, Node from, Node to, String message) {
+		if (!LOG_MESSAGES || !LOG_REQUEST_MESSAGES) return;
+		
+		boolean isNormal = (from == Node.PROXY || to == Node.PROXY) && to != from;
+		if (isNormal && (from == Node.CLIENT || to == Node.CLIENT) && !LOG_REQUEST_CLIENT_CONNECTIONS) return;
+		if (isNormal && (from == Node.REMOTE || to == Node.REMOTE) && !LOG_REQUEST_REMOTE_CONNECTIONS) return;
+		
+		// putting the line together is left to the background thread, if there is one
+		if (LOG_ASYNC) {
+			AsyncLogger.shared.logConnection(id, from, to, message);
+		} else {
+			log(formatConnection(id, from, to, message), false);
+		}
+	}
+	
+	/**
+	 * Formats a log line for a request being sent between servers (see logConnection)
+	 */
+	static String formatConnection(int id, Node from, Node to, String message) {
+		String bullet = "";
+		if ((from != Node.PROXY && to != Node.PROXY) || to == from) {
+			bullet = "???????";
+		} else {
+			if (from == Node.CLIENT || to == Node.CLIENT) {
+				bullet += "C";
+				if (to == Node.CLIENT) bullet += "<-";
+				else bullet += "->";
+			} else {
+				bullet += "   ";
+			}
+			bullet += "P";
+			if (from == Node.REMOTE || to == Node.REMOTE) {
+				if (from == Node.REMOTE) bullet += "<-";
+				else bullet += "->";
+				bullet += "R";
+			} else {
+				bullet += "   ";
+			}
+		}
+		
+		return formatRequest(id, bullet + " | " + message);
 	}
 	
 	/**